@@ -0,0 +1,184 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.provider;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+
+/**
+ * Measures message insert latency as a conversation grows, with the
+ * incremental thread counters and with the old recounting triggers.
+ */
+public class MessagesProviderBenchmark extends AndroidTestCase {
+    private static final String TAG = MessagesProviderBenchmark.class.getSimpleName();
+
+    private static final int SMALL_THREAD = 100;
+    private static final int LARGE_THREAD = 20000;
+    private static final int SAMPLES = 500;
+
+    private static final long THREAD_ID = 1;
+
+    private static final String[] TRIGGERS = {
+        "update_thread_on_insert",
+        "update_thread_on_update",
+        "update_thread_status_on_update",
+        "update_thread_on_delete",
+    };
+
+    private static final String LEGACY_UPDATE_COUNTERS_NEW =
+        "UPDATE threads SET " +
+        "count = (SELECT COUNT(_id) FROM messages WHERE thread_id = new.thread_id), " +
+        "unread = (SELECT COUNT(_id) FROM messages WHERE thread_id = new.thread_id AND unread <> 0), " +
+        "\"new\" = (SELECT COUNT(_id) FROM messages WHERE thread_id = new.thread_id AND \"new\" <> 0), " +
+        "status = (SELECT status FROM messages WHERE thread_id = new.thread_id ORDER BY timestamp DESC LIMIT 1) " +
+        "WHERE _id = new.thread_id";
+
+    /** Triggers used before counters were maintained incrementally. */
+    private static final String[] LEGACY_TRIGGERS = {
+        "CREATE TRIGGER update_thread_on_insert AFTER INSERT ON messages BEGIN " +
+            LEGACY_UPDATE_COUNTERS_NEW + "; END",
+        "CREATE TRIGGER update_thread_on_update AFTER UPDATE ON messages BEGIN " +
+            LEGACY_UPDATE_COUNTERS_NEW + "; END",
+    };
+
+    private SQLiteDatabase mDb;
+    private SQLiteStatement mInsert;
+    private int mMessages;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDb = SQLiteDatabase.create(null);
+        new MessagesProvider.DatabaseHelper(getContext()).onCreate(mDb);
+        mDb.execSQL("INSERT INTO threads (_id, msg_id, peer, direction, timestamp) " +
+            "VALUES(" + THREAD_ID + ", 'thread', 'peer@beta.kontalk.net', 0, 0)");
+        mInsert = mDb.compileStatement("INSERT INTO messages " +
+            "(thread_id, msg_id, peer, direction, unread, \"new\", timestamp, status) " +
+            "VALUES(" + THREAD_ID + ", ?, 'peer@beta.kontalk.net', 0, ?, ?, ?, 0)");
+        mMessages = 0;
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mInsert.close();
+        mDb.close();
+        super.tearDown();
+    }
+
+    private void insert() {
+        int i = mMessages++;
+        mInsert.bindString(1, "message" + i);
+        mInsert.bindLong(2, i % 2);
+        mInsert.bindLong(3, (i % 3 == 0) ? 1 : 0);
+        mInsert.bindLong(4, i);
+        mInsert.executeInsert();
+    }
+
+    /** Fills the conversation with the given number of messages. */
+    private void fill(int count) {
+        mDb.beginTransaction();
+        try {
+            for (int i = 0; i < count; i++)
+                insert();
+            mDb.setTransactionSuccessful();
+        }
+        finally {
+            mDb.endTransaction();
+        }
+    }
+
+    /** Replaces the current triggers with the recounting ones. */
+    private void useLegacyTriggers() {
+        for (String trigger : TRIGGERS)
+            mDb.execSQL("DROP TRIGGER IF EXISTS " + trigger);
+        mDb.execSQL("DROP INDEX IF EXISTS thread_timestamp_message");
+        for (String sql : LEGACY_TRIGGERS)
+            mDb.execSQL(sql);
+    }
+
+    /** @return average insert time in microseconds */
+    private long measure() {
+        long start = System.nanoTime();
+        for (int i = 0; i < SAMPLES; i++)
+            insert();
+        return (System.nanoTime() - start) / SAMPLES / 1000;
+    }
+
+    private void assertCounters() {
+        Cursor c = mDb.rawQuery("SELECT count, unread, \"new\" FROM threads WHERE _id = " + THREAD_ID, null);
+        try {
+            assertTrue(c.moveToFirst());
+            assertEquals(mMessages, c.getInt(0));
+            assertEquals(mMessages / 2, c.getInt(1));
+            assertEquals((mMessages + 2) / 3, c.getInt(2));
+        }
+        finally {
+            c.close();
+        }
+    }
+
+    public void testInsertLatency() throws Exception {
+        fill(SMALL_THREAD);
+        long small = measure();
+        fill(LARGE_THREAD - mMessages);
+        long large = measure();
+        assertCounters();
+
+        tearDown();
+        setUp();
+        // filling with recounting triggers would take forever
+        fill(LARGE_THREAD);
+        useLegacyTriggers();
+        long legacy = measure();
+        assertCounters();
+
+        Log.i(TAG, String.format("insert latency: %d us with %d messages, %d us with %d messages " +
+            "(legacy %d us)", small, SMALL_THREAD, large, LARGE_THREAD, legacy));
+
+        // latency stays flat as the thread grows
+        assertTrue(large < small * 3);
+        assertTrue(large < legacy);
+    }
+
+    public void testCounters() {
+        fill(SMALL_THREAD);
+        assertCounters();
+
+        // mark everything as read
+        mDb.execSQL("UPDATE messages SET unread = 0, \"new\" = 0 WHERE thread_id = " + THREAD_ID);
+        // delete half of the messages
+        mDb.execSQL("DELETE FROM messages WHERE timestamp % 2 = 0");
+
+        Cursor c = mDb.rawQuery("SELECT count, unread, \"new\" FROM threads WHERE _id = " + THREAD_ID, null);
+        try {
+            assertTrue(c.moveToFirst());
+            assertEquals(SMALL_THREAD / 2, c.getInt(0));
+            assertEquals(0, c.getInt(1));
+            assertEquals(0, c.getInt(2));
+        }
+        finally {
+            c.close();
+        }
+    }
+
+}
@@ -0,0 +1,154 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.provider;
+
+import java.util.Random;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import org.kontalk.provider.MyUsers.Users;
+
+
+/**
+ * Compares single-JID lookups on a synthetic users database before and
+ * after indexing JID columns.
+ */
+public class UsersProviderBenchmark extends AndroidTestCase {
+    private static final String TAG = UsersProviderBenchmark.class.getSimpleName();
+
+    private static final int USERS = 10000;
+    private static final int LOOKUPS = 2000;
+
+    /** The query used before the fast path was introduced. */
+    private static final String LEGACY_QUERY = "SELECT " +
+        "display_name, last_seen FROM users LEFT OUTER JOIN keys " +
+        "ON users.jid=keys.jid WHERE users.jid = ?";
+
+    private static final String[] PROJECTION = {
+        Users.DISPLAY_NAME, Users.LAST_SEEN
+    };
+
+    private SQLiteDatabase mDb;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDb = SQLiteDatabase.create(null);
+        mDb.execSQL(UsersProvider.DatabaseHelper.SCHEMA_USERS);
+        mDb.execSQL(UsersProvider.DatabaseHelper.SCHEMA_USERS_OFFLINE);
+        mDb.execSQL(UsersProvider.DatabaseHelper.SCHEMA_KEYS);
+
+        mDb.beginTransaction();
+        try {
+            SQLiteStatement users = mDb.compileStatement("INSERT INTO users " +
+                "(hash, number, jid, display_name, registered, last_seen) VALUES(?, ?, ?, ?, 1, ?)");
+            SQLiteStatement keys = mDb.compileStatement("INSERT INTO keys " +
+                "(jid, fingerprint) VALUES(?, ?)");
+            for (int i = 0; i < USERS; i++) {
+                String jid = jid(i);
+                users.bindString(1, "hash" + i);
+                users.bindString(2, "+1555" + i);
+                users.bindString(3, jid);
+                users.bindString(4, "User " + i);
+                users.bindLong(5, i);
+                users.executeInsert();
+
+                if (i % 2 == 0) {
+                    keys.bindString(1, jid);
+                    keys.bindString(2, "fingerprint" + i);
+                    keys.executeInsert();
+                }
+            }
+            users.close();
+            keys.close();
+            mDb.setTransactionSuccessful();
+        }
+        finally {
+            mDb.endTransaction();
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDb.close();
+        super.tearDown();
+    }
+
+    private static String jid(int i) {
+        return "hash" + i + "@beta.kontalk.net";
+    }
+
+    private long lookup(String sql) {
+        Random rnd = new Random(42);
+        long start = System.nanoTime();
+        for (int i = 0; i < LOOKUPS; i++) {
+            int user = rnd.nextInt(USERS);
+            Cursor c = mDb.rawQuery(sql, new String[] { jid(user) });
+            try {
+                assertTrue(c.moveToFirst());
+                assertEquals(user, c.getLong(1));
+            }
+            finally {
+                c.close();
+            }
+        }
+        return System.nanoTime() - start;
+    }
+
+    public void testJidLookup() {
+        String fastQuery = UsersProvider.buildJidQuery(PROJECTION, false);
+        assertNotNull(fastQuery);
+        assertFalse(fastQuery.contains("JOIN"));
+
+        long legacy = lookup(LEGACY_QUERY);
+
+        for (String sql : UsersProvider.DatabaseHelper.SCHEMA_JID_INDEXES)
+            mDb.execSQL(sql);
+
+        long indexed = lookup(LEGACY_QUERY);
+        long fast = lookup(fastQuery);
+
+        Log.i(TAG, String.format("%d lookups on %d users: legacy %d ms, indexed %d ms, fast path %d ms",
+            LOOKUPS, USERS, legacy / 1000000, indexed / 1000000, fast / 1000000));
+
+        assertTrue(indexed < legacy);
+        assertTrue(fast < legacy);
+    }
+
+    public void testTrustedKeyJoin() {
+        String sql = UsersProvider.buildJidQuery(new String[] {
+            Users.DISPLAY_NAME, MyUsers.Keys.TRUSTED_FINGERPRINT }, false);
+        assertTrue(sql.contains("JOIN"));
+
+        Cursor c = mDb.rawQuery(sql, new String[] { jid(2) });
+        try {
+            assertTrue(c.moveToFirst());
+            assertEquals("User 2", c.getString(0));
+            assertEquals("fingerprint2", c.getString(1));
+        }
+        finally {
+            c.close();
+        }
+    }
+
+}
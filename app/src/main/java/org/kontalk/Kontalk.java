@@ -30,6 +30,7 @@ import android.preference.PreferenceManager;
 import android.util.Log;
 
 import org.kontalk.authenticator.Authenticator;
+import org.kontalk.client.SSLContextCache;
 import org.kontalk.crypto.PGP;
 import org.kontalk.crypto.PRNGFixes;
 import org.kontalk.crypto.PersonalKey;
@@ -233,6 +234,8 @@ public class Kontalk extends Application {
     public void invalidatePersonalKey() {
         mDefaultKey = null;
         mKeyPassphrase = null;
+        // SSL contexts use the personal key
+        SSLContextCache.invalidate();
     }
 
     private void ensureCachedPassphrase() {
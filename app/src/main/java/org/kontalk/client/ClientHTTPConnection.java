@@ -19,8 +19,9 @@
 package org.kontalk.client;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.net.URL;
 import java.security.KeyManagementException;
 import java.security.KeyStore;
@@ -29,25 +30,21 @@ import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
 import java.security.PrivateKey;
 import java.security.UnrecoverableKeyException;
-import java.security.cert.Certificate;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
 import java.util.Date;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import javax.net.ssl.HttpsURLConnection;
-import javax.net.ssl.KeyManager;
-import javax.net.ssl.KeyManagerFactory;
-import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLSocketFactory;
-import javax.net.ssl.TrustManager;
-import javax.net.ssl.TrustManagerFactory;
-import javax.net.ssl.X509TrustManager;
 
 import android.content.Context;
 import android.util.Log;
 
+import com.segment.backo.Backo;
+
 import org.kontalk.message.CompositeMessage;
 import org.kontalk.service.DownloadListener;
 import org.kontalk.util.InternalTrustStore;
@@ -72,17 +69,35 @@ public class ClientHTTPConnection {
     private final PrivateKey mPrivateKey;
     private final X509Certificate mCertificate;
 
-    private HttpsURLConnection currentRequest;
+    private final Backo mRetryBackoff;
+
+    private volatile HttpsURLConnection currentRequest;
+    private volatile boolean mAborted;
+    /** Used to wake up a download waiting to be retried. */
+    private final Object mRetryLock = new Object();
     private final static int CONNECT_TIMEOUT = 15000;
     private final static int READ_TIMEOUT = 40000;
 
+    /** Maximum number of automatic retries for a download. */
+    private final static int MAX_RETRIES = 5;
+
     public ClientHTTPConnection(Context context, PrivateKey privateKey, X509Certificate bridgeCert) {
         mContext = context;
         mPrivateKey = privateKey;
         mCertificate = bridgeCert;
+        mRetryBackoff = Backo.builder()
+            .base(TimeUnit.SECONDS, 1)
+            .cap(TimeUnit.SECONDS, 30)
+            .factor(2)
+            .jitter(1)
+            .build();
     }
 
     public void abort() {
+        synchronized (mRetryLock) {
+            mAborted = true;
+            mRetryLock.notifyAll();
+        }
         if (currentRequest != null)
             currentRequest.disconnect();
     }
@@ -131,71 +146,83 @@ public class ClientHTTPConnection {
                 IOException, KeyManagementException, UnrecoverableKeyException,
                 NoSuchProviderException {
 
-        // in-memory keystore
-        KeyStore keystore = KeyStore.getInstance(KeyStore.getDefaultType());
-        keystore.load(null, null);
-        keystore.setKeyEntry("private", privateKey, null, new Certificate[] { certificate });
-
-        // key managers
-        KeyManagerFactory kmFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
-        kmFactory.init(keystore, null);
-        KeyManager[] km = kmFactory.getKeyManagers();
-
-        // trust managers
-        TrustManager[] tm;
-
-        if (acceptAnyCertificate) {
-            tm = new TrustManager[] {
-                new X509TrustManager() {
-                    @Override
-                    public X509Certificate[] getAcceptedIssuers() {
-                        return null;
-                    }
-
-                    @Override
-                    public void checkServerTrusted(X509Certificate[] chain, String authType)
-                        throws CertificateException {
-                    }
-
-                    @Override
-                    public void checkClientTrusted(X509Certificate[] chain, String authType)
-                        throws CertificateException {
-                    }
-                }
-            };
-        }
-        else {
-            // load merged truststore (system + internal)
-            KeyStore trustStore = InternalTrustStore.getTrustStore(context);
+        // load merged truststore (system + internal)
+        KeyStore trustStore = acceptAnyCertificate ? null :
+            InternalTrustStore.getTrustStore(context);
 
-            // builtin keystore
-            TrustManagerFactory tmFactory = TrustManagerFactory
-                .getInstance(TrustManagerFactory.getDefaultAlgorithm());
-            tmFactory.init(trustStore);
-
-            tm = tmFactory.getTrustManagers();
-        }
-
-        SSLContext ctx = SSLContext.getInstance("TLS");
-        ctx.init(km, tm, null);
-        return ctx.getSocketFactory();
+        return SSLContextCache.getContext(privateKey, certificate,
+            acceptAnyCertificate, trustStore).getSocketFactory();
     }
 
     /**
      * Downloads to a directory represented by a {@link File} object,
      * determining the file name from the Content-Disposition header.
+     * Interrupted downloads are resumed automatically a few times before
+     * giving up. Partial data is discarded if the download is aborted or
+     * fails for good.
      */
     public void downloadAutofilename(String url, File defaultBase, Date timestamp, DownloadListener listener) throws IOException {
-        _download(url, defaultBase, timestamp, listener);
+        mAborted = false;
+        ResumableDownload download = new ResumableDownload(url,
+            MediaStorage.getPartialDownloadFile(url));
+        for (int attempt = 0; ; attempt++) {
+            try {
+                _download(url, download, defaultBase, timestamp, listener);
+                return;
+            }
+            catch (IOException e) {
+                if (mAborted || attempt >= MAX_RETRIES) {
+                    download.discard();
+                    throw e;
+                }
+
+                long delay = mRetryBackoff.backoff(attempt);
+                Log.w(TAG, "download error, retrying in " + delay + " ms", e);
+                try {
+                    waitRetry(delay);
+                }
+                catch (InterruptedException ie) {
+                    download.discard();
+                    throw new InterruptedIOException("download interrupted");
+                }
+
+                if (mAborted) {
+                    download.discard();
+                    throw e;
+                }
+            }
+            finally {
+                currentRequest = null;
+            }
+        }
+    }
+
+    /** Waits for the given time or until the download is aborted. */
+    private void waitRetry(long delay) throws InterruptedException {
+        long end = System.currentTimeMillis() + delay;
+        synchronized (mRetryLock) {
+            while (!mAborted && delay > 0) {
+                mRetryLock.wait(delay);
+                delay = end - System.currentTimeMillis();
+            }
+        }
     }
 
-    private void _download(String url, File defaultBase, Date timestamp, DownloadListener listener) throws IOException {
+    private void _download(String url, ResumableDownload download, File defaultBase, Date timestamp, DownloadListener listener) throws IOException {
         boolean acceptAnyCertificate = Preferences.getAcceptAnyCertificate(mContext);
         currentRequest = prepareURLDownload(url, acceptAnyCertificate);
 
+        download.prepare(currentRequest);
+
         int code = currentRequest.getResponseCode();
-        // HTTP/1.1 200 OK -- other codes should throw Exceptions
-        if (code == 200) {
+        if (code == ResumableDownload.HTTP_RANGE_NOT_SATISFIABLE) {
+            // partial data is not valid anymore, start over
+            download.discard();
+            throw new IOException("invalid range, restarting download");
+        }
+
+        // HTTP/1.1 200 OK or 206 Partial Content -- other codes should throw Exceptions
+        if (code == 200 || code == ResumableDownload.HTTP_PARTIAL) {
             // use a more suitable filename, taking only the extension
             String contentType = currentRequest.getContentType();
             File destination = null;
@@ -219,15 +246,24 @@ public class ClientHTTPConnection {
                 destination = new File(defaultBase, name);
             }
 
-            // we need to wrap the entity to monitor the download progress
-            ProgressOutputStreamEntity entity = new ProgressOutputStreamEntity(currentRequest, url, destination, listener);
-            FileOutputStream out = new FileOutputStream(destination);
-            entity.writeTo(out);
-            out.close();
+            OutputStream out = download.open(currentRequest);
+            try {
+                // we need to wrap the entity to monitor the download progress
+                ProgressOutputStreamEntity entity = new ProgressOutputStreamEntity(currentRequest,
+                    url, destination, download.getOffset(), download.getLength(), listener);
+                entity.writeTo(out);
+            }
+            finally {
+                out.close();
+            }
+
+            download.complete(destination);
+            listener.completed(url, contentType, destination);
             return;
         }
 
         Log.d(TAG, "invalid response: " + code);
+        download.discard();
         listener.error(url, null, new IOException("invalid response: " + code));
     }
 
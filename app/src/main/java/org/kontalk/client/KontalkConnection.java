@@ -20,16 +20,9 @@ package org.kontalk.client;
 
 import java.security.KeyStore;
 import java.security.PrivateKey;
-import java.security.cert.Certificate;
-import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
 
-import javax.net.ssl.KeyManager;
-import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
-import javax.net.ssl.TrustManager;
-import javax.net.ssl.TrustManagerFactory;
-import javax.net.ssl.X509TrustManager;
 
 import org.jivesoftware.smack.ConnectionConfiguration.SecurityMode;
 import org.jivesoftware.smack.SASLAuthentication;
@@ -56,6 +49,9 @@ public class KontalkConnection extends XMPPTCPConnection {
     /** Packet reply timeout. */
     public static final int DEFAULT_PACKET_TIMEOUT = 15000;
 
+    /** Preferred stream resumption time (in seconds). */
+    private static final int RESUMPTION_TIME = 300;
+
     protected EndpointServer mServer;
 
     public KontalkConnection(String resource, EndpointServer server, boolean secure,
@@ -74,15 +70,20 @@ public class KontalkConnection extends XMPPTCPConnection {
 
         mServer = server;
 
-        // enable SM without resumption
+        // enable SM with resumption
         setUseStreamManagement(true);
-        setUseStreamManagementResumption(false);
+        setUseStreamManagementResumption(true);
+        setPreferredResumptionTime(RESUMPTION_TIME);
         // set custom ack predicate
         addRequestAckPredicate(AckPredicate.INSTANCE);
         // set custom packet reply timeout
         setPacketReplyTimeout(DEFAULT_PACKET_TIMEOUT);
     }
 
+    public EndpointServer getServer() {
+        return mServer;
+    }
+
     private static XMPPTCPConnectionConfiguration buildConfiguration(String resource,
         EndpointServer server, boolean secure, PrivateKey privateKey, X509Certificate bridgeCert,
         boolean acceptAnyCertificate, KeyStore trustStore, String legacyAuthToken) {
@@ -120,21 +121,10 @@ public class KontalkConnection extends XMPPTCPConnection {
         boolean direct, PrivateKey privateKey, X509Certificate bridgeCert,
         boolean acceptAnyCertificate, KeyStore trustStore) {
         try {
-            SSLContext ctx = SSLContext.getInstance("TLS");
+            SSLContext ctx = SSLContextCache.getContext(privateKey, bridgeCert,
+                acceptAnyCertificate, trustStore);
 
-            KeyManager[] km = null;
             if (privateKey != null && bridgeCert != null) {
-                // in-memory keystore
-                KeyStore keystore = KeyStore.getInstance(KeyStore.getDefaultType());
-                keystore.load(null, null);
-                keystore.setKeyEntry("private", privateKey, null, new Certificate[] { bridgeCert });
-
-                // key managers
-                KeyManagerFactory kmFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
-                kmFactory.init(keystore, null);
-
-                km = kmFactory.getKeyManagers();
-
                 // disable PLAIN mechanism if not upgrading from legacy
                 if (!LegacyAuthentication.isUpgrading()) {
                     // blacklist PLAIN mechanism
@@ -142,40 +132,6 @@ public class KontalkConnection extends XMPPTCPConnection {
                 }
             }
 
-            // trust managers
-            TrustManager[] tm;
-
-            if (acceptAnyCertificate) {
-                tm = new TrustManager[] {
-                    new X509TrustManager() {
-                        @Override
-                        public X509Certificate[] getAcceptedIssuers() {
-                            return null;
-                        }
-
-                        @Override
-                        public void checkServerTrusted(X509Certificate[] chain, String authType)
-                            throws CertificateException {
-                        }
-
-                        @Override
-                        public void checkClientTrusted(X509Certificate[] chain, String authType)
-                            throws CertificateException {
-                        }
-                    }
-                };
-            }
-
-            else {
-                // builtin keystore
-                TrustManagerFactory tmFactory = TrustManagerFactory
-                    .getInstance(TrustManagerFactory.getDefaultAlgorithm());
-                tmFactory.init(trustStore);
-
-                tm = tmFactory.getTrustManagers();
-            }
-
-            ctx.init(km, tm, null);
             builder.setCustomSSLContext(ctx);
             if (direct)
                 builder.setSocketFactory(ctx.getSocketFactory());
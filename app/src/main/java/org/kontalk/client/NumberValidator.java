@@ -592,24 +592,19 @@ public class NumberValidator implements Runnable, ConnectionHelperListener {
      */
     public static String fixNumber(Context context, String number, String myNumber, int lastResortCc)
             throws NumberParseException {
+        return fixNumber(getRegionCode(context, myNumber), number, lastResortCc);
+    }
 
-        final TelephonyManager tm = (TelephonyManager) context.getSystemService(Context.TELEPHONY_SERVICE);
-        String myRegionCode = tm.getSimCountryIso();
-        if (myRegionCode != null)
-            myRegionCode = myRegionCode.toUpperCase(Locale.US);
+    /**
+     * Converts pretty much any phone number into E.164 format using the
+     * given region code as default.
+     * @param myRegionCode default region code, as returned by {@link #getRegionCode}
+     * @param lastResortCc manual country code last resort
+     */
+    public static String fixNumber(String myRegionCode, String number, int lastResortCc)
+            throws NumberParseException {
 
         PhoneNumberUtil util = PhoneNumberUtil.getInstance();
-        try {
-            if (myNumber != null) {
-                PhoneNumber myNum = util.parse(myNumber, myRegionCode);
-                // use region code found in my number
-                myRegionCode = util.getRegionCodeForNumber(myNum);
-            }
-        }
-        catch (NumberParseException e) {
-            // ehm :)
-        }
-
         PhoneNumber parsedNum;
         try {
             parsedNum = util.parse(number, myRegionCode);
@@ -628,6 +623,32 @@ public class NumberValidator implements Runnable, ConnectionHelperListener {
         return util.format(parsedNum, PhoneNumberFormat.E164);
     }
 
+    /**
+     * Returns the region code to be used for parsing numbers without a
+     * country code: the one of our own number if available, or the SIM card
+     * one otherwise.
+     */
+    public static String getRegionCode(Context context, String myNumber) {
+        final TelephonyManager tm = (TelephonyManager) context.getSystemService(Context.TELEPHONY_SERVICE);
+        String myRegionCode = tm.getSimCountryIso();
+        if (myRegionCode != null)
+            myRegionCode = myRegionCode.toUpperCase(Locale.US);
+
+        PhoneNumberUtil util = PhoneNumberUtil.getInstance();
+        try {
+            if (myNumber != null) {
+                PhoneNumber myNum = util.parse(myNumber, myRegionCode);
+                // use region code found in my number
+                myRegionCode = util.getRegionCodeForNumber(myNum);
+            }
+        }
+        catch (NumberParseException e) {
+            // ehm :)
+        }
+
+        return myRegionCode;
+    }
+
     /** Returns the (parsed) number stored in this device SIM card. */
     public static PhoneNumber getMyNumber(Context context) {
         try {
@@ -0,0 +1,193 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.client;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.util.Properties;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+
+/**
+ * Keeps track of a partially downloaded file, resuming the download with
+ * HTTP range requests. The partial file is validated against the ETag (or
+ * Last-Modified date) of the first response.
+ * @author Daniele Ricci
+ */
+public class ResumableDownload {
+
+    /** Partial content. */
+    public static final int HTTP_PARTIAL = 206;
+    /** Requested range not satisfiable. */
+    public static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+
+    private static final String META_SUFFIX = ".meta";
+    private static final String PROP_URL = "url";
+    private static final String PROP_VALIDATOR = "validator";
+
+    private static final Pattern CONTENT_RANGE_PATTERN = Pattern
+        .compile("bytes\\s+(\\d+)-(\\d+)/(\\d+|\\*)");
+
+    private final String mUrl;
+    private final File mPartial;
+    private final File mMeta;
+
+    /** Offset requested to the server. */
+    private long mRequestedOffset;
+    /** Offset data is being written at. */
+    private long mOffset;
+    /** Total length of the file, -1 if unknown. */
+    private long mLength;
+
+    public ResumableDownload(String url, File partial) {
+        mUrl = url;
+        mPartial = partial;
+        mMeta = new File(partial.getPath() + META_SUFFIX);
+    }
+
+    /** Adds range headers to the request if the download can be resumed. */
+    public void prepare(HttpURLConnection conn) {
+        mRequestedOffset = 0;
+        long length = mPartial.length();
+        String validator = length > 0 ? loadValidator() : null;
+        if (validator != null) {
+            conn.setRequestProperty("Range", "bytes=" + length + "-");
+            conn.setRequestProperty("If-Range", validator);
+            mRequestedOffset = length;
+        }
+    }
+
+    /**
+     * Checks the response and opens the partial file for writing. The
+     * response code must be either 200 or 206.
+     */
+    public OutputStream open(HttpURLConnection conn) throws IOException {
+        int code = conn.getResponseCode();
+        long contentLength = conn.getContentLength();
+
+        if (code == HTTP_PARTIAL && mRequestedOffset > 0) {
+            Matcher m = CONTENT_RANGE_PATTERN.matcher(String
+                .valueOf(conn.getHeaderField("Content-Range")));
+            if (!m.find() || Long.parseLong(m.group(1)) != mRequestedOffset) {
+                // we can't trust what we have
+                discard();
+                throw new IOException("unexpected content range");
+            }
+
+            mOffset = mRequestedOffset;
+            mLength = "*".equals(m.group(3)) ? -1 : Long.parseLong(m.group(3));
+            return new FileOutputStream(mPartial, true);
+        }
+
+        if (code != HttpURLConnection.HTTP_OK)
+            throw new IOException("invalid response: " + code);
+
+        // start over
+        mOffset = 0;
+        mLength = contentLength;
+        saveValidator(conn);
+        return new FileOutputStream(mPartial, false);
+    }
+
+    /** Returns the offset the download was resumed from. */
+    public long getOffset() {
+        return mOffset;
+    }
+
+    /** Returns the total length of the file, or -1 if unknown. */
+    public long getLength() {
+        return mLength;
+    }
+
+    /**
+     * Checks that the whole file was downloaded and moves it to its final
+     * destination.
+     */
+    public void complete(File destination) throws IOException {
+        long length = mPartial.length();
+        if (mLength >= 0 && length < mLength)
+            throw new IOException("premature end of stream (" + length + "/" + mLength + ")");
+
+        mMeta.delete();
+        if (!mPartial.renameTo(destination))
+            throw new IOException("unable to move downloaded file to " + destination);
+    }
+
+    /** Deletes the partial file. */
+    public void discard() {
+        mPartial.delete();
+        mMeta.delete();
+    }
+
+    private String loadValidator() {
+        InputStream in = null;
+        try {
+            in = new FileInputStream(mMeta);
+            Properties meta = new Properties();
+            meta.load(in);
+            if (mUrl.equals(meta.getProperty(PROP_URL)))
+                return meta.getProperty(PROP_VALIDATOR);
+        }
+        catch (IOException e) {
+            // no resume data
+        }
+        finally {
+            try {
+                if (in != null)
+                    in.close();
+            }
+            catch (IOException e) {
+                // ignored
+            }
+        }
+        return null;
+    }
+
+    private void saveValidator(HttpURLConnection conn) throws IOException {
+        // weak entity tags can't be used with If-Range
+        String validator = conn.getHeaderField("ETag");
+        if (validator == null || validator.startsWith("W/"))
+            validator = conn.getHeaderField("Last-Modified");
+
+        if (validator == null) {
+            // download can't be resumed
+            mMeta.delete();
+            return;
+        }
+
+        Properties meta = new Properties();
+        meta.setProperty(PROP_URL, mUrl);
+        meta.setProperty(PROP_VALIDATOR, validator);
+
+        OutputStream out = new FileOutputStream(mMeta);
+        try {
+            meta.store(out, null);
+        }
+        finally {
+            out.close();
+        }
+    }
+
+}
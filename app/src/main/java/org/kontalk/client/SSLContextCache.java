@@ -0,0 +1,347 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.client;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.security.KeyManagementException;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.SecureRandom;
+import java.security.UnrecoverableKeyException;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.HandshakeCompletedListener;
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLContextSpi;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLServerSocketFactory;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+import javax.net.ssl.X509TrustManager;
+
+import android.util.Log;
+
+import org.kontalk.util.MessageUtils;
+
+
+/**
+ * SSL contexts shared by XMPP and HTTPS connections. Contexts are cached by
+ * client certificate and trust settings, so TLS sessions can be resumed by
+ * reconnections and media transfers instead of doing a full handshake.
+ * @author Daniele Ricci
+ */
+public class SSLContextCache {
+    private static final String TAG = SSLContextCache.class.getSimpleName();
+
+    /** Maximum number of cached contexts. */
+    private static final int MAX_CONTEXTS = 4;
+    /** Number of TLS sessions cached by each context. */
+    private static final int SESSION_CACHE_SIZE = 10;
+    /** Lifetime of cached TLS sessions (in seconds). */
+    private static final int SESSION_TIMEOUT = 86400;
+
+    private static final Map<Key, SSLContext> sContexts =
+        new LinkedHashMap<Key, SSLContext>(MAX_CONTEXTS, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, SSLContext> eldest) {
+                return size() > MAX_CONTEXTS;
+            }
+        };
+
+    private SSLContextCache() {
+    }
+
+    /**
+     * Returns the SSL context for the given client key and trust settings,
+     * creating it if needed.
+     * @param privateKey client private key, null for no client authentication
+     * @param certificate client certificate, null for no client authentication
+     * @param acceptAnyCertificate true to accept any server certificate
+     * @param trustStore trust store to use, null for the system default
+     */
+    public static SSLContext getContext(PrivateKey privateKey, X509Certificate certificate,
+                boolean acceptAnyCertificate, KeyStore trustStore)
+            throws KeyStoreException, NoSuchAlgorithmException, CertificateException,
+                IOException, KeyManagementException, UnrecoverableKeyException {
+
+        boolean clientAuth = privateKey != null && certificate != null;
+        Key key = new Key(clientAuth ? fingerprint(certificate) : null,
+            acceptAnyCertificate, acceptAnyCertificate ? null : trustStore);
+
+        synchronized (sContexts) {
+            SSLContext ctx = sContexts.get(key);
+            if (ctx == null) {
+                ctx = createContext(clientAuth ? privateKey : null, certificate,
+                    acceptAnyCertificate, trustStore);
+                sContexts.put(key, ctx);
+            }
+            return ctx;
+        }
+    }
+
+    /** Discards all cached contexts and their TLS sessions (e.g. on key change). */
+    public static void invalidate() {
+        synchronized (sContexts) {
+            sContexts.clear();
+        }
+    }
+
+    private static SSLContext createContext(PrivateKey privateKey, X509Certificate certificate,
+                boolean acceptAnyCertificate, KeyStore trustStore)
+            throws KeyStoreException, NoSuchAlgorithmException, CertificateException,
+                IOException, KeyManagementException, UnrecoverableKeyException {
+
+        KeyManager[] km = null;
+        if (privateKey != null) {
+            // in-memory keystore
+            KeyStore keystore = KeyStore.getInstance(KeyStore.getDefaultType());
+            keystore.load(null, null);
+            keystore.setKeyEntry("private", privateKey, null, new Certificate[] { certificate });
+
+            // key managers
+            KeyManagerFactory kmFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            kmFactory.init(keystore, null);
+            km = kmFactory.getKeyManagers();
+        }
+
+        // trust managers
+        TrustManager[] tm;
+
+        if (acceptAnyCertificate) {
+            tm = new TrustManager[] {
+                new X509TrustManager() {
+                    @Override
+                    public X509Certificate[] getAcceptedIssuers() {
+                        return null;
+                    }
+
+                    @Override
+                    public void checkServerTrusted(X509Certificate[] chain, String authType)
+                        throws CertificateException {
+                    }
+
+                    @Override
+                    public void checkClientTrusted(X509Certificate[] chain, String authType)
+                        throws CertificateException {
+                    }
+                }
+            };
+        }
+        else {
+            // builtin keystore
+            TrustManagerFactory tmFactory = TrustManagerFactory
+                .getInstance(TrustManagerFactory.getDefaultAlgorithm());
+            tmFactory.init(trustStore);
+
+            tm = tmFactory.getTrustManagers();
+        }
+
+        SSLContext ctx = SSLContext.getInstance("TLS");
+        ctx.init(km, tm, null);
+
+        SSLSessionContext sessions = ctx.getClientSessionContext();
+        if (sessions != null) {
+            sessions.setSessionCacheSize(SESSION_CACHE_SIZE);
+            sessions.setSessionTimeout(SESSION_TIMEOUT);
+        }
+
+        return new TimingSSLContext(ctx);
+    }
+
+    private static String fingerprint(X509Certificate certificate)
+            throws CertificateException, NoSuchAlgorithmException {
+        MessageDigest md = MessageDigest.getInstance("SHA-1");
+        return MessageUtils.bytesToHex(md.digest(certificate.getEncoded()));
+    }
+
+    /** Cache key. Trust stores are compared by identity. */
+    private static final class Key {
+        private final String mFingerprint;
+        private final boolean mAcceptAnyCertificate;
+        private final KeyStore mTrustStore;
+
+        Key(String fingerprint, boolean acceptAnyCertificate, KeyStore trustStore) {
+            mFingerprint = fingerprint;
+            mAcceptAnyCertificate = acceptAnyCertificate;
+            mTrustStore = trustStore;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key))
+                return false;
+            Key other = (Key) o;
+            return (mFingerprint != null ? mFingerprint.equals(other.mFingerprint) : other.mFingerprint == null) &&
+                mAcceptAnyCertificate == other.mAcceptAnyCertificate &&
+                mTrustStore == other.mTrustStore;
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = (mFingerprint != null) ? mFingerprint.hashCode() : 0;
+            hash = 31 * hash + (mAcceptAnyCertificate ? 1 : 0);
+            return 31 * hash + System.identityHashCode(mTrustStore);
+        }
+    }
+
+    /**
+     * An SSL context returning the same socket factory every time, so
+     * HTTPS connections can be pooled too. Handshake times of its sockets are
+     * logged.
+     */
+    private static final class TimingSSLContext extends SSLContext {
+        TimingSSLContext(SSLContext ctx) {
+            super(new TimingSSLContextSpi(ctx), ctx.getProvider(), ctx.getProtocol());
+        }
+    }
+
+    private static final class TimingSSLContextSpi extends SSLContextSpi {
+        private final SSLContext mContext;
+        private final SSLSocketFactory mSocketFactory;
+
+        TimingSSLContextSpi(SSLContext ctx) {
+            mContext = ctx;
+            mSocketFactory = new TimingSSLSocketFactory(ctx.getSocketFactory());
+        }
+
+        @Override
+        protected void engineInit(KeyManager[] km, TrustManager[] tm, SecureRandom sr)
+                throws KeyManagementException {
+            mContext.init(km, tm, sr);
+        }
+
+        @Override
+        protected SSLSocketFactory engineGetSocketFactory() {
+            return mSocketFactory;
+        }
+
+        @Override
+        protected SSLServerSocketFactory engineGetServerSocketFactory() {
+            return mContext.getServerSocketFactory();
+        }
+
+        @Override
+        protected SSLEngine engineCreateSSLEngine() {
+            return mContext.createSSLEngine();
+        }
+
+        @Override
+        protected SSLEngine engineCreateSSLEngine(String host, int port) {
+            return mContext.createSSLEngine(host, port);
+        }
+
+        @Override
+        protected SSLSessionContext engineGetServerSessionContext() {
+            return mContext.getServerSessionContext();
+        }
+
+        @Override
+        protected SSLSessionContext engineGetClientSessionContext() {
+            return mContext.getClientSessionContext();
+        }
+    }
+
+    /**
+     * Logs the time from socket creation to handshake completion. For
+     * sockets layered over an existing connection this is the handshake
+     * time alone.
+     */
+    private static final class TimingSSLSocketFactory extends SSLSocketFactory {
+        private final SSLSocketFactory mFactory;
+
+        TimingSSLSocketFactory(SSLSocketFactory factory) {
+            mFactory = factory;
+        }
+
+        private Socket timed(Socket socket) {
+            if (socket instanceof SSLSocket) {
+                final long start = System.currentTimeMillis();
+                ((SSLSocket) socket).addHandshakeCompletedListener(new HandshakeCompletedListener() {
+                    @Override
+                    public void handshakeCompleted(HandshakeCompletedEvent event) {
+                        SSLSession session = event.getSession();
+                        // a session created before the socket has been resumed
+                        boolean resumed = session.getCreationTime() < start;
+                        Log.v(TAG, "TLS handshake with " + session.getPeerHost() +
+                            " completed in " + (System.currentTimeMillis() - start) + " ms" +
+                            (resumed ? " (session resumed)" : ""));
+                    }
+                });
+            }
+            return socket;
+        }
+
+        @Override
+        public String[] getDefaultCipherSuites() {
+            return mFactory.getDefaultCipherSuites();
+        }
+
+        @Override
+        public String[] getSupportedCipherSuites() {
+            return mFactory.getSupportedCipherSuites();
+        }
+
+        @Override
+        public Socket createSocket() throws IOException {
+            return timed(mFactory.createSocket());
+        }
+
+        @Override
+        public Socket createSocket(Socket s, String host, int port, boolean autoClose) throws IOException {
+            return timed(mFactory.createSocket(s, host, port, autoClose));
+        }
+
+        @Override
+        public Socket createSocket(String host, int port) throws IOException {
+            return timed(mFactory.createSocket(host, port));
+        }
+
+        @Override
+        public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+            return timed(mFactory.createSocket(host, port, localHost, localPort));
+        }
+
+        @Override
+        public Socket createSocket(InetAddress host, int port) throws IOException {
+            return timed(mFactory.createSocket(host, port));
+        }
+
+        @Override
+        public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
+            return timed(mFactory.createSocket(address, port, localAddress, localPort));
+        }
+    }
+
+}
@@ -0,0 +1,119 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.client;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Connection history of servers, used to order connection attempts.
+ * Servers are ranked by smoothed connection time, with a penalty for each
+ * consecutive failure.
+ * @author Daniele Ricci
+ */
+public class ServerHistory {
+
+    /** Connection time assumed for servers never connected to. */
+    static final long DEFAULT_CONNECT_TIME = 2000;
+    /** Penalty for each consecutive failure (in milliseconds). */
+    static final long FAILURE_PENALTY = 10000;
+
+    private static final class Entry {
+        /** Smoothed connection time. */
+        long connectTime = -1;
+        /** Consecutive failures. */
+        int failures;
+    }
+
+    private static final Map<EndpointServer, Entry> sEntries = new HashMap<>();
+
+    private static final Comparator<EndpointServer> sComparator = new Comparator<EndpointServer>() {
+        @Override
+        public int compare(EndpointServer lhs, EndpointServer rhs) {
+            long a = score(lhs);
+            long b = score(rhs);
+            return a < b ? -1 : (a == b ? 0 : 1);
+        }
+    };
+
+    private ServerHistory() {
+    }
+
+    /** Records a successful connection. */
+    public static void success(EndpointServer server, long connectTime) {
+        synchronized (sEntries) {
+            Entry e = getEntry(server);
+            // same smoothing used for TCP round trip time
+            if (e.connectTime < 0)
+                e.connectTime = connectTime;
+            else
+                e.connectTime += (connectTime - e.connectTime) / 8;
+            e.failures = 0;
+        }
+    }
+
+    /** Records a failed connection. */
+    public static void failure(EndpointServer server) {
+        synchronized (sEntries) {
+            getEntry(server).failures++;
+        }
+    }
+
+    /**
+     * Sorts servers by connection history, best first. Servers with the same
+     * score keep their order.
+     */
+    public static void sort(List<EndpointServer> servers) {
+        synchronized (sEntries) {
+            Collections.sort(servers, sComparator);
+        }
+    }
+
+    /** Returns the score of a server, lower is better. */
+    static long score(EndpointServer server) {
+        synchronized (sEntries) {
+            Entry e = sEntries.get(server);
+            if (e == null)
+                return DEFAULT_CONNECT_TIME;
+            return (e.connectTime < 0 ? DEFAULT_CONNECT_TIME : e.connectTime) +
+                e.failures * FAILURE_PENALTY;
+        }
+    }
+
+    /** Forgets all history. */
+    static void clear() {
+        synchronized (sEntries) {
+            sEntries.clear();
+        }
+    }
+
+    private static Entry getEntry(EndpointServer server) {
+        Entry e = sEntries.get(server);
+        if (e == null) {
+            e = new Entry();
+            sEntries.put(server, e);
+        }
+        return e;
+    }
+
+}
@@ -18,7 +18,6 @@
 
 package org.kontalk.crypto;
 
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -32,6 +31,7 @@ import java.util.Date;
 import java.util.Iterator;
 import java.util.List;
 
+import org.spongycastle.bcpg.CompressionAlgorithmTags;
 import org.spongycastle.bcpg.HashAlgorithmTags;
 import org.spongycastle.openpgp.PGPCompressedData;
 import org.spongycastle.openpgp.PGPCompressedDataGenerator;
@@ -39,12 +39,14 @@ import org.spongycastle.openpgp.PGPEncryptedData;
 import org.spongycastle.openpgp.PGPEncryptedDataGenerator;
 import org.spongycastle.openpgp.PGPEncryptedDataList;
 import org.spongycastle.openpgp.PGPException;
+import org.spongycastle.openpgp.PGPKeyPair;
 import org.spongycastle.openpgp.PGPLiteralData;
 import org.spongycastle.openpgp.PGPLiteralDataGenerator;
 import org.spongycastle.openpgp.PGPObjectFactory;
 import org.spongycastle.openpgp.PGPOnePassSignature;
 import org.spongycastle.openpgp.PGPOnePassSignatureList;
 import org.spongycastle.openpgp.PGPPrivateKey;
+import org.spongycastle.openpgp.PGPPublicKey;
 import org.spongycastle.openpgp.PGPPublicKeyEncryptedData;
 import org.spongycastle.openpgp.PGPPublicKeyRing;
 import org.spongycastle.openpgp.PGPSignature;
@@ -81,8 +83,40 @@ public class PGPCoder extends Coder {
     private static final KeyFingerPrintCalculator sFingerprintCalculator =
         PGP.sFingerprintCalculator;
 
-    /** Buffer size. It should always be a power of 2. */
-    private static final int BUFFER_SIZE = 1 << 8;
+    /**
+     * Partial packets buffer size for messages. It should always be a power
+     * of 2 and not less than 512 (RFC 4880, 4.2.2.4).
+     */
+    private static final int MESSAGE_BUFFER_SIZE = 1 << 10;
+    /** Buffer size for files. It should always be a power of 2. */
+    private static final int FILE_BUFFER_SIZE = 1 << 13;
+
+    /** Messages shorter than this are not compressed. */
+    static final int COMPRESSION_THRESHOLD = 512;
+
+    /** Estimated size of packet headers and signature. */
+    private static final int MESSAGE_OVERHEAD = 256;
+    /** Estimated size of a session key packet. */
+    private static final int RECIPIENT_OVERHEAD = 540;
+
+    /** Per-thread random generator, seeding one is expensive. */
+    private static final ThreadLocal<SecureRandom> sRandom = new ThreadLocal<SecureRandom>() {
+        @Override
+        protected SecureRandom initialValue() {
+            return new SecureRandom();
+        }
+    };
+
+    /** Per-thread partial packets buffers for messages. */
+    private static final ThreadLocal<byte[][]> sMessageBuffers = new ThreadLocal<byte[][]>() {
+        @Override
+        protected byte[][] initialValue() {
+            return new byte[][] {
+                new byte[MESSAGE_BUFFER_SIZE],
+                new byte[MESSAGE_BUFFER_SIZE],
+            };
+        }
+    };
 
     private final EndpointServer mServer;
     private final PersonalKey mKey;
@@ -154,67 +188,109 @@ public class PGPCoder extends Coder {
 
         // secure the message against the most basic attacks using Message/CPIM
         CPIMMessage cpim = new CPIMMessage(from, to.toString(), new Date(), mime, data);
-        byte[] plainText = cpim.toByteArray();
 
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
-        ByteArrayInputStream in = new ByteArrayInputStream(plainText);
+        return encryptMessage(cpim.toByteArray(), getEncryptionKeys(),
+            mKey.getSignKeyPair(), from);
+    }
+
+    private PGPPublicKey[] getEncryptionKeys() {
+        PGPPublicKey[] keys = new PGPPublicKey[mRecipients.length];
+        for (int i = 0; i < keys.length; i++)
+            keys[i] = PGP.getEncryptionKey(mRecipients[i]);
+        return keys;
+    }
+
+    /**
+     * Encrypts and signs a message held in memory. Compression is skipped
+     * for short messages.
+     */
+    static byte[] encryptMessage(byte[] plainText, PGPPublicKey[] recipients,
+            PGPKeyPair signKey, String signerUserId) throws PGPException, IOException {
+
+        // session key packets, signature and framing take roughly this much
+        ByteArrayOutputStream out = new ByteArrayOutputStream(plainText.length +
+            MESSAGE_OVERHEAD + recipients.length * RECIPIENT_OVERHEAD);
+
+        int compression = plainText.length < COMPRESSION_THRESHOLD ?
+            CompressionAlgorithmTags.UNCOMPRESSED : PGPCompressedData.ZIP;
+
+        byte[][] buffers = sMessageBuffers.get();
+        Signer signer = openEncrypted(out, recipients, signKey, signerUserId,
+            compression, buffers[0], buffers[1]);
+
+        // length is known, write the literal data directly
+        PGPLiteralDataGenerator literalGen = new PGPLiteralDataGenerator();
+        OutputStream literalOut = literalGen.open(signer.out,
+            PGPLiteralData.BINARY, "", plainText.length, new Date());
+        literalOut.write(plainText);
+        signer.sigGen.update(plainText);
+        literalGen.close();
+
+        signer.close();
+        return out.toByteArray();
+    }
+
+    /** An open encrypted, compressed and signed stream. */
+    private static final class Signer {
+        final PGPEncryptedDataGenerator encGen;
+        final PGPCompressedDataGenerator compGen;
+        final PGPSignatureGenerator sigGen;
+        final OutputStream out;
+
+        Signer(PGPEncryptedDataGenerator encGen, PGPCompressedDataGenerator compGen,
+                PGPSignatureGenerator sigGen, OutputStream out) {
+            this.encGen = encGen;
+            this.compGen = compGen;
+            this.sigGen = sigGen;
+            this.out = out;
+        }
+
+        /** Writes the signature and closes all generators. */
+        void close() throws PGPException, IOException {
+            sigGen.generate().encode(out);
+            compGen.close();
+            encGen.close();
+        }
+    }
+
+    /**
+     * Opens the encryption and compression layers and writes the one-pass
+     * signature packet. Literal data must be written to the returned stream.
+     */
+    private static Signer openEncrypted(OutputStream output, PGPPublicKey[] recipients,
+            PGPKeyPair signKey, String signerUserId, int compression,
+            byte[] encBuffer, byte[] compBuffer) throws PGPException, IOException {
 
         // setup data encryptor & generator
         BcPGPDataEncryptorBuilder encryptor = new BcPGPDataEncryptorBuilder(PGPEncryptedData.AES_192);
         encryptor.setWithIntegrityPacket(true);
-        encryptor.setSecureRandom(new SecureRandom());
+        encryptor.setSecureRandom(sRandom.get());
 
         // add public key recipients
         PGPEncryptedDataGenerator encGen = new PGPEncryptedDataGenerator(encryptor);
-        for (PGPPublicKeyRing rcpt : mRecipients)
-            encGen.addMethod(new BcPublicKeyKeyEncryptionMethodGenerator(PGP.getEncryptionKey(rcpt)));
+        for (PGPPublicKey rcpt : recipients)
+            encGen.addMethod(new BcPublicKeyKeyEncryptionMethodGenerator(rcpt));
 
-        OutputStream encryptedOut = encGen.open(out, new byte[BUFFER_SIZE]);
+        OutputStream encryptedOut = encGen.open(output, encBuffer);
 
         // setup compressed data generator
-        PGPCompressedDataGenerator compGen = new PGPCompressedDataGenerator(PGPCompressedData.ZIP);
-        OutputStream compressedOut = compGen.open(encryptedOut, new byte[BUFFER_SIZE]);
+        PGPCompressedDataGenerator compGen = new PGPCompressedDataGenerator(compression);
+        OutputStream compressedOut = compGen.open(encryptedOut, compBuffer);
 
         // setup signature generator
         PGPSignatureGenerator sigGen = new PGPSignatureGenerator
-                (new BcPGPContentSignerBuilder(mKey.getSignKeyPair()
+                (new BcPGPContentSignerBuilder(signKey
                     .getPublicKey().getAlgorithm(), HashAlgorithmTags.SHA256));
-        sigGen.init(PGPSignature.BINARY_DOCUMENT, mKey.getSignKeyPair().getPrivateKey());
+        sigGen.init(PGPSignature.BINARY_DOCUMENT, signKey.getPrivateKey());
 
         PGPSignatureSubpacketGenerator spGen = new PGPSignatureSubpacketGenerator();
-        spGen.setSignerUserID(false, mKey.getUserId(mServer.getNetwork()));
+        spGen.setSignerUserID(false, signerUserId);
         sigGen.setUnhashedSubpackets(spGen.generate());
 
         sigGen.generateOnePassVersion(false)
             .encode(compressedOut);
 
-        // Initialize literal data generator
-        PGPLiteralDataGenerator literalGen = new PGPLiteralDataGenerator();
-        OutputStream literalOut = literalGen.open(
-            compressedOut,
-            PGPLiteralData.BINARY,
-            "",
-            new Date(),
-            new byte[BUFFER_SIZE]);
-
-        // read the "in" stream, compress, encrypt and write to the "out" stream
-        // this must be done if clear data is bigger than the buffer size
-        // but there are other ways to optimize...
-        byte[] buf = new byte[BUFFER_SIZE];
-        int len;
-        while ((len = in.read(buf)) > 0) {
-            literalOut.write(buf, 0, len);
-            sigGen.update(buf, 0, len);
-        }
-
-        in.close();
-        literalGen.close();
-        // Generate the signature, compress, encrypt and write to the "out" stream
-        sigGen.generate().encode(compressedOut);
-        compGen.close();
-        encGen.close();
-
-        return out.toByteArray();
+        return new Signer(encGen, compGen, sigGen, compressedOut);
     }
 
     @SuppressWarnings("unchecked")
@@ -485,59 +561,30 @@ public class PGPCoder extends Coder {
     @Override
     public void encryptFile(InputStream input, OutputStream output) throws GeneralSecurityException {
         try {
-            // setup data encryptor & generator
-            BcPGPDataEncryptorBuilder encryptor = new BcPGPDataEncryptorBuilder(PGPEncryptedData.AES_192);
-            encryptor.setWithIntegrityPacket(true);
-            encryptor.setSecureRandom(new SecureRandom());
-
-            // add public key recipients
-            PGPEncryptedDataGenerator encGen = new PGPEncryptedDataGenerator(encryptor);
-            for (PGPPublicKeyRing rcpt : mRecipients)
-                encGen.addMethod(new BcPublicKeyKeyEncryptionMethodGenerator(PGP.getEncryptionKey(rcpt)));
-
-            OutputStream encryptedOut = encGen.open(output, new byte[BUFFER_SIZE]);
-
-            // setup compressed data generator
-            PGPCompressedDataGenerator compGen = new PGPCompressedDataGenerator(PGPCompressedData.ZIP);
-            OutputStream compressedOut = compGen.open(encryptedOut, new byte[BUFFER_SIZE]);
-
-            // setup signature generator
-            PGPSignatureGenerator sigGen = new PGPSignatureGenerator
-                (new BcPGPContentSignerBuilder(mKey.getSignKeyPair()
-                    .getPublicKey().getAlgorithm(), HashAlgorithmTags.SHA256));
-            sigGen.init(PGPSignature.BINARY_DOCUMENT, mKey.getSignKeyPair().getPrivateKey());
-
-            PGPSignatureSubpacketGenerator spGen = new PGPSignatureSubpacketGenerator();
-            spGen.setSignerUserID(false, mKey.getUserId(mServer.getNetwork()));
-            sigGen.setUnhashedSubpackets(spGen.generate());
-
-            sigGen.generateOnePassVersion(false)
-                .encode(compressedOut);
+            Signer signer = openEncrypted(output, getEncryptionKeys(),
+                mKey.getSignKeyPair(), mKey.getUserId(mServer.getNetwork()),
+                PGPCompressedData.ZIP, new byte[FILE_BUFFER_SIZE], new byte[FILE_BUFFER_SIZE]);
 
             // Initialize literal data generator
             PGPLiteralDataGenerator literalGen = new PGPLiteralDataGenerator();
             OutputStream literalOut = literalGen.open(
-                compressedOut,
+                signer.out,
                 PGPLiteralData.BINARY,
                 "",
                 new Date(),
-                new byte[BUFFER_SIZE]);
+                new byte[FILE_BUFFER_SIZE]);
 
             // read the "in" stream, compress, encrypt and write to the "out" stream
-            // this must be done if clear data is bigger than the buffer size
-            // but there are other ways to optimize...
-            byte[] buf = new byte[BUFFER_SIZE];
+            byte[] buf = new byte[FILE_BUFFER_SIZE];
             int len;
             while ((len = input.read(buf)) > 0) {
                 literalOut.write(buf, 0, len);
-                sigGen.update(buf, 0, len);
+                signer.sigGen.update(buf, 0, len);
             }
 
             literalGen.close();
             // Generate the signature, compress, encrypt and write to the "out" stream
-            sigGen.generate().encode(compressedOut);
-            compGen.close();
-            encGen.close();
+            signer.close();
         }
         catch (PGPException e) {
             throw new GeneralSecurityException(e);
@@ -31,11 +31,18 @@ import org.spongycastle.openpgp.PGPPublicKeyRing;
 public class PGPLazyPublicKeyRingLoader {
 
     private byte[] mData;
+    private final int mEncodedLength;
 
     private PGPPublicKeyRing mKeyRing;
 
     public PGPLazyPublicKeyRingLoader(byte[] encoding) {
         mData = encoding;
+        mEncodedLength = encoding.length;
+    }
+
+    /** Returns the length of the keyring encoding, even after it was parsed. */
+    public int getEncodedLength() {
+        return mEncodedLength;
     }
 
     public PGPPublicKeyRing getPublicKeyRing() throws PGPException, IOException {
@@ -0,0 +1,307 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.data;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import android.content.ContentUris;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.drawable.Drawable;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.provider.ContactsContract;
+import android.provider.ContactsContract.Contacts;
+import android.support.v4.util.LruCache;
+import android.util.Log;
+
+import org.kontalk.R;
+import org.kontalk.data.Contact.ContactCallback;
+
+
+/**
+ * Loads contact avatars in the background. Photos are decoded to avatar
+ * size and kept in a memory cache sized by bytes; concurrent requests for
+ * the same contact share a single load.
+ * @author Daniele Ricci
+ */
+public final class AvatarLoader {
+    private static final String TAG = AvatarLoader.class.getSimpleName();
+
+    /** Number of loading threads. */
+    private static final int THREADS = 2;
+    /** Fraction of the heap used for the cache. */
+    private static final int CACHE_HEAP_FRACTION = 16;
+
+    /** A pending avatar request. */
+    public static final class Request {
+        private final ContactCallback mCallback;
+        private volatile boolean mCanceled;
+        private Task mTask;
+
+        Request(ContactCallback callback) {
+            mCallback = callback;
+        }
+    }
+
+    /** Loads the avatar of a contact for all requests waiting for it. */
+    private final class Task implements Runnable {
+        final Contact mContact;
+        final List<Request> mRequests = new ArrayList<>(1);
+        Future<?> mFuture;
+
+        Task(Contact contact) {
+            mContact = contact;
+        }
+
+        public void run() {
+            final Drawable avatar;
+            try {
+                avatar = mContact.getAvatar(mContext);
+            }
+            catch (Exception e) {
+                // do not throw any exception while loading
+                Log.w(TAG, "error while loading avatar", e);
+                return;
+            }
+            finally {
+                synchronized (mTasks) {
+                    if (mTasks.get(mContact.getJID()) == this)
+                        mTasks.remove(mContact.getJID());
+                }
+            }
+
+            final List<Request> requests;
+            synchronized (mTasks) {
+                requests = new ArrayList<>(mRequests);
+            }
+
+            mHandler.post(new Runnable() {
+                public void run() {
+                    for (Request request : requests) {
+                        if (!request.mCanceled)
+                            request.mCallback.avatarLoaded(mContact, avatar);
+                    }
+                }
+            });
+        }
+    }
+
+    private static AvatarLoader sInstance;
+
+    private final Context mContext;
+    private final Handler mHandler;
+    private final ExecutorService mExecutor;
+    private final LruCache<String, Bitmap> mCache;
+    private final int mAvatarSize;
+
+    /** Tasks being executed or waiting, by JID. Also used as lock for requests. */
+    private final Map<String, Task> mTasks = new HashMap<>();
+
+    private AvatarLoader(Context context) {
+        mContext = context.getApplicationContext();
+        mHandler = new Handler(Looper.getMainLooper());
+        mExecutor = Executors.newFixedThreadPool(THREADS, new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                return new Thread(new Runnable() {
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, "AvatarLoader");
+            }
+        });
+
+        int cacheSize = (int) (Runtime.getRuntime().maxMemory() / CACHE_HEAP_FRACTION);
+        mCache = new LruCache<String, Bitmap>(cacheSize) {
+            @Override
+            protected int sizeOf(String key, Bitmap value) {
+                return value.getRowBytes() * value.getHeight();
+            }
+        };
+
+        mAvatarSize = mContext.getResources().getDimensionPixelSize(R.dimen.avatar_size);
+    }
+
+    public static synchronized AvatarLoader getInstance(Context context) {
+        if (sInstance == null)
+            sInstance = new AvatarLoader(context);
+        return sInstance;
+    }
+
+    /** Removes the cached photo of the given user, or all photos if null. */
+    static void invalidate(String jid) {
+        AvatarLoader instance;
+        synchronized (AvatarLoader.class) {
+            instance = sInstance;
+        }
+
+        if (instance != null) {
+            if (jid != null)
+                instance.mCache.remove(jid);
+            else
+                instance.mCache.evictAll();
+        }
+    }
+
+    /** Returns the photo of the given user from the memory cache, or null. */
+    public Bitmap getCached(String jid) {
+        return mCache.get(jid);
+    }
+
+    /**
+     * Loads the avatar of a contact in the background. The callback will be
+     * called on the main thread.
+     */
+    public Request load(Contact contact, ContactCallback callback) {
+        Request request = new Request(callback);
+        synchronized (mTasks) {
+            Task task = mTasks.get(contact.getJID());
+            if (task == null) {
+                task = new Task(contact);
+                mTasks.put(contact.getJID(), task);
+                task.mFuture = mExecutor.submit(task);
+            }
+            task.mRequests.add(request);
+            request.mTask = task;
+        }
+        return request;
+    }
+
+    /**
+     * Cancels a request. The callback will not be called. The load is
+     * canceled too if no other request is waiting for it.
+     */
+    public void cancel(Request request) {
+        request.mCanceled = true;
+        synchronized (mTasks) {
+            Task task = request.mTask;
+            if (task != null) {
+                task.mRequests.remove(request);
+                if (task.mRequests.isEmpty() && task.mFuture.cancel(false)) {
+                    String jid = task.mContact.getJID();
+                    if (mTasks.get(jid) == task)
+                        mTasks.remove(jid);
+                }
+                request.mTask = null;
+            }
+        }
+    }
+
+    /**
+     * Returns the photo of the given contact decoded to avatar size, loading
+     * it if needed. Must not be called on the main thread.
+     * @return the photo, or null if the contact has none
+     */
+    Bitmap loadPhoto(Contact contact) {
+        Bitmap photo = mCache.get(contact.getJID());
+        if (photo == null) {
+            Uri uri = contact.getUri();
+            byte[] data = (uri != null) ? loadPhotoData(uri) : null;
+            if (data != null)
+                photo = decodePhoto(data, mAvatarSize);
+
+            if (photo != null)
+                mCache.put(contact.getJID(), photo);
+        }
+        return photo;
+    }
+
+    private byte[] loadPhotoData(Uri contactUri) {
+        byte[] data = null;
+
+        Uri uri;
+        try {
+            long cid = ContentUris.parseId(contactUri);
+            uri = ContentUris.withAppendedId(ContactsContract.Contacts.CONTENT_URI, cid);
+        }
+        catch (Exception e) {
+            uri = contactUri;
+        }
+
+        InputStream avatarDataStream = Contacts.openContactPhotoInputStream(
+                    mContext.getContentResolver(), uri);
+        if (avatarDataStream != null) {
+            try {
+                data = new byte[avatarDataStream.available()];
+                avatarDataStream.read(data, 0, data.length);
+            }
+            catch (IOException e) {
+                Log.e(TAG, "cannot retrieve contact avatar", e);
+            }
+            finally {
+                try {
+                    avatarDataStream.close();
+                }
+                catch (IOException e) {}
+            }
+        }
+
+        return data;
+    }
+
+    /** Decodes a photo so that its smaller side is not larger than the given size. */
+    static Bitmap decodePhoto(byte[] data, int size) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0)
+            return null;
+
+        options.inSampleSize = computeSampleSize(options.outWidth, options.outHeight, size);
+        options.inJustDecodeBounds = false;
+        Bitmap bitmap = BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        if (bitmap == null)
+            return null;
+
+        int minSide = Math.min(bitmap.getWidth(), bitmap.getHeight());
+        if (minSide > size) {
+            Bitmap scaled = Bitmap.createScaledBitmap(bitmap,
+                bitmap.getWidth() * size / minSide,
+                bitmap.getHeight() * size / minSide, true);
+            if (scaled != bitmap)
+                bitmap.recycle();
+            bitmap = scaled;
+        }
+        return bitmap;
+    }
+
+    /** Returns the largest power of 2 keeping the smaller side not below size. */
+    static int computeSampleSize(int width, int height, int size) {
+        int minSide = Math.min(width, height);
+        int sampleSize = 1;
+        while (minSide / (sampleSize * 2) >= size)
+            sampleSize *= 2;
+        return sampleSize;
+    }
+
+}
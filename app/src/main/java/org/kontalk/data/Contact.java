@@ -18,10 +18,9 @@
 
 package org.kontalk.data;
 
-import java.io.IOException;
-import java.io.InputStream;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import com.amulyakhare.textdrawable.TextDrawable;
 import com.amulyakhare.textdrawable.util.ColorGenerator;
@@ -35,12 +34,10 @@ import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.net.Uri;
 import android.provider.ContactsContract;
-import android.provider.ContactsContract.Contacts;
 import android.provider.ContactsContract.PhoneLookup;
 import android.support.v4.util.LruCache;
 import android.util.Log;
@@ -98,8 +95,10 @@ public class Contact {
 
     private boolean mBlocked;
 
-    private Drawable mAvatar;
-    private byte [] mAvatarData;
+    /** Generated avatar, used when no photo is available. */
+    private Drawable mRandomAvatar;
+    /** True if the system contact has no photo. */
+    private boolean mNoPhoto;
 
     private String mFingerprint;
     private PGPLazyPublicKeyRingLoader mTrustedKeyRing;
@@ -120,58 +119,128 @@ public class Contact {
     private static final Set<ContactChangeListener> sListeners = new HashSet<>();
 
     /**
-     * Contact cache.
+     * Contact cache, sized by estimated memory usage. Lookups don't hold any
+     * global lock while loading: concurrent requests for the same user wait
+     * for a single load, while other users can be loaded in parallel.
      * @author Daniele Ricci
      */
     private final static class ContactCache extends LruCache<String, Contact> {
-        private static final int MAX_ENTRIES = 20;
+        /** Fraction of the heap used for the cache. */
+        private static final int CACHE_HEAP_FRACTION = 64;
+        /** Estimated size of a contact, excluding strings and keyring. */
+        private static final int CONTACT_OVERHEAD = 256;
+        /**
+         * Estimated ratio between a parsed keyring and its encoding. The
+         * size of an entry must not change while cached, so a keyring is
+         * always accounted as parsed.
+         */
+        private static final int KEYRING_PARSED_FACTOR = 4;
+
+        /** Locks for contacts being loaded, by user ID. */
+        private final ConcurrentHashMap<String, Object> mLoading = new ConcurrentHashMap<>();
+        /** Incremented on every invalidation. Guarded by this. */
+        private int mGeneration;
 
         public ContactCache() {
-            super(MAX_ENTRIES);
+            super((int) (Runtime.getRuntime().maxMemory() / CACHE_HEAP_FRACTION));
         }
 
-        public synchronized Contact get(Context context, String userId, String numberHint) {
+        @Override
+        protected int sizeOf(String key, Contact value) {
+            return CONTACT_OVERHEAD + 2 * (length(key) + length(value.mName) +
+                length(value.mNumber) + length(value.mLookupKey) +
+                length(value.mStatus) + length(value.mFingerprint)) +
+                (value.mTrustedKeyRing != null ?
+                    value.mTrustedKeyRing.getEncodedLength() * KEYRING_PARSED_FACTOR : 0);
+        }
+
+        private static int length(String s) {
+            return s != null ? s.length() : 0;
+        }
+
+        public Contact get(Context context, String userId, String numberHint) {
             Contact c = get(userId);
-            if (c == null) {
-                c = _findByUserId(context, userId);
-                if (c != null) {
-                    // put the contact in the cache
-                    put(userId, c);
-                }
-                // try system contacts lookup
-                else if (numberHint != null) {
-                    Log.v(TAG, "contact not found, trying with system contacts (" + numberHint + ")");
-                    ContentResolver resolver = context.getContentResolver();
-                    Uri uri = Uri.withAppendedPath(PhoneLookup.CONTENT_FILTER_URI, Uri.encode(numberHint));
-                    Cursor cur = resolver.query(uri, new String[] {
-                                PhoneLookup.DISPLAY_NAME,
-                                PhoneLookup.LOOKUP_KEY,
-                                PhoneLookup._ID,
-                            }, null, null, null);
-                    if (cur.moveToFirst()) {
-                        String name = cur.getString(0);
-                        String lookupKey = cur.getString(1);
-                        long cid = cur.getLong(2);
-
-                        c = new Contact(cid, lookupKey, name, numberHint, userId, false);
-                        put(userId, c);
-
-                        // insert result into users database immediately
-                        ContentValues values = new ContentValues(6);
-                        values.put(Users.HASH, XmppStringUtils.parseLocalpart(userId));
-                        values.put(Users.NUMBER, numberHint);
-                        values.put(Users.DISPLAY_NAME, name);
-                        values.put(Users.JID, userId);
-                        values.put(Users.LOOKUP_KEY, lookupKey);
-                        values.put(Users.CONTACT_ID, cid);
-                        resolver.insert(Users.CONTENT_URI, values);
+            if (c != null)
+                return c;
+
+            Object lock = new Object();
+            Object current = mLoading.putIfAbsent(userId, lock);
+            if (current != null)
+                lock = current;
+
+            synchronized (lock) {
+                try {
+                    // another thread might have loaded it in the meantime
+                    c = get(userId);
+                    if (c == null) {
+                        int generation = getGeneration();
+                        c = load(context, userId, numberHint);
+                        if (c != null)
+                            put(userId, c, generation);
                     }
-                    cur.close();
+                }
+                finally {
+                    mLoading.remove(userId, lock);
                 }
             }
 
             return c;
         }
+
+        private synchronized int getGeneration() {
+            return mGeneration;
+        }
+
+        /** Caches a contact only if no invalidation occurred while loading it. */
+        private synchronized void put(String userId, Contact contact, int generation) {
+            if (generation == mGeneration)
+                put(userId, contact);
+        }
+
+        public synchronized void invalidate(String userId) {
+            mGeneration++;
+            remove(userId);
+        }
+
+        public synchronized void invalidate() {
+            mGeneration++;
+            evictAll();
+        }
+
+        private static Contact load(Context context, String userId, String numberHint) {
+            Contact c = _findByUserId(context, userId);
+            // try system contacts lookup
+            if (c == null && numberHint != null) {
+                Log.v(TAG, "contact not found, trying with system contacts (" + numberHint + ")");
+                ContentResolver resolver = context.getContentResolver();
+                Uri uri = Uri.withAppendedPath(PhoneLookup.CONTENT_FILTER_URI, Uri.encode(numberHint));
+                Cursor cur = resolver.query(uri, new String[] {
+                            PhoneLookup.DISPLAY_NAME,
+                            PhoneLookup.LOOKUP_KEY,
+                            PhoneLookup._ID,
+                        }, null, null, null);
+                if (cur.moveToFirst()) {
+                    String name = cur.getString(0);
+                    String lookupKey = cur.getString(1);
+                    long cid = cur.getLong(2);
+
+                    c = new Contact(cid, lookupKey, name, numberHint, userId, false);
+
+                    // insert result into users database immediately
+                    ContentValues values = new ContentValues(6);
+                    values.put(Users.HASH, XmppStringUtils.parseLocalpart(userId));
+                    values.put(Users.NUMBER, numberHint);
+                    values.put(Users.DISPLAY_NAME, name);
+                    values.put(Users.JID, userId);
+                    values.put(Users.LOOKUP_KEY, lookupKey);
+                    values.put(Users.CONTACT_ID, cid);
+                    resolver.insert(Users.CONTENT_URI, values);
+                }
+                cur.close();
+            }
+
+            return c;
+        }
     }
 
     private final static ContactCache cache = new ContactCache();
@@ -268,45 +337,42 @@ public class Contact {
                 ColorGenerator.MATERIAL.getColor(contact.mJID));
     }
 
-    public void getAvatarAsync(final Context context, final ContactCallback callback) {
-        if (mAvatar != null) {
-            callback.avatarLoaded(this, mAvatar);
+    /**
+     * Loads the avatar in the background, unless it's already available.
+     * @return the request to be canceled if the avatar is not needed
+     * anymore, or null if the callback has already been called
+     */
+    public AvatarLoader.Request getAvatarAsync(Context context, ContactCallback callback) {
+        AvatarLoader loader = AvatarLoader.getInstance(context);
+        Bitmap photo = loader.getCached(mJID);
+        if (photo != null) {
+            callback.avatarLoaded(this, new BitmapDrawable(context.getResources(), photo));
+            return null;
+        }
+        else if (mNoPhoto) {
+            callback.avatarLoaded(this, getAvatar(context));
+            return null;
         }
         else {
-            // start async load
-            new Thread(new Runnable() {
-                public void run() {
-                    try {
-                        Drawable avatar = getAvatar(context);
-                        callback.avatarLoaded(Contact.this, avatar);
-                    }
-                    catch (Exception e) {
-                        // do not throw any exception while loading
-                        Log.w(TAG, "error while loading avatar", e);
-                    }
-                }
-            }).start();
+            return loader.load(this, callback);
         }
     }
 
     public synchronized Drawable getAvatar(Context context) {
-        if (mAvatar == null) {
-            if (mAvatarData == null) {
-                Uri uri = getUri();
-                if (uri != null)
-                    mAvatarData = loadAvatarData(context, uri);
-            }
-
-            if (mAvatarData != null) {
-                Bitmap b = BitmapFactory.decodeByteArray(mAvatarData, 0, mAvatarData.length);
-                mAvatar = new BitmapDrawable(context.getResources(), b);
-            }
+        Bitmap photo = null;
+        if (!mNoPhoto) {
+            photo = AvatarLoader.getInstance(context).loadPhoto(this);
+            if (photo == null)
+                mNoPhoto = true;
         }
 
-        if (mAvatar == null)
-            mAvatar = generateRandomAvatar(context, this);
+        if (photo != null)
+            return new BitmapDrawable(context.getResources(), photo);
+
+        if (mRandomAvatar == null)
+            mRandomAvatar = generateRandomAvatar(context, this);
 
-        return mAvatar;
+        return mRandomAvatar;
     }
 
     private void clear() {
@@ -315,12 +381,14 @@ public class Contact {
     }
 
     public static void invalidate(String userId) {
-        cache.remove(userId);
+        cache.invalidate(userId);
+        AvatarLoader.invalidate(userId);
         fireContactInvalidated(userId);
     }
 
     public static void invalidate() {
-        cache.evictAll();
+        cache.invalidate();
+        AvatarLoader.invalidate(null);
         fireContactInvalidated(null);
     }
 
@@ -362,6 +430,7 @@ public class Contact {
         String jid = cursor.getString(COLUMN_JID);
         Contact c = cache.get(jid);
         if (c == null) {
+            int generation = cache.getGeneration();
             // don't let the cache fetch contact data again - we'll populate it
             final long contactId = cursor.getLong(COLUMN_CONTACT_ID);
             final String key = cursor.getString(COLUMN_LOOKUP_KEY);
@@ -380,7 +449,7 @@ public class Contact {
             if (trustedKeyring != null)
                 c.mTrustedKeyRing = new PGPLazyPublicKeyRingLoader(trustedKeyring);
 
-            cache.put(jid, c);
+            cache.put(jid, c, generation);
         }
         return c;
     }
@@ -452,37 +521,19 @@ public class Contact {
         return null;
     }
 
-    private static byte[] loadAvatarData(Context context, Uri contactUri) {
-        byte[] data = null;
+    /** Loads registered contacts into the cache, until it's full. */
+    public static void prefetch(Context context) {
+        Cursor c = queryContacts(context);
+        if (c == null)
+            return;
 
-        Uri uri;
         try {
-            long cid = ContentUris.parseId(contactUri);
-            uri = ContentUris.withAppendedId(ContactsContract.Contacts.CONTENT_URI, cid);
+            while (cache.size() < cache.maxSize() && c.moveToNext())
+                fromUsersCursor(c);
         }
-        catch (Exception e) {
-            uri = contactUri;
-        }
-
-        InputStream avatarDataStream = Contacts.openContactPhotoInputStream(
-                    context.getContentResolver(), uri);
-        if (avatarDataStream != null) {
-            try {
-                    data = new byte[avatarDataStream.available()];
-                    avatarDataStream.read(data, 0, data.length);
-            }
-            catch (IOException e) {
-                Log.e(TAG, "cannot retrieve contact avatar", e);
-            }
-            finally {
-                try {
-                    avatarDataStream.close();
-                }
-                catch (IOException e) {}
-            }
+        finally {
+            c.close();
         }
-
-        return data;
     }
 
     public static Cursor queryContacts(Context context) {
@@ -384,12 +384,68 @@ public class CompositeMessage {
                 cursor.getLong(COLUMN_ID)), null, null);
     }
 
-    public static void startQuery(AsyncQueryHandler handler, int token, long threadId) {
+    /**
+     * Starts a query for the messages of a thread. The query cookie will be
+     * the start ID.
+     * @param startId the oldest message to load, 0 to load from the first message
+     * @param endId the newest message to load, 0 to load up to the latest message
+     */
+    public static void startQuery(AsyncQueryHandler handler, int token, long threadId,
+            long startId, long endId) {
+        String selection = null;
+        if (startId > 0)
+            selection = Messages._ID + " >= " + startId;
+        if (endId > 0)
+            selection = (selection != null ? selection + " AND " : "") +
+                Messages._ID + " <= " + endId;
+
         // cancel previous operations
         handler.cancelOperation(token);
-        handler.startQuery(token, null,
+        handler.startQuery(token, startId,
                 ContentUris.withAppendedId(Conversations.CONTENT_URI, threadId),
-                MESSAGE_LIST_PROJECTION, null, null, Messages.DEFAULT_SORT_ORDER);
+                MESSAGE_LIST_PROJECTION, selection,
+                null, Messages.DEFAULT_SORT_ORDER);
+    }
+
+    /**
+     * Starts a query for the start of a page of messages. The result will
+     * contain the ID of the message coming count messages before the given
+     * one, or no rows if the beginning of the thread is reached first.
+     * @param beforeId the page will end before this message, 0 to end with
+     *                 the latest message
+     */
+    public static void startPageQuery(AsyncQueryHandler handler, int token,
+            long threadId, long beforeId, int count) {
+        startPageQuery(handler, token, threadId,
+            (beforeId > 0) ? Messages._ID + " < " + beforeId : null,
+            Messages.INVERTED_SORT_ORDER, count);
+    }
+
+    /**
+     * Starts a query for the end of a page of messages. The result will
+     * contain the ID of the message coming count messages after the given
+     * one, or no rows if the end of the thread is reached first.
+     * @param afterId the page will start after this message
+     */
+    public static void startNextPageQuery(AsyncQueryHandler handler, int token,
+            long threadId, long afterId, int count) {
+        startPageQuery(handler, token, threadId,
+            Messages._ID + " > " + afterId,
+            Messages.DEFAULT_SORT_ORDER, count);
+    }
+
+    private static void startPageQuery(AsyncQueryHandler handler, int token,
+            long threadId, String selection, String sortOrder, int count) {
+        // served by the (thread_id, _id) index
+        Uri uri = ContentUris.withAppendedId(Conversations.CONTENT_URI, threadId)
+            .buildUpon()
+            .appendQueryParameter(Messages.LIMIT, (count - 1) + ",1")
+            .build();
+
+        // cancel previous operations
+        handler.cancelOperation(token);
+        handler.startQuery(token, null, uri, new String[] { Messages._ID },
+                selection, null, sortOrder);
     }
 
     /** A sample text content from class name and mime type. */
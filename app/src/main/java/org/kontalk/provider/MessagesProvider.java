@@ -19,8 +19,13 @@
 package org.kontalk.provider;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import org.kontalk.BuildConfig;
 import org.kontalk.client.EndpointServer;
@@ -36,14 +41,18 @@ import org.kontalk.service.ServerListUpdater;
 
 import android.annotation.TargetApi;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.DatabaseUtils;
 import android.database.SQLException;
+import android.database.sqlite.SQLiteConstraintException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteQueryBuilder;
@@ -75,14 +84,20 @@ public class MessagesProvider extends ContentProvider {
     private static final int FULLTEXT_ID = 9;
     private static final int REQUESTS = 10;
 
+    /** Maximum length of {@link Messages#BODY_PREVIEW}. */
+    private static final int BODY_PREVIEW_LENGTH = 200;
+
     private DatabaseHelper dbHelper;
+    /** Notifications collected during a batch, null when no batch is running. */
+    private Set<Uri> mBatchNotifications;
+    private NotificationCoalescer mNotifier;
     private static final UriMatcher sUriMatcher;
     private static HashMap<String, String> messagesProjectionMap;
     private static HashMap<String, String> threadsProjectionMap;
     private static HashMap<String, String> fulltextProjectionMap;
 
-    private static class DatabaseHelper extends SQLiteOpenHelper {
-        private static final int DATABASE_VERSION = 8;
+    static class DatabaseHelper extends SQLiteOpenHelper {
+        private static final int DATABASE_VERSION = 10;
         private static final String DATABASE_NAME = "messages.db";
 
         private static final String _SCHEMA_MESSAGES = "(" +
@@ -170,43 +185,38 @@ public class MessagesProvider extends ContentProvider {
             "CREATE INDEX IF NOT EXISTS timestamp_message ON " + TABLE_MESSAGES +
             " (timestamp)";
 
-        /** Updates the thread messages count. */
-        private static final String UPDATE_MESSAGES_COUNT_NEW =
-            "UPDATE " + TABLE_THREADS + " SET count = (" +
-            "SELECT COUNT(_id) FROM " + TABLE_MESSAGES + " WHERE thread_id = new.thread_id" +
-            ") WHERE _id = new.thread_id";
-        private static final String UPDATE_MESSAGES_COUNT_OLD =
-            "UPDATE " + TABLE_THREADS + " SET count = (" +
-            "SELECT COUNT(_id) FROM " + TABLE_MESSAGES + " WHERE thread_id = old.thread_id" +
-            ") WHERE _id = old.thread_id";
-
-        /** Updates the thread unread count. */
-        private static final String UPDATE_UNREAD_COUNT_NEW =
-            "UPDATE " + TABLE_THREADS + " SET unread = (" +
-            "SELECT COUNT(_id) FROM " + TABLE_MESSAGES + " WHERE thread_id = new.thread_id " +
-            "AND unread <> 0) WHERE _id = new.thread_id";
-        private static final String UPDATE_UNREAD_COUNT_OLD =
-            "UPDATE " + TABLE_THREADS + " SET unread = (" +
-            "SELECT COUNT(_id) FROM " + TABLE_MESSAGES + " WHERE thread_id = old.thread_id " +
-            "AND unread <> 0) WHERE _id = old.thread_id";
-
-        /** Updates the thread new count. */
-        private static final String UPDATE_NEW_COUNT_NEW =
-            "UPDATE " + TABLE_THREADS + " SET \"new\" = (" +
-            "SELECT COUNT(_id) FROM " + TABLE_MESSAGES + " WHERE thread_id = new.thread_id " +
-            "AND \"new\" <> 0) WHERE _id = new.thread_id";
-        private static final String UPDATE_NEW_COUNT_OLD =
-            "UPDATE " + TABLE_THREADS + " SET \"new\" = (" +
-            "SELECT COUNT(_id) FROM " + TABLE_MESSAGES + " WHERE thread_id = old.thread_id " +
-            "AND \"new\" <> 0) WHERE _id = old.thread_id";
+        private static final String SCHEMA_MESSAGES_THREAD_TIMESTAMP_IDX =
+            "CREATE INDEX IF NOT EXISTS thread_timestamp_message ON " + TABLE_MESSAGES +
+            " (thread_id, timestamp)";
+
+        private static final String SCHEMA_MESSAGES_THREAD_ID_IDX =
+            "CREATE INDEX IF NOT EXISTS thread_id_message ON " + TABLE_MESSAGES +
+            " (thread_id, _id)";
 
-        /** Updates the thread status reflected by the latest message. */
         /*
-        private static final String UPDATE_STATUS_OLD =
-            "UPDATE " + TABLE_THREADS + " SET status = (" +
-            "SELECT status FROM " + TABLE_MESSAGES + " WHERE thread_id = old.thread_id ORDER BY timestamp DESC LIMIT 1)" +
+         * Thread counters are maintained incrementally: each trigger applies
+         * the delta caused by the OLD/NEW row instead of recounting the whole
+         * conversation. The only lookup left is the latest message status,
+         * which is served by the (thread_id, timestamp) index.
+         */
+
+        /** Adds the new row to the thread counters. */
+        private static final String INCREMENT_COUNTERS_NEW =
+            "UPDATE " + TABLE_THREADS + " SET " +
+            "count = count + 1, " +
+            "unread = unread + (new.unread <> 0), " +
+            "\"new\" = \"new\" + (new.\"new\" <> 0)" +
+            " WHERE _id = new.thread_id";
+
+        /** Removes the old row from the thread counters. */
+        private static final String DECREMENT_COUNTERS_OLD =
+            "UPDATE " + TABLE_THREADS + " SET " +
+            "count = count - 1, " +
+            "unread = unread - (old.unread <> 0), " +
+            "\"new\" = \"new\" - (old.\"new\" <> 0)" +
             " WHERE _id = old.thread_id";
-        */
+
+        /** Updates the thread status reflected by the latest message. */
         private static final String UPDATE_STATUS_NEW =
             "UPDATE " + TABLE_THREADS + " SET status = (" +
             "SELECT status FROM " + TABLE_MESSAGES + " WHERE thread_id = new.thread_id ORDER BY timestamp DESC LIMIT 1)" +
@@ -216,33 +226,65 @@ public class MessagesProvider extends ContentProvider {
         private static final String TRIGGER_THREADS_INSERT_COUNT =
             "CREATE TRIGGER update_thread_on_insert AFTER INSERT ON " + TABLE_MESSAGES +
             " BEGIN " +
-            UPDATE_MESSAGES_COUNT_NEW + ";" +
-            UPDATE_UNREAD_COUNT_NEW   + ";" +
-            UPDATE_NEW_COUNT_NEW      + ";" +
-            UPDATE_STATUS_NEW         + ";" +
+            INCREMENT_COUNTERS_NEW + ";" +
+            UPDATE_STATUS_NEW      + ";" +
             "END";
 
         /** This trigger will update the threads table counters on UPDATE. */
         private static final String TRIGGER_THREADS_UPDATE_COUNT =
-            "CREATE TRIGGER update_thread_on_update AFTER UPDATE ON " + TABLE_MESSAGES +
+            "CREATE TRIGGER update_thread_on_update AFTER UPDATE OF " +
+            "thread_id, unread, \"new\" ON " + TABLE_MESSAGES +
             " BEGIN " +
-            UPDATE_MESSAGES_COUNT_NEW + ";" +
-            UPDATE_UNREAD_COUNT_NEW   + ";" +
-            UPDATE_NEW_COUNT_NEW      + ";" +
-            UPDATE_STATUS_NEW         + ";" +
+            DECREMENT_COUNTERS_OLD + ";" +
+            INCREMENT_COUNTERS_NEW + ";" +
             "END";
 
+        /** This trigger will update the threads status on UPDATE. */
+        private static final String TRIGGER_THREADS_UPDATE_STATUS =
+            "CREATE TRIGGER update_thread_status_on_update AFTER UPDATE OF " +
+            "thread_id, status, timestamp ON " + TABLE_MESSAGES +
+            " BEGIN " +
+            UPDATE_STATUS_NEW + ";" +
+            "END";
 
         /** This trigger will update the threads table counters on DELETE. */
         private static final String TRIGGER_THREADS_DELETE_COUNT =
             "CREATE TRIGGER update_thread_on_delete AFTER DELETE ON " + TABLE_MESSAGES +
             " BEGIN " +
-            UPDATE_MESSAGES_COUNT_OLD + ";" +
-            UPDATE_UNREAD_COUNT_OLD   + ";" +
-            UPDATE_NEW_COUNT_OLD      + ";" +
-            // do not call this here -- UPDATE_STATUS_OLD         + ";" +
+            DECREMENT_COUNTERS_OLD + ";" +
+            // do not update status here -- updateThreadInfo will take care of it
             "END";
 
+        /** Rebuilds all thread counters and status from the messages table. */
+        private static final String REPAIR_THREADS =
+            "UPDATE " + TABLE_THREADS + " SET " +
+            "count = (SELECT COUNT(_id) FROM " + TABLE_MESSAGES +
+                " WHERE thread_id = " + TABLE_THREADS + "._id), " +
+            "unread = (SELECT COUNT(_id) FROM " + TABLE_MESSAGES +
+                " WHERE thread_id = " + TABLE_THREADS + "._id AND unread <> 0), " +
+            "\"new\" = (SELECT COUNT(_id) FROM " + TABLE_MESSAGES +
+                " WHERE thread_id = " + TABLE_THREADS + "._id AND \"new\" <> 0), " +
+            "status = COALESCE((SELECT status FROM " + TABLE_MESSAGES +
+                " WHERE thread_id = " + TABLE_THREADS + "._id ORDER BY timestamp DESC LIMIT 1), status)";
+
+        private static final String[] SCHEMA_UPGRADE_V8 = {
+            "DROP TRIGGER IF EXISTS update_thread_on_insert",
+            "DROP TRIGGER IF EXISTS update_thread_on_update",
+            "DROP TRIGGER IF EXISTS update_thread_on_delete",
+            SCHEMA_MESSAGES_THREAD_TIMESTAMP_IDX,
+            SCHEMA_MESSAGES_THREAD_ID_IDX,
+            TRIGGER_THREADS_INSERT_COUNT,
+            TRIGGER_THREADS_UPDATE_COUNT,
+            TRIGGER_THREADS_UPDATE_STATUS,
+            TRIGGER_THREADS_DELETE_COUNT,
+            // counters are deltas from now on, start from a consistent state
+            REPAIR_THREADS,
+        };
+
+        private static final String[] SCHEMA_UPGRADE_V9 = {
+            SCHEMA_MESSAGES_THREAD_ID_IDX,
+        };
+
         private static final String[] SCHEMA_UPGRADE_V4 = {
             // create temporary messages tables without msg_id UNIQUE constraint
             "CREATE TABLE " + TABLE_MESSAGES + "_new " + _SCHEMA_MESSAGES,
@@ -273,10 +315,17 @@ public class MessagesProvider extends ContentProvider {
             SCHEMA_MESSAGES_INDEX,
             // timestamp message index (for sorting)
             SCHEMA_MESSAGES_TIMESTAMP_IDX,
+            // thread/timestamp message index (for latest status lookup)
+            SCHEMA_MESSAGES_THREAD_TIMESTAMP_IDX,
+            // thread/id message index (for message list paging)
+            SCHEMA_MESSAGES_THREAD_ID_IDX,
             // triggers
             TRIGGER_THREADS_INSERT_COUNT,
             TRIGGER_THREADS_UPDATE_COUNT,
-            TRIGGER_THREADS_DELETE_COUNT
+            TRIGGER_THREADS_UPDATE_STATUS,
+            TRIGGER_THREADS_DELETE_COUNT,
+            // rebuild counters from copied messages
+            REPAIR_THREADS,
         };
 
         private Context mContext;
@@ -293,8 +342,11 @@ public class MessagesProvider extends ContentProvider {
             db.execSQL(SCHEMA_FULLTEXT);
             db.execSQL(SCHEMA_MESSAGES_INDEX);
             db.execSQL(SCHEMA_MESSAGES_TIMESTAMP_IDX);
+            db.execSQL(SCHEMA_MESSAGES_THREAD_TIMESTAMP_IDX);
+            db.execSQL(SCHEMA_MESSAGES_THREAD_ID_IDX);
             db.execSQL(TRIGGER_THREADS_INSERT_COUNT);
             db.execSQL(TRIGGER_THREADS_UPDATE_COUNT);
+            db.execSQL(TRIGGER_THREADS_UPDATE_STATUS);
             db.execSQL(TRIGGER_THREADS_DELETE_COUNT);
         }
 
@@ -323,12 +375,32 @@ public class MessagesProvider extends ContentProvider {
                     }
                 }
             }
+
+            else if (oldVersion == 8) {
+                for (String sql : SCHEMA_UPGRADE_V8)
+                    db.execSQL(sql);
+            }
+
+            else if (oldVersion == 9) {
+                for (String sql : SCHEMA_UPGRADE_V9)
+                    db.execSQL(sql);
+            }
+        }
+
+        /**
+         * Rebuilds thread counters and status by counting all messages.
+         * This is expensive and should be used only to recover from
+         * inconsistencies in the incremental counters.
+         */
+        public void repairThreads(SQLiteDatabase db) {
+            db.execSQL(REPAIR_THREADS);
         }
     }
 
     @Override
     public boolean onCreate() {
         dbHelper = new DatabaseHelper(getContext());
+        mNotifier = new NotificationCoalescer(getContext().getContentResolver());
         return true;
     }
 
@@ -390,7 +462,8 @@ public class MessagesProvider extends ContentProvider {
         }
 
         SQLiteDatabase db = dbHelper.getReadableDatabase();
-        Cursor c = qb.query(db, projection, selection, selectionArgs, null, null, sortOrder);
+        Cursor c = qb.query(db, projection, selection, selectionArgs, null, null, sortOrder,
+            uri.getQueryParameter(Messages.LIMIT));
 
         c.setNotificationUri(getContext().getContentResolver(), uri);
         return c;
@@ -508,12 +581,184 @@ public class MessagesProvider extends ContentProvider {
         }
         finally {
             endTransaction(db, success);
-            ContentResolver cr = getContext().getContentResolver();
-            for (Uri nuri : notifications)
-                cr.notifyChange(nuri, null);
+            // new messages should be shown right away
+            notifyChanges(notifications, true);
         }
     }
 
+    /**
+     * Inserts several messages in a single transaction. Messages are grouped
+     * by peer, so that each thread is updated only once, and change
+     * notifications are fired once per thread. Duplicate messages are
+     * skipped.
+     * @return the number of messages actually inserted
+     */
+    @Override
+    public synchronized int bulkInsert(Uri uri, ContentValues[] values) {
+        if (sUriMatcher.match(uri) != MESSAGES) { throw new IllegalArgumentException("Unknown URI " + uri); }
+        if (values == null) { throw new IllegalArgumentException("No data"); }
+
+        // group messages by peer, keeping arrival order
+        Map<String, List<ContentValues>> groups = new LinkedHashMap<String, List<ContentValues>>();
+        for (ContentValues v : values) {
+            String peer = v.getAsString(CommonColumns.PEER);
+            List<ContentValues> group = groups.get(peer);
+            if (group == null) {
+                group = new ArrayList<ContentValues>();
+                groups.put(peer, group);
+            }
+            group.add(new ContentValues(v));
+        }
+
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        boolean success = false;
+        List<Uri> notifications = new ArrayList<Uri>();
+        int count = 0;
+
+        try {
+            beginTransaction(db);
+
+            for (Map.Entry<String, List<ContentValues>> entry : groups.entrySet()) {
+                List<ContentValues> group = entry.getValue();
+
+                // the thread is created before inserting messages so the
+                // triggers can update its counters
+                long threadId = findThread(db, entry.getKey());
+                boolean created = false;
+                if (threadId < 0) {
+                    threadId = updateThreads(db, latestMessage(group), notifications, false);
+                    created = true;
+                }
+
+                List<ContentValues> inserted = new ArrayList<ContentValues>(group.size());
+                for (ContentValues v : group) {
+                    v.put(Messages.THREAD_ID, threadId);
+
+                    long rowId;
+                    try {
+                        rowId = db.insertOrThrow(TABLE_MESSAGES, null, v);
+                    }
+                    catch (SQLiteConstraintException e) {
+                        // duplicated message, skip it
+                        continue;
+                    }
+
+                    byte[] content = v.getAsByteArray(Messages.BODY_CONTENT);
+                    Boolean encrypted = v.getAsBoolean(Messages.ENCRYPTED);
+                    if (content != null && content.length > 0 && (encrypted == null || !encrypted.booleanValue())) {
+                        updateFulltext(db, rowId, threadId, content);
+                    }
+
+                    inserted.add(v);
+                }
+
+                if (inserted.size() > 0) {
+                    // update thread with the latest inserted message
+                    if (!created)
+                        updateThreads(db, latestMessage(inserted), notifications, false);
+
+                    notifications.add(ContentUris.withAppendedId(Threads.CONTENT_URI, threadId));
+                    notifications.add(ContentUris.withAppendedId(Conversations.CONTENT_URI, threadId));
+                    count += inserted.size();
+                }
+            }
+
+            if (count > 0)
+                notifications.add(uri);
+
+            success = setTransactionSuccessful(db);
+            return count;
+        }
+        finally {
+            endTransaction(db, success);
+            // new messages should be shown right away
+            notifyChanges(notifications, true);
+        }
+    }
+
+    /**
+     * Applies all operations in a single transaction. Change notifications
+     * are collected and fired once at the end of the batch.
+     */
+    @Override
+    public synchronized ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        boolean success = false;
+        Set<Uri> notifications = null;
+
+        beginTransaction(db);
+        mBatchNotifications = new LinkedHashSet<Uri>();
+        try {
+            ContentProviderResult[] results = super.applyBatch(operations);
+            success = setTransactionSuccessful(db);
+            return results;
+        }
+        finally {
+            notifications = mBatchNotifications;
+            mBatchNotifications = null;
+            endTransaction(db, success);
+            // batch changes are already collected
+            notifyChanges(notifications, true);
+        }
+    }
+
+    /** Returns the message with the most recent timestamp. */
+    private ContentValues latestMessage(List<ContentValues> messages) {
+        ContentValues latest = null;
+        long latestTimestamp = Long.MIN_VALUE;
+        for (ContentValues v : messages) {
+            Long timestamp = v.getAsLong(Messages.TIMESTAMP);
+            long ts = (timestamp != null) ? timestamp : 0;
+            if (latest == null || ts >= latestTimestamp) {
+                latest = v;
+                latestTimestamp = ts;
+            }
+        }
+        return latest;
+    }
+
+    private long findThread(SQLiteDatabase db, String peer) {
+        Cursor c = db.query(TABLE_THREADS, new String[] { Threads._ID },
+            Threads.PEER + " = ?", new String[] { peer }, null, null, null);
+        try {
+            return c.moveToFirst() ? c.getLong(0) : -1;
+        }
+        finally {
+            c.close();
+        }
+    }
+
+    private void notifyChanges(Collection<Uri> notifications) {
+        notifyChanges(notifications, false);
+    }
+
+    /**
+     * Fires change notifications for the given URIs, or queues them if a
+     * batch is running.
+     * @param now true to bypass coalescing
+     */
+    private void notifyChanges(Collection<Uri> notifications, boolean now) {
+        if (notifications == null)
+            return;
+
+        if (mBatchNotifications != null) {
+            mBatchNotifications.addAll(notifications);
+        }
+        else if (now) {
+            mNotifier.notifyChangesNow(notifications);
+        }
+        else {
+            mNotifier.notifyChanges(notifications);
+        }
+    }
+
+    private void notifyChange(Uri uri) {
+        List<Uri> notifications = new ArrayList<Uri>(1);
+        notifications.add(uri);
+        notifyChanges(notifications);
+    }
+
     private boolean isRequestPending(SQLiteDatabase db, String peer) {
         Cursor c = null;
         try {
@@ -644,6 +889,10 @@ public class MessagesProvider extends ContentProvider {
 
     @Override
     public synchronized int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+        if (sUriMatcher.match(uri) == THREADS &&
+                Boolean.parseBoolean(uri.getQueryParameter(Threads.REPAIR)))
+            return repairThreads();
+
         if (values == null) { throw new IllegalArgumentException("No data"); }
 
         String table;
@@ -803,10 +1052,25 @@ public class MessagesProvider extends ContentProvider {
         }
         finally {
             endTransaction(db, success);
-            ContentResolver cr = getContext().getContentResolver();
-            for (Uri nuri : notifications)
-                cr.notifyChange(nuri, null);
+            notifyChanges(notifications);
+        }
+    }
+
+    /** Rebuilds thread counters and status from scratch. */
+    private int repairThreads() {
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        boolean success = false;
+        try {
+            beginTransaction(db);
+            dbHelper.repairThreads(db);
+            success = setTransactionSuccessful(db);
+        }
+        finally {
+            endTransaction(db, success);
         }
+
+        notifyChange(Threads.CONTENT_URI);
+        return 0;
     }
 
     private void updateFulltext(SQLiteDatabase db, long id, long threadId, byte[] content) {
@@ -871,12 +1135,11 @@ public class MessagesProvider extends ContentProvider {
             case CONVERSATIONS_ID: {
                 int rows = deleteConversation(uri);
                 if (rows > 0) {
-                    ContentResolver cr = getContext().getContentResolver();
                     // first of all, notify conversation
-                    cr.notifyChange(uri, null);
+                    notifyChange(uri);
                     // then notify thread itself
                     long threadId = ContentUris.parseId(uri);
-                    cr.notifyChange(ContentUris.withAppendedId(Threads.CONTENT_URI, threadId), null);
+                    notifyChange(ContentUris.withAppendedId(Threads.CONTENT_URI, threadId));
                 }
                 return rows;
                 // END :)
@@ -904,10 +1167,9 @@ public class MessagesProvider extends ContentProvider {
                 }
 
                 if (num > 0) {
-                    ContentResolver cr = getContext().getContentResolver();
                     // notify conversations and threads
-                    cr.notifyChange(uri, null);
-                    cr.notifyChange(Threads.CONTENT_URI, null);
+                    notifyChange(uri);
+                    notifyChange(Threads.CONTENT_URI);
                 }
 
                 return num;
@@ -976,9 +1238,7 @@ public class MessagesProvider extends ContentProvider {
         }
         finally {
             endTransaction(db, success);
-            ContentResolver cr = getContext().getContentResolver();
-            for (Uri nuri : notifications)
-                cr.notifyChange(nuri, null);
+            notifyChanges(notifications);
         }
 
         return rows;
@@ -1080,7 +1340,8 @@ public class MessagesProvider extends ContentProvider {
     private void beginTransaction(SQLiteDatabase db) {
         if (android.os.Build.VERSION.SDK_INT >= 11)
             db.beginTransactionNonExclusive();
-        else
+        // API < 11 can't nest transactions, batch transaction will be used
+        else if (mBatchNotifications == null)
             // this is because API < 11 doesn't have beginTransactionNonExclusive()
             db.execSQL("BEGIN IMMEDIATE");
     }
@@ -1094,7 +1355,7 @@ public class MessagesProvider extends ContentProvider {
     private void endTransaction(SQLiteDatabase db, boolean success) {
         if (android.os.Build.VERSION.SDK_INT >= 11)
             db.endTransaction();
-        else
+        else if (mBatchNotifications == null)
             db.execSQL(success ? "COMMIT" : "ROLLBACK");
     }
 
@@ -1148,6 +1409,17 @@ public class MessagesProvider extends ContentProvider {
                 null);
     }
 
+    /**
+     * Rebuilds all thread counters by recounting messages. Counters are
+     * normally kept up to date incrementally by triggers, use this only to
+     * recover from an inconsistent state.
+     */
+    public static void repairThreads(Context context) {
+        Uri uri = Threads.CONTENT_URI.buildUpon()
+            .appendQueryParameter(Threads.REPAIR, "true").build();
+        context.getContentResolver().update(uri, null, null, null);
+    }
+
     public static int getThreadUnreadCount(Context context, long id) {
         int count = 0;
         ContentResolver res = context.getContentResolver();
@@ -1269,6 +1541,8 @@ public class MessagesProvider extends ContentProvider {
 
         messagesProjectionMap.put(Messages.BODY_MIME, Messages.BODY_MIME);
         messagesProjectionMap.put(Messages.BODY_CONTENT, Messages.BODY_CONTENT);
+        messagesProjectionMap.put(Messages.BODY_PREVIEW, "substr(CAST(" + Messages.BODY_CONTENT +
+            " AS TEXT), 1, " + BODY_PREVIEW_LENGTH + ") AS " + Messages.BODY_PREVIEW);
         messagesProjectionMap.put(Messages.BODY_LENGTH, Messages.BODY_LENGTH);
 
         messagesProjectionMap.put(Messages.ATTACHMENT_MIME, Messages.ATTACHMENT_MIME);
@@ -97,6 +97,8 @@ public final class MyMessages {
         public static final String BODY_MIME = "body_mime";
         public static final String BODY_CONTENT = "body_content";
         public static final String BODY_LENGTH = "body_length";
+        /** Read-only: the beginning of the text body, truncated by the database. */
+        public static final String BODY_PREVIEW = "body_preview";
 
         public static final String ATTACHMENT_MIME = "att_mime";
         public static final String ATTACHMENT_PREVIEW_PATH = "att_preview_path";
@@ -109,6 +111,9 @@ public final class MyMessages {
 
         public static final String SECURITY_FLAGS = "security_flags";
 
+        // uri parameter for query: maximum number of rows returned
+        public static final String LIMIT = "limit";
+
         // not DESC here because the listview is reverse-stacked
         public static final String DEFAULT_SORT_ORDER = _ID;
         public static final String INVERTED_SORT_ORDER = _ID + " DESC";
@@ -164,6 +169,9 @@ public final class MyMessages {
         public static final String DRAFT = "draft";
         public static final String REQUEST_STATUS = "request_status";
 
+        // uri parameter for update: rebuilds thread counters from messages
+        public static final String REPAIR = "repair";
+
         public static final String DEFAULT_SORT_ORDER = "timestamp DESC";
         public static final String INVERTED_SORT_ORDER = "timestamp";
     }
@@ -63,8 +63,14 @@ public class MyUsers {
         // uri parameter for update: used with resync, swap backup users table
         // with the real one
         public static final String COMMIT = "commit";
+        // uri parameter for update: used with resync, update only changed
+        // contacts instead of rebuilding the offline table
+        public static final String INCREMENTAL = "incremental";
         // uri parameter for select: use offline table
         public static final String OFFLINE = "offline";
+        // uri parameter for select: used with offline, select only users
+        // not found in the online table (i.e. never matched)
+        public static final String NEW = "new";
         // uri parameter for insert: discard name and number when updating
         // (e.g. update a subscription entry from an existing contact)
         public static final String DISCARD_NAME = "discardName";
@@ -0,0 +1,139 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.provider;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import org.kontalk.Log;
+
+
+/**
+ * Coalesces content change notifications. Changed URIs are collected in a
+ * dirty set and notified once after a short quiet window, so observers
+ * don't re-run their queries for every single change in a burst.
+ * @author Daniele Ricci
+ */
+class NotificationCoalescer {
+    private static final String TAG = NotificationCoalescer.class.getSimpleName();
+
+    /** Time without changes after which notifications are sent. */
+    private static final int QUIET_WINDOW = 100;
+    /** Maximum time a notification can be delayed during a burst. */
+    private static final int MAX_DELAY = 500;
+
+    private final ContentResolver mResolver;
+    private final Handler mHandler;
+
+    /** URIs waiting to be notified. Also used as lock. */
+    private final Set<Uri> mDirty = new LinkedHashSet<>();
+    /** Time the first pending URI was queued. */
+    private long mFirstDirty;
+
+    /** Notifications sent. */
+    private long mEmitted;
+    /** Notifications merged with a pending one. */
+    private long mCoalesced;
+
+    private final Runnable mFlush = new Runnable() {
+        public void run() {
+            flush();
+        }
+    };
+
+    public NotificationCoalescer(ContentResolver resolver) {
+        mResolver = resolver;
+        mHandler = new Handler(Looper.getMainLooper());
+    }
+
+    /** Queues notifications for the given URIs. */
+    public void notifyChanges(Collection<Uri> uris) {
+        synchronized (mDirty) {
+            long now = SystemClock.uptimeMillis();
+            if (mDirty.isEmpty())
+                mFirstDirty = now;
+
+            add(uris);
+
+            // wait for the quiet window, but don't starve observers
+            long delay = Math.min(QUIET_WINDOW, mFirstDirty + MAX_DELAY - now);
+            mHandler.removeCallbacks(mFlush);
+            mHandler.postDelayed(mFlush, Math.max(delay, 0));
+        }
+    }
+
+    /**
+     * Sends notifications for the given URIs immediately, together with
+     * any pending notification.
+     */
+    public void notifyChangesNow(Collection<Uri> uris) {
+        synchronized (mDirty) {
+            add(uris);
+        }
+        flush();
+    }
+
+    private void add(Collection<Uri> uris) {
+        for (Uri uri : uris) {
+            if (!mDirty.add(uri))
+                mCoalesced++;
+        }
+    }
+
+    /** Sends all pending notifications. */
+    public void flush() {
+        List<Uri> uris;
+        synchronized (mDirty) {
+            mHandler.removeCallbacks(mFlush);
+            if (mDirty.isEmpty())
+                return;
+
+            uris = new ArrayList<>(mDirty);
+            mDirty.clear();
+            mEmitted += uris.size();
+
+            Log.v(TAG, "notifications emitted: " + mEmitted + ", coalesced: " + mCoalesced);
+        }
+
+        for (Uri uri : uris)
+            mResolver.notifyChange(uri, null);
+    }
+
+    public long getEmittedCount() {
+        synchronized (mDirty) {
+            return mEmitted;
+        }
+    }
+
+    public long getCoalescedCount() {
+        synchronized (mDirty) {
+            return mCoalesced;
+        }
+    }
+
+}
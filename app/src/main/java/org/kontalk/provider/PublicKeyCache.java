@@ -0,0 +1,206 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.provider;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.spongycastle.openpgp.PGPPublicKey;
+import org.spongycastle.openpgp.PGPPublicKeyRing;
+
+import org.kontalk.client.EndpointServer;
+import org.kontalk.crypto.Coder;
+import org.kontalk.crypto.PGP;
+import org.kontalk.crypto.PersonalKey;
+
+import android.support.v4.util.LruCache;
+
+
+/**
+ * In-memory cache of parsed public keys and ready-to-use coders.
+ * Keys are cached by user and fingerprint, so a changed key is never
+ * served from the cache. Entries are also invalidated by
+ * {@link UsersProvider} whenever a key is written to the database.
+ * @author Daniele Ricci
+ */
+public final class PublicKeyCache {
+
+    /** Maximum number of cached public keys (per trust level). */
+    private static final int MAX_KEYS = 100;
+    /** Maximum number of cached coders. */
+    private static final int MAX_CODERS = 50;
+
+    /** A parsed public key. */
+    static final class KeyEntry {
+        final PGPPublicKeyRing ring;
+        final String fingerprint;
+
+        KeyEntry(PGPPublicKeyRing ring) {
+            PGPPublicKey master = PGP.getMasterKey(ring);
+            this.ring = ring;
+            this.fingerprint = (master != null) ? PGP.getFingerprint(master) : null;
+        }
+    }
+
+    /** A coder built for a given server and personal key. */
+    private static final class CoderEntry {
+        final EndpointServer server;
+        final PersonalKey key;
+        final Coder coder;
+
+        CoderEntry(EndpointServer server, PersonalKey key, Coder coder) {
+            this.server = server;
+            this.key = key;
+            this.coder = coder;
+        }
+
+        boolean matches(EndpointServer server, PersonalKey key) {
+            return this.key == key && this.server.equals(server);
+        }
+    }
+
+    private static final LruCache<String, KeyEntry> sTrustedKeys = new LruCache<>(MAX_KEYS);
+    private static final LruCache<String, KeyEntry> sUntrustedKeys = new LruCache<>(MAX_KEYS);
+    private static final LruCache<String, CoderEntry> sCoders = new LruCache<>(MAX_CODERS);
+
+    private static final AtomicLong sKeyHits = new AtomicLong();
+    private static final AtomicLong sKeyMisses = new AtomicLong();
+    private static final AtomicLong sCoderHits = new AtomicLong();
+    private static final AtomicLong sCoderMisses = new AtomicLong();
+
+    /** Incremented on every invalidation. Guarded by the class lock. */
+    private static int sGeneration;
+
+    private PublicKeyCache() {
+    }
+
+    private static LruCache<String, KeyEntry> keys(boolean trusted) {
+        return trusted ? sTrustedKeys : sUntrustedKeys;
+    }
+
+    private static String keyCacheKey(String jid, String fingerprint) {
+        return jid + '|' + fingerprint;
+    }
+
+    /**
+     * Returns the current generation. Read it before loading a key from
+     * the database and pass it to {@link #putKey}.
+     */
+    static synchronized int getGeneration() {
+        return sGeneration;
+    }
+
+    /** Returns the cached key entry for a user, or null if not cached. */
+    static KeyEntry getKey(String jid, String fingerprint, boolean trusted) {
+        KeyEntry entry = keys(trusted).get(keyCacheKey(jid, fingerprint));
+        if (entry != null)
+            sKeyHits.incrementAndGet();
+        else
+            sKeyMisses.incrementAndGet();
+        return entry;
+    }
+
+    /**
+     * Caches a key loaded from the database, only if no invalidation
+     * occurred while loading it.
+     */
+    static synchronized void putKey(String jid, boolean trusted, PGPPublicKeyRing ring, int generation) {
+        KeyEntry entry = new KeyEntry(ring);
+        if (generation == sGeneration && entry.fingerprint != null)
+            keys(trusted).put(keyCacheKey(jid, entry.fingerprint), entry);
+    }
+
+    /** Key for the encrypt coders cache. Recipients order doesn't matter. */
+    static String encryptCoderKey(String[] recipients) {
+        String[] sorted = recipients.clone();
+        Arrays.sort(sorted);
+        StringBuilder b = new StringBuilder("E");
+        for (String r : sorted)
+            b.append('|').append(r);
+        return b.toString();
+    }
+
+    static String decryptCoderKey(String sender) {
+        return "D|" + sender;
+    }
+
+    static Coder getCoder(String cacheKey, EndpointServer server, PersonalKey key) {
+        CoderEntry entry = sCoders.get(cacheKey);
+        if (entry != null && entry.matches(server, key)) {
+            sCoderHits.incrementAndGet();
+            return entry.coder;
+        }
+        sCoderMisses.incrementAndGet();
+        return null;
+    }
+
+    static synchronized void putCoder(String cacheKey, EndpointServer server, PersonalKey key,
+            Coder coder, int generation) {
+        if (generation == sGeneration)
+            sCoders.put(cacheKey, new CoderEntry(server, key, coder));
+    }
+
+    /** Invalidates cached keys for a user (and every coder). */
+    public static synchronized void invalidate(String jid) {
+        sGeneration++;
+        removeKeys(sTrustedKeys, jid);
+        removeKeys(sUntrustedKeys, jid);
+        // coders might include this user among other recipients
+        sCoders.evictAll();
+    }
+
+    private static void removeKeys(LruCache<String, KeyEntry> cache, String jid) {
+        String prefix = keyCacheKey(jid, "");
+        for (Map.Entry<String, KeyEntry> e : cache.snapshot().entrySet()) {
+            if (e.getKey().startsWith(prefix))
+                cache.remove(e.getKey());
+        }
+    }
+
+    /** Invalidates all cached keys and coders. */
+    public static synchronized void invalidate() {
+        sGeneration++;
+        sTrustedKeys.evictAll();
+        sUntrustedKeys.evictAll();
+        sCoders.evictAll();
+    }
+
+    public static long getKeyHits() {
+        return sKeyHits.get();
+    }
+
+    public static long getKeyMisses() {
+        return sKeyMisses.get();
+    }
+
+    public static long getCoderHits() {
+        return sCoderHits.get();
+    }
+
+    public static long getCoderMisses() {
+        return sCoderMisses.get();
+    }
+
+    public static String getStats() {
+        return "keys: " + sKeyHits.get() + " hits, " + sKeyMisses.get() + " misses; " +
+            "coders: " + sCoderHits.get() + " hits, " + sCoderMisses.get() + " misses";
+    }
+
+}
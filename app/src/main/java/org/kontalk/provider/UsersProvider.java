@@ -19,7 +19,12 @@
 package org.kontalk.provider;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
 
 import org.jxmpp.util.XmppStringUtils;
 import org.spongycastle.openpgp.PGPException;
@@ -27,10 +32,13 @@ import org.spongycastle.openpgp.PGPPublicKeyRing;
 
 import android.annotation.TargetApi;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.SQLException;
@@ -51,7 +59,6 @@ import org.kontalk.Kontalk;
 import org.kontalk.R;
 import org.kontalk.authenticator.Authenticator;
 import org.kontalk.client.EndpointServer;
-import org.kontalk.client.NumberValidator;
 import org.kontalk.crypto.Coder;
 import org.kontalk.crypto.PGP;
 import org.kontalk.crypto.PGPCoder;
@@ -59,20 +66,20 @@ import org.kontalk.crypto.PersonalKey;
 import org.kontalk.data.Contact;
 import org.kontalk.provider.MyUsers.Keys;
 import org.kontalk.provider.MyUsers.Users;
+import org.kontalk.sync.NumberNormalizer;
 import org.kontalk.sync.SyncAdapter;
-import org.kontalk.util.MessageUtils;
 import org.kontalk.util.Preferences;
-import org.kontalk.util.XMPPUtils;
 
 
 public class UsersProvider extends ContentProvider {
     public static final String AUTHORITY = BuildConfig.APPLICATION_ID + ".users";
 
-    private static final int DATABASE_VERSION = 8;
+    private static final int DATABASE_VERSION = 11;
     private static final String DATABASE_NAME = "users.db";
     private static final String TABLE_USERS = "users";
     private static final String TABLE_USERS_OFFLINE = "users_offline";
     private static final String TABLE_KEYS = "keys";
+    private static final String TABLE_NUMBERS = "numbers";
 
     private static final int USERS = 1;
     private static final int USERS_JID = 2;
@@ -83,7 +90,7 @@ public class UsersProvider extends ContentProvider {
     private static final UriMatcher sUriMatcher;
     private static HashMap<String, String> usersProjectionMap;
 
-    private static class DatabaseHelper extends SQLiteOpenHelper {
+    static class DatabaseHelper extends SQLiteOpenHelper {
         private static final String CREATE_TABLE_USERS = "(" +
             "_id INTEGER PRIMARY KEY," +
             "hash TEXT NOT NULL UNIQUE," +
@@ -101,10 +108,10 @@ public class UsersProvider extends ContentProvider {
             ")";
 
         /** This table will contain all the users in contact list .*/
-        private static final String SCHEMA_USERS =
+        static final String SCHEMA_USERS =
             "CREATE TABLE " + TABLE_USERS + " " + CREATE_TABLE_USERS;
 
-        private static final String SCHEMA_USERS_OFFLINE =
+        static final String SCHEMA_USERS_OFFLINE =
             "CREATE TABLE " + TABLE_USERS_OFFLINE + CREATE_TABLE_USERS;
 
         private static final String CREATE_TABLE_KEYS = "(" +
@@ -114,9 +121,28 @@ public class UsersProvider extends ContentProvider {
             ")";
 
         /** This table will contain keys verified (and trusted) by the user. */
-        private static final String SCHEMA_KEYS =
+        static final String SCHEMA_KEYS =
             "CREATE TABLE " + TABLE_KEYS + " " + CREATE_TABLE_KEYS;
 
+        /** Normalized phone numbers by contacts data ID, to speed up resync. */
+        static final String SCHEMA_NUMBERS =
+            "CREATE TABLE " + TABLE_NUMBERS + " (" +
+            "_id INTEGER PRIMARY KEY," +
+            "version INTEGER NOT NULL," +
+            // last update of the whole contact, -1 if not available
+            "contact_version INTEGER NOT NULL DEFAULT -1," +
+            "region TEXT," +
+            "raw TEXT NOT NULL," +
+            "number TEXT NOT NULL," +
+            "hash TEXT NOT NULL" +
+            ")";
+
+        /** Almost every lookup is done by JID (keys.jid is the primary key). */
+        static final String[] SCHEMA_JID_INDEXES = {
+            "CREATE INDEX IF NOT EXISTS users_jid_idx ON " + TABLE_USERS + " (jid)",
+            "CREATE INDEX IF NOT EXISTS users_offline_jid_idx ON " + TABLE_USERS_OFFLINE + " (jid)",
+        };
+
         private static final String[] SCHEMA_UPGRADE_V7 = {
             SCHEMA_KEYS,
             "INSERT INTO " + TABLE_KEYS + " SELECT jid, public_key, fingerprint FROM " + TABLE_USERS,
@@ -130,6 +156,10 @@ public class UsersProvider extends ContentProvider {
             SCHEMA_USERS_OFFLINE,
             "DROP TABLE IF EXISTS " + TABLE_KEYS,
             SCHEMA_KEYS,
+            SCHEMA_JID_INDEXES[0],
+            SCHEMA_JID_INDEXES[1],
+            "DROP TABLE IF EXISTS " + TABLE_NUMBERS,
+            SCHEMA_NUMBERS,
         };
 
         private Context mContext;
@@ -149,6 +179,9 @@ public class UsersProvider extends ContentProvider {
             db.execSQL(SCHEMA_USERS);
             db.execSQL(SCHEMA_USERS_OFFLINE);
             db.execSQL(SCHEMA_KEYS);
+            for (String sql : SCHEMA_JID_INDEXES)
+                db.execSQL(sql);
+            db.execSQL(SCHEMA_NUMBERS);
             mNew = true;
         }
 
@@ -159,6 +192,20 @@ public class UsersProvider extends ContentProvider {
                     // create keys table and trust anyone
                     for (String sql : SCHEMA_UPGRADE_V7)
                         db.execSQL(sql);
+                    // fall through
+                case 8:
+                    // index JID columns
+                    for (String sql : SCHEMA_JID_INDEXES)
+                        db.execSQL(sql);
+                    // fall through
+                case 9:
+                    // normalized numbers cache
+                    db.execSQL(SCHEMA_NUMBERS);
+                    break;
+                case 10:
+                    // contact changes tracking
+                    db.execSQL("ALTER TABLE " + TABLE_NUMBERS +
+                        " ADD COLUMN contact_version INTEGER NOT NULL DEFAULT -1");
                     break;
                 default:
                     for (String sql : SCHEMA_UPGRADE)
@@ -218,8 +265,36 @@ public class UsersProvider extends ContentProvider {
     @Override
     public Cursor query(Uri uri, String[] projection, String selection,
             String[] selectionArgs, String sortOrder) {
-        SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
         boolean offline = Boolean.parseBoolean(uri.getQueryParameter(Users.OFFLINE));
+        int match = sUriMatcher.match(uri);
+
+        Cursor c = null;
+        if (match == USERS_JID && sortOrder == null) {
+            // single user lookup: skip the query builder
+            String sql = buildJidQuery(projection, offline);
+            if (sql != null) {
+                SQLiteDatabase db = dbHelper.getReadableDatabase();
+                c = db.rawQuery(sql, new String[] { uri.getPathSegments().get(1) });
+            }
+        }
+
+        if (c == null) {
+            boolean newOnly = Boolean.parseBoolean(uri.getQueryParameter(Users.NEW));
+            c = queryUsers(uri, match, projection, selection, selectionArgs, sortOrder, offline, newOnly);
+        }
+
+        if (c.getCount() == 0) {
+            // request sync
+            SyncAdapter.requestSync(getContext(), false);
+        }
+
+        c.setNotificationUri(getContext().getContentResolver(), uri);
+        return c;
+    }
+
+    private Cursor queryUsers(Uri uri, int match, String[] projection, String selection,
+            String[] selectionArgs, String sortOrder, boolean offline, boolean newOnly) {
+        SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
 
         // use the same table name as an alias
         String table = offline ? (TABLE_USERS_OFFLINE + " " + TABLE_USERS) :
@@ -230,10 +305,13 @@ public class UsersProvider extends ContentProvider {
             TABLE_KEYS + "." + Keys.JID);
         qb.setProjectionMap(usersProjectionMap);
 
-        int match = sUriMatcher.match(uri);
         switch (match) {
             case USERS:
-                // nothing to do
+                // users never matched
+                if (offline && newOnly) {
+                    qb.appendWhere(TABLE_USERS + "." + Users.HASH + " NOT IN (SELECT " +
+                        Users.HASH + " FROM main." + TABLE_USERS + ")");
+                }
                 break;
 
             case USERS_JID:
@@ -248,14 +326,53 @@ public class UsersProvider extends ContentProvider {
         }
 
         SQLiteDatabase db = dbHelper.getReadableDatabase();
-        Cursor c = qb.query(db, projection, selection, selectionArgs, null, null, sortOrder);
-        if (c.getCount() == 0) {
-            // request sync
-            SyncAdapter.requestSync(getContext(), false);
+        return qb.query(db, projection, selection, selectionArgs, null, null, sortOrder);
+    }
+
+    /**
+     * Builds the SQL for looking up a single user by JID. The keys table is
+     * joined only if trusted key columns are requested. The same projection
+     * always produces the same SQL, so the compiled statement will be reused
+     * by SQLite statement cache.
+     * @return the query, or null if the projection can't be handled
+     */
+    static String buildJidQuery(String[] projection, boolean offline) {
+        if (projection == null || projection.length == 0)
+            return null;
+
+        boolean join = false;
+        for (String column : projection) {
+            if (!usersProjectionMap.containsKey(column))
+                return null;
+            if (Keys.TRUSTED_PUBLIC_KEY.equals(column) || Keys.TRUSTED_FINGERPRINT.equals(column))
+                join = true;
         }
 
-        c.setNotificationUri(getContext().getContentResolver(), uri);
-        return c;
+        StringBuilder sql = new StringBuilder("SELECT ");
+        for (int i = 0; i < projection.length; i++) {
+            if (i > 0)
+                sql.append(',');
+            String column = projection[i];
+            if (join) {
+                sql.append(usersProjectionMap.get(column))
+                    .append(" AS ")
+                    .append(column);
+            }
+            else {
+                sql.append(column);
+            }
+        }
+
+        // use the same table name as an alias
+        sql.append(" FROM ")
+            .append(offline ? TABLE_USERS_OFFLINE + " " + TABLE_USERS : TABLE_USERS);
+        if (join) {
+            sql.append(" LEFT OUTER JOIN " + TABLE_KEYS + " ON " +
+                TABLE_USERS + "." + Users.JID + "=" + TABLE_KEYS + "." + Keys.JID);
+        }
+        sql.append(" WHERE " + TABLE_USERS + "." + Users.JID + " = ?");
+
+        return sql.toString();
     }
 
     /** Reverse-lookup a userId hash to insert a new record to users table.
@@ -328,7 +445,8 @@ public class UsersProvider extends ContentProvider {
                     return 0;
                 }
                 else {
-                    return resync();
+                    return resync(Boolean.parseBoolean(uri
+                        .getQueryParameter(Users.INCREMENTAL)));
                 }
             }
             return 0;
@@ -351,6 +469,16 @@ public class UsersProvider extends ContentProvider {
     }
 
     private int updateUser(ContentValues values, boolean offline, String selection, String[] selectionArgs) {
+        try {
+            return updateUserInternal(values, offline, selection, selectionArgs);
+        }
+        finally {
+            if (!offline)
+                invalidateKeys(values);
+        }
+    }
+
+    private int updateUserInternal(ContentValues values, boolean offline, String selection, String[] selectionArgs) {
         SQLiteDatabase db = dbHelper.getWritableDatabase();
 
         int rc = db.update(offline ? TABLE_USERS_OFFLINE : TABLE_USERS, values, selection, selectionArgs);
@@ -372,7 +500,23 @@ public class UsersProvider extends ContentProvider {
 
     private int updateKey(ContentValues values, String selection, String[] selectionArgs) {
         SQLiteDatabase db = dbHelper.getWritableDatabase();
-        return db.update(TABLE_KEYS, values, selection, selectionArgs);
+        try {
+            return db.update(TABLE_KEYS, values, selection, selectionArgs);
+        }
+        finally {
+            PublicKeyCache.invalidate();
+        }
+    }
+
+    /** Invalidates cached public keys if the given values will change them. */
+    private void invalidateKeys(ContentValues values) {
+        if (values.containsKey(Users.PUBLIC_KEY) || values.containsKey(Users.FINGERPRINT)) {
+            String jid = values.getAsString(Users.JID);
+            if (jid != null)
+                PublicKeyCache.invalidate(jid);
+            else
+                PublicKeyCache.invalidate();
+        }
     }
 
     /** Commits the offline table to the online table. */
@@ -397,11 +541,19 @@ public class UsersProvider extends ContentProvider {
             endTransaction(db, success);
             // time to invalidate contacts cache
             Contact.invalidate();
+            // public keys might have changed too
+            PublicKeyCache.invalidate();
         }
     }
 
-    /** Triggers a complete resync of the users database. */
-    private int resync() {
+    /**
+     * Triggers a resync of the users database.
+     * @param incremental if true, the offline table will be filled with the
+     *                    contents of the online table and only changed
+     *                    contacts will be written to it; new contacts will
+     *                    not be inserted into the online table.
+     */
+    private int resync(boolean incremental) {
         Context context = getContext();
         ContentResolver cr = context.getContentResolver();
         SQLiteDatabase db = dbHelper.getWritableDatabase();
@@ -421,6 +573,18 @@ public class UsersProvider extends ContentProvider {
             db.execSQL(DatabaseHelper.SCHEMA_USERS_OFFLINE);
         }
 
+        // users currently in the offline table and users found in contacts
+        Set<String> existing;
+        Set<String> found = new HashSet<>();
+        if (incremental) {
+            // start from what we already know
+            db.execSQL("INSERT INTO " + TABLE_USERS_OFFLINE + " SELECT * FROM " + TABLE_USERS);
+            existing = loadHashes(db, TABLE_USERS_OFFLINE);
+        }
+        else {
+            existing = Collections.emptySet();
+        }
+
         // we are trying to be fast here
         SQLiteStatement stm = db.compileStatement("INSERT INTO " + TABLE_USERS_OFFLINE +
             " (hash, number, jid, display_name, lookup_key, contact_id, registered, public_key, fingerprint)" +
@@ -430,9 +594,24 @@ public class UsersProvider extends ContentProvider {
         // even if the data is dummy, it will be soon replaced by sync or by manual request
         SQLiteStatement onlineUpd = db.compileStatement("UPDATE " + TABLE_USERS +
             " SET number = ?, display_name = ?, lookup_key = ?, contact_id = ? WHERE hash = ?");
-        SQLiteStatement onlineIns = db.compileStatement("INSERT INTO " + TABLE_USERS +
+        // new users will be inserted in the online table only after matching (at commit)
+        SQLiteStatement onlineIns = incremental ? null : db.compileStatement("INSERT INTO " + TABLE_USERS +
             " (hash, number, jid, display_name, lookup_key, contact_id, registered, public_key, fingerprint)" +
             " VALUES(?, ?, ?, ?, ?, ?, ?, ?, ?)");
+        SQLiteStatement offlineUpd = db.compileStatement("UPDATE " + TABLE_USERS_OFFLINE +
+            " SET number = ?, display_name = ?, lookup_key = ?, contact_id = ? WHERE hash = ?");
+        SQLiteStatement offlineDel = db.compileStatement("DELETE FROM " + TABLE_USERS_OFFLINE +
+            " WHERE hash = ?");
+
+        // normalized numbers from the last resync
+        NumberNormalizer normalizer = new NumberNormalizer(context,
+            Authenticator.getDefaultAccountName(context));
+        String regionCode = normalizer.getRegionCode();
+        Map<Long, CachedNumber> numbers = loadNumbers(db);
+        SQLiteStatement numberIns = db.compileStatement("INSERT OR REPLACE INTO " + TABLE_NUMBERS +
+            " (_id, version, contact_version, region, raw, number, hash) VALUES(?, ?, ?, ?, ?, ?, ?)");
+        SQLiteStatement numberDel = db.compileStatement("DELETE FROM " + TABLE_NUMBERS +
+            " WHERE _id = ?");
 
         Cursor phones = null;
         String dialPrefix = Preferences.getDialPrefix(context);
@@ -443,9 +622,19 @@ public class UsersProvider extends ContentProvider {
                 ContactsContract.Contacts.IN_VISIBLE_GROUP + "=1 AND " :
                 "";
 
+            // contact changes (e.g. name or lookup key) don't change the
+            // phone data version; the contact timestamp is available on API 18+
+            boolean hasContactVersion = android.os.Build.VERSION.SDK_INT >=
+                android.os.Build.VERSION_CODES.JELLY_BEAN_MR2;
+            String[] projection = hasContactVersion ?
+                new String[] { Phone.NUMBER, Phone.DISPLAY_NAME, Phone.LOOKUP_KEY,
+                    Phone.CONTACT_ID, RawContacts.ACCOUNT_TYPE, Phone._ID, Phone.DATA_VERSION,
+                    Phone.CONTACT_LAST_UPDATED_TIMESTAMP } :
+                new String[] { Phone.NUMBER, Phone.DISPLAY_NAME, Phone.LOOKUP_KEY,
+                    Phone.CONTACT_ID, RawContacts.ACCOUNT_TYPE, Phone._ID, Phone.DATA_VERSION };
+
             // query for phone numbers
-            phones = cr.query(Phone.CONTENT_URI,
-                new String[] { Phone.NUMBER, Phone.DISPLAY_NAME, Phone.LOOKUP_KEY, Phone.CONTACT_ID, RawContacts.ACCOUNT_TYPE },
+            phones = cr.query(Phone.CONTENT_URI, projection,
                 where + " (" +
                 // this will filter out RawContacts from Kontalk
                 RawContacts.ACCOUNT_TYPE + " IS NULL OR " +
@@ -471,24 +660,64 @@ public class UsersProvider extends ContentProvider {
                     if (number.length() < 4)
                         continue;
 
-                    // fix number
-                    try {
-                        number = NumberValidator.fixNumber(context, number,
-                            Authenticator.getDefaultAccountName(context), 0);
+                    long dataId = phones.getLong(5);
+                    long version = phones.getLong(6);
+                    long contactVersion = hasContactVersion ? phones.getLong(7) : -1;
+                    String hash;
+                    boolean unchanged;
+
+                    CachedNumber cached = numbers.remove(dataId);
+                    if (cached != null && cached.matches(version, regionCode, number)) {
+                        // number didn't change since last time
+                        number = cached.number;
+                        hash = cached.hash;
+                        // contact might have been renamed though
+                        unchanged = contactVersion >= 0 && cached.contactVersion == contactVersion;
+                        if (cached.contactVersion != contactVersion)
+                            addCachedNumber(numberIns, dataId, version, contactVersion,
+                                regionCode, cached.raw, number, hash);
+                    }
+
+                    else {
+                        String raw = number;
+
+                        // fix number
+                        try {
+                            number = normalizer.normalize(number, 0);
+                        }
+                        catch (Exception e) {
+                            Log.e(SyncAdapter.TAG, "unable to normalize number: " + number + " - skipping", e);
+                            // skip number
+                            if (cached != null)
+                                numbers.put(dataId, cached);
+                            continue;
+                        }
+
+                        hash = NumberNormalizer.hash(number);
+                        addCachedNumber(numberIns, dataId, version, contactVersion,
+                            regionCode, raw, number, hash);
+                        unchanged = false;
                     }
-                    catch (Exception e) {
-                        Log.e(SyncAdapter.TAG, "unable to normalize number: " + number + " - skipping", e);
-                        // skip number
+
+                    // skip duplicate number
+                    if (found.contains(hash))
+                        continue;
+
+                    // already in the offline table, nothing to write
+                    if (unchanged && existing.contains(hash)) {
+                        found.add(hash);
+                        count++;
                         continue;
                     }
 
                     try {
-                        String hash = MessageUtils.sha1(number);
                         String lookupKey = phones.getString(2);
                         long contactId = phones.getLong(3);
-                        String jid = XMPPUtils.createLocalJID(getContext(), hash);
+                        String jid = normalizer.getJID(hash);
 
-                        addResyncContact(db, stm, onlineUpd, onlineIns,
+                        found.add(hash);
+                        addResyncContact(db, stm, existing.contains(hash) ? offlineUpd : null,
+                            onlineUpd, onlineIns,
                             hash, number, jid, name,
                             lookupKey, contactId, false, null, null);
                         count++;
@@ -548,8 +777,7 @@ public class UsersProvider extends ContentProvider {
 
                         // fix number
                         try {
-                            number = NumberValidator.fixNumber(context, number,
-                                    Authenticator.getDefaultAccountName(context), 0);
+                            number = normalizer.normalize(number, 0);
                         }
                         catch (Exception e) {
                             Log.e(SyncAdapter.TAG, "unable to normalize number: " + number + " - skipping", e);
@@ -558,11 +786,16 @@ public class UsersProvider extends ContentProvider {
                         }
 
                         try {
-                            String hash = MessageUtils.sha1(number);
-                            String jid = XMPPUtils.createLocalJID(getContext(), hash);
+                            String hash = NumberNormalizer.hash(number);
+                            String jid = normalizer.getJID(hash);
                             long contactId = phones.getLong(phones.getColumnIndex(BaseColumns._ID));
 
-                            addResyncContact(db, stm, onlineUpd, onlineIns,
+                            // skip duplicate number
+                            if (!found.add(hash))
+                                continue;
+
+                            addResyncContact(db, stm, existing.contains(hash) ? offlineUpd : null,
+                                onlineUpd, onlineIns,
                                 hash, number, jid, name,
                                 null, contactId,
                                 false, null, null);
@@ -595,14 +828,18 @@ public class UsersProvider extends ContentProvider {
                 Log.w(SyncAdapter.TAG, "unable to load personal key", e);
             }
             try {
-                String hash = MessageUtils.sha1(ownNumber);
-                String jid = XMPPUtils.createLocalJID(getContext(), hash);
-
-                addResyncContact(db, stm, onlineUpd, onlineIns,
-                    hash, ownNumber, jid, ownName,
-                    null, null,
-                    true, publicKeyData, fingerprint);
-                count++;
+                String hash = NumberNormalizer.hash(ownNumber);
+                String jid = normalizer.getJID(hash);
+
+                // skip duplicate number
+                if (found.add(hash)) {
+                    addResyncContact(db, stm, existing.contains(hash) ? offlineUpd : null,
+                        onlineUpd, onlineIns,
+                        hash, ownNumber, jid, ownName,
+                        null, null,
+                        true, publicKeyData, fingerprint);
+                    count++;
+                }
             }
             catch (IllegalArgumentException iae) {
                 Log.w(SyncAdapter.TAG, "doing sync with no server?");
@@ -611,6 +848,20 @@ public class UsersProvider extends ContentProvider {
                 // skip duplicate number
             }
 
+            // forget about deleted numbers
+            for (Long dataId : numbers.keySet()) {
+                numberDel.bindLong(1, dataId);
+                numberDel.execute();
+            }
+
+            // remove users not found in contacts anymore
+            for (String hash : existing) {
+                if (!found.contains(hash)) {
+                    offlineDel.bindString(1, hash);
+                    offlineDel.execute();
+                }
+            }
+
             success = setTransactionSuccessful(db);
         }
         finally {
@@ -618,6 +869,10 @@ public class UsersProvider extends ContentProvider {
             if (phones != null)
                 phones.close();
             stm.close();
+            numberIns.close();
+            numberDel.close();
+            offlineUpd.close();
+            offlineDel.close();
 
             // time to invalidate contacts cache (because of updates to online)
             Contact.invalidate();
@@ -625,10 +880,97 @@ public class UsersProvider extends ContentProvider {
         return count;
     }
 
-    private void addResyncContact(SQLiteDatabase db, SQLiteStatement stm, SQLiteStatement onlineUpd, SQLiteStatement onlineIns,
+    /** A phone number normalized during a previous resync. */
+    private static final class CachedNumber {
+        final long version;
+        final long contactVersion;
+        final String regionCode;
+        final String raw;
+        final String number;
+        final String hash;
+
+        CachedNumber(long version, long contactVersion, String regionCode,
+                String raw, String number, String hash) {
+            this.version = version;
+            this.contactVersion = contactVersion;
+            this.regionCode = regionCode;
+            this.raw = raw;
+            this.number = number;
+            this.hash = hash;
+        }
+
+        /** Returns true if the number can be used without parsing it again. */
+        boolean matches(long version, String regionCode, String raw) {
+            return this.version == version && this.raw.equals(raw) &&
+                (this.regionCode != null ? this.regionCode.equals(regionCode) : regionCode == null);
+        }
+    }
+
+    private Set<String> loadHashes(SQLiteDatabase db, String table) {
+        Set<String> hashes = new HashSet<>();
+        Cursor c = db.query(table, new String[] { Users.HASH },
+            null, null, null, null, null);
+        try {
+            while (c.moveToNext())
+                hashes.add(c.getString(0));
+        }
+        finally {
+            c.close();
+        }
+        return hashes;
+    }
+
+    private Map<Long, CachedNumber> loadNumbers(SQLiteDatabase db) {
+        Map<Long, CachedNumber> numbers = new HashMap<>();
+        Cursor c = db.query(TABLE_NUMBERS, new String[] {
+            "_id", "version", "contact_version", "region", "raw", "number", "hash"
+        }, null, null, null, null, null);
+        try {
+            while (c.moveToNext()) {
+                numbers.put(c.getLong(0), new CachedNumber(c.getLong(1), c.getLong(2),
+                    c.getString(3), c.getString(4), c.getString(5), c.getString(6)));
+            }
+        }
+        finally {
+            c.close();
+        }
+        return numbers;
+    }
+
+    private void addCachedNumber(SQLiteStatement stm, long dataId, long version, long contactVersion,
+            String regionCode, String raw, String number, String hash) {
+        stm.clearBindings();
+        stm.bindLong(1, dataId);
+        stm.bindLong(2, version);
+        stm.bindLong(3, contactVersion);
+        if (regionCode != null)
+            stm.bindString(4, regionCode);
+        else
+            stm.bindNull(4);
+        stm.bindString(5, raw);
+        stm.bindString(6, number);
+        stm.bindString(7, hash);
+        stm.executeInsert();
+    }
+
+    /**
+     * Adds a contact to the offline table and updates the online table.
+     * @param offlineUpd if not null, the contact already exists in the
+     *                   offline table and will be updated with this statement
+     * @param onlineIns if null, contacts not found in the online table will
+     *                  not be inserted into it
+     */
+    private void addResyncContact(SQLiteDatabase db, SQLiteStatement stm, SQLiteStatement offlineUpd,
+        SQLiteStatement onlineUpd, SQLiteStatement onlineIns,
         String hash, String number, String jid, String displayName, String lookupKey,
         Long contactId, boolean registered, byte[] publicKey, String fingerprint) {
 
+        if (offlineUpd != null) {
+            updateResyncContact(db, offlineUpd, hash, number, displayName, lookupKey, contactId);
+            updateResyncContact(db, onlineUpd, hash, number, displayName, lookupKey, contactId);
+            return;
+        }
+
         int i = 0;
 
         stm.clearBindings();
@@ -659,26 +1001,10 @@ public class UsersProvider extends ContentProvider {
         stm.executeInsert();
 
         // update online entry
-        i = 0;
-        onlineUpd.clearBindings();
-        onlineUpd.bindString(++i, number);
-        if (displayName != null)
-            onlineUpd.bindString(++i, displayName);
-        else
-            onlineUpd.bindNull(++i);
-        if (lookupKey != null)
-            onlineUpd.bindString(++i, lookupKey);
-        else
-            onlineUpd.bindNull(++i);
-        if (contactId != null)
-            onlineUpd.bindLong(++i, contactId);
-        else
-            onlineUpd.bindNull(++i);
-        onlineUpd.bindString(++i, hash);
-        int rows = executeUpdateDelete(db, onlineUpd);
+        int rows = updateResyncContact(db, onlineUpd, hash, number, displayName, lookupKey, contactId);
 
         // no contact found, insert a new dummy one
-        if (rows <= 0) {
+        if (rows <= 0 && onlineIns != null) {
             i = 0;
             onlineIns.clearBindings();
             onlineIns.bindString(++i, hash);
@@ -709,6 +1035,29 @@ public class UsersProvider extends ContentProvider {
         }
     }
 
+    /** Updates contact data of an existing user. */
+    private int updateResyncContact(SQLiteDatabase db, SQLiteStatement stm, String hash,
+        String number, String displayName, String lookupKey, Long contactId) {
+
+        int i = 0;
+        stm.clearBindings();
+        stm.bindString(++i, number);
+        if (displayName != null)
+            stm.bindString(++i, displayName);
+        else
+            stm.bindNull(++i);
+        if (lookupKey != null)
+            stm.bindString(++i, lookupKey);
+        else
+            stm.bindNull(++i);
+        if (contactId != null)
+            stm.bindLong(++i, contactId);
+        else
+            stm.bindNull(++i);
+        stm.bindString(++i, hash);
+        return executeUpdateDelete(db, stm);
+    }
+
     @Override
     public Uri insert(Uri uri, ContentValues values) {
         int match = sUriMatcher.match(uri);
@@ -730,6 +1079,16 @@ public class UsersProvider extends ContentProvider {
     }
 
     private Uri insertUser(ContentValues values, boolean offline, boolean discardName) {
+        try {
+            return insertUserInternal(values, offline, discardName);
+        }
+        finally {
+            if (!offline)
+                invalidateKeys(values);
+        }
+    }
+
+    private Uri insertUserInternal(ContentValues values, boolean offline, boolean discardName) {
         SQLiteDatabase db = dbHelper.getWritableDatabase();
 
         String table = offline ? TABLE_USERS_OFFLINE : TABLE_USERS;
@@ -781,6 +1140,8 @@ public class UsersProvider extends ContentProvider {
             }
         }
 
+        PublicKeyCache.invalidate(jid);
+
         if (rows >= 0)
             return Keys.CONTENT_URI.buildUpon().appendPath(jid).build();
         return null;
@@ -791,6 +1152,33 @@ public class UsersProvider extends ContentProvider {
         throw new SQLException("manual delete from users table not supported.");
     }
 
+    /**
+     * Applies all operations in a single transaction. The transaction is
+     * yielded to other threads on operations allowing it.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        boolean success = false;
+
+        beginTransaction(db);
+        try {
+            ContentProviderResult[] results = new ContentProviderResult[operations.size()];
+            for (int i = 0; i < results.length; i++) {
+                ContentProviderOperation op = operations.get(i);
+                if (i > 0 && op.isYieldAllowed())
+                    yieldTransaction(db);
+                results[i] = op.apply(this, results, i);
+            }
+            success = setTransactionSuccessful(db);
+            return results;
+        }
+        finally {
+            endTransaction(db, success);
+        }
+    }
+
     // avoid recreating the same object over and over
     private static ContentValues registeredValues;
 
@@ -807,6 +1195,12 @@ public class UsersProvider extends ContentProvider {
 
     /** Returns a {@link Coder} instance for encrypting data. */
     public static Coder getEncryptCoder(Context context, EndpointServer server, PersonalKey key, String[] recipients) {
+        String cacheKey = PublicKeyCache.encryptCoderKey(recipients);
+        int generation = PublicKeyCache.getGeneration();
+        Coder coder = PublicKeyCache.getCoder(cacheKey, server, key);
+        if (coder != null)
+            return coder;
+
         // get recipients public keys from users database
         PGPPublicKeyRing keys[] = new PGPPublicKeyRing[recipients.length];
         for (int i = 0; i < recipients.length; i++) {
@@ -817,17 +1211,46 @@ public class UsersProvider extends ContentProvider {
             keys[i] = ring;
         }
 
-        return new PGPCoder(server, key, keys);
+        coder = new PGPCoder(server, key, keys);
+        PublicKeyCache.putCoder(cacheKey, server, key, coder, generation);
+        return coder;
     }
 
     /** Returns a {@link Coder} instance for decrypting data. */
     public static Coder getDecryptCoder(Context context, EndpointServer server, PersonalKey key, String sender) {
+        String cacheKey = PublicKeyCache.decryptCoderKey(sender);
+        int generation = PublicKeyCache.getGeneration();
+        Coder coder = PublicKeyCache.getCoder(cacheKey, server, key);
+        if (coder != null)
+            return coder;
+
         PGPPublicKeyRing senderKey = getPublicKey(context, sender, true);
-        return new PGPCoder(server, key, senderKey);
+        coder = new PGPCoder(server, key, senderKey);
+        // signatures can't be verified without a key, try again next time
+        if (senderKey != null)
+            PublicKeyCache.putCoder(cacheKey, server, key, coder, generation);
+        return coder;
     }
 
     /** Retrieves the (un)trusted public key for a user. */
     public static PGPPublicKeyRing getPublicKey(Context context, String jid, boolean trusted) {
+        int generation = PublicKeyCache.getGeneration();
+        // the fingerprint is much cheaper to read than the whole key
+        String fingerprint = getFingerprint(context, jid, trusted);
+        if (fingerprint != null) {
+            PublicKeyCache.KeyEntry entry = PublicKeyCache.getKey(jid, fingerprint, trusted);
+            if (entry != null)
+                return entry.ring;
+        }
+
+        PGPPublicKeyRing ring = loadPublicKey(context, jid, trusted);
+        // missing keys are not cached, they might be available later
+        if (ring != null)
+            PublicKeyCache.putKey(jid, trusted, ring, generation);
+        return ring;
+    }
+
+    private static PGPPublicKeyRing loadPublicKey(Context context, String jid, boolean trusted) {
         byte[] keydata = null;
         ContentResolver res = context.getContentResolver();
         Cursor c = res.query(Users.CONTENT_URI.buildUpon()
@@ -940,6 +1363,12 @@ public class UsersProvider extends ContentProvider {
             db.execSQL("BEGIN IMMEDIATE");
     }
 
+    private void yieldTransaction(SQLiteDatabase db) {
+        // transactions started with execSQL can't be yielded
+        if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.HONEYCOMB)
+            db.yieldIfContendedSafely();
+    }
+
     private boolean setTransactionSuccessful(SQLiteDatabase db) {
         if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.HONEYCOMB)
             db.setTransactionSuccessful();
@@ -0,0 +1,197 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.service;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.jivesoftware.smack.SmackException;
+import org.jivesoftware.smack.XMPPException;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.kontalk.client.EndpointServer;
+import org.kontalk.client.KontalkConnection;
+import org.kontalk.client.ServerHistory;
+import org.kontalk.service.msgcenter.MessageCenterService;
+
+
+/**
+ * Races connections to several servers. Attempts are started a short time
+ * apart, or as soon as the previous one fails, and the first connection to
+ * complete TLS and stream negotiation wins. Late connections are closed.
+ * Results are recorded in {@link ServerHistory}.
+ * @author Daniele Ricci
+ */
+class ConnectionRacer {
+    private static final String TAG = MessageCenterService.TAG;
+
+    /**
+     * Delay before starting the next attempt. Attempts include TLS and
+     * stream negotiation, so this is longer than the usual 250 ms used for
+     * plain TCP.
+     */
+    private static final int STAGGER_DELAY = 2000;
+
+    /** Creates connections to the given servers. */
+    interface ConnectionFactory {
+        KontalkConnection create(EndpointServer server) throws XMPPException;
+    }
+
+    private final List<EndpointServer> mServers;
+    private final ConnectionFactory mFactory;
+
+    private final Object mLock = new Object();
+    /** The winning connection. */
+    private KontalkConnection mWinner;
+    /** True when the race is over. */
+    private boolean mClosed;
+
+    /**
+     * Creates a new racer.
+     * @param servers servers to try, in order of preference
+     * @param factory connection factory
+     */
+    ConnectionRacer(List<EndpointServer> servers, ConnectionFactory factory) {
+        mServers = servers;
+        mFactory = factory;
+    }
+
+    /**
+     * Runs the race.
+     * @return the first connected connection
+     * @throws InterruptedIOException if the calling thread was interrupted
+     */
+    public KontalkConnection race() throws XMPPException, SmackException, IOException {
+        int count = mServers.size();
+        ExecutorService executor = Executors.newFixedThreadPool(count);
+        CompletionService<KontalkConnection> attempts = new ExecutorCompletionService<>(executor);
+
+        KontalkConnection result = null;
+        Throwable lastError = null;
+        int started = 0;
+        int failed = 0;
+
+        try {
+            attempts.submit(new Attempt(mServers.get(started++)));
+
+            while (true) {
+                Future<KontalkConnection> done = (started < count) ?
+                    attempts.poll(STAGGER_DELAY, TimeUnit.MILLISECONDS) : attempts.take();
+
+                if (done != null) {
+                    try {
+                        result = done.get();
+                        return result;
+                    }
+                    catch (ExecutionException e) {
+                        lastError = e.getCause();
+                        if (++failed == count)
+                            break;
+                        // wait for running attempts
+                        if (started == count)
+                            continue;
+                    }
+                }
+
+                // attempt failed or too slow - start the next one
+                Log.d(TAG, "racing connection to " + mServers.get(started));
+                attempts.submit(new Attempt(mServers.get(started++)));
+            }
+        }
+        catch (InterruptedException e) {
+            throw new InterruptedIOException("connection interrupted");
+        }
+        finally {
+            synchronized (mLock) {
+                mClosed = true;
+                // we were interrupted after a connection won
+                if (result == null && mWinner != null)
+                    mWinner.instantShutdown();
+            }
+            executor.shutdown();
+        }
+
+        // all attempts failed
+        if (lastError instanceof XMPPException)
+            throw (XMPPException) lastError;
+        if (lastError instanceof SmackException)
+            throw (SmackException) lastError;
+        if (lastError instanceof IOException)
+            throw (IOException) lastError;
+        if (lastError instanceof RuntimeException)
+            throw (RuntimeException) lastError;
+        if (lastError instanceof Error)
+            throw (Error) lastError;
+
+        IOException ie = new IOException("unable to connect");
+        ie.initCause(lastError);
+        throw ie;
+    }
+
+    private final class Attempt implements Callable<KontalkConnection> {
+        private final EndpointServer mServer;
+
+        Attempt(EndpointServer server) {
+            mServer = server;
+        }
+
+        @Override
+        public KontalkConnection call() throws Exception {
+            KontalkConnection conn = mFactory.create(mServer);
+
+            long start = SystemClock.elapsedRealtime();
+            try {
+                conn.connect();
+            }
+            catch (Exception e) {
+                ServerHistory.failure(mServer);
+                Log.d(TAG, "connection to " + mServer + " failed: " + e);
+                conn.instantShutdown();
+                throw e;
+            }
+
+            long time = SystemClock.elapsedRealtime() - start;
+            ServerHistory.success(mServer, time);
+
+            synchronized (mLock) {
+                if (!mClosed && mWinner == null) {
+                    Log.d(TAG, "connected to " + mServer + " in " + time + " ms");
+                    mWinner = conn;
+                    return conn;
+                }
+            }
+
+            // another connection won
+            conn.instantShutdown();
+            throw new IOException("connection to " + mServer + " closed: race lost");
+        }
+    }
+
+}
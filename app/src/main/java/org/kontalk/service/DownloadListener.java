@@ -27,7 +27,7 @@ public interface DownloadListener {
      * Called when then download is about to start.
      * @param url
      * @param destination
-     * @param length the declared Content-Length
+     * @param length the total length of the file, -1 if unknown
      */
     public void start(String url, File destination, long length);
 
@@ -35,7 +35,8 @@ public interface DownloadListener {
      * Called now and then while receiving data in.
      * @param url
      * @param destination
-     * @param bytes how many bytes have been downloaded so far
+     * @param bytes how many bytes have been downloaded so far, including
+     *              data from previous attempts if the download was resumed
      */
     public void progress(String url, File destination, long bytes);
 
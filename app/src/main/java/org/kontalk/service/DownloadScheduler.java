@@ -0,0 +1,184 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.service;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+
+/**
+ * Runs downloads in parallel, limiting the number of concurrent downloads
+ * overall and per host. Pending downloads are started in order, but
+ * priority downloads go first.
+ * @author Daniele Ricci
+ */
+public class DownloadScheduler {
+
+    /** A download task. */
+    public interface Task extends Runnable {
+        /** Host the download connects to. */
+        String getHost();
+
+        /** Aborts the download if running. */
+        void abort();
+    }
+
+    public interface Callback {
+        /** Returns true if the download should be started before the others. */
+        boolean isPriority(String url);
+
+        /** Called when all downloads have been completed. */
+        void idle();
+    }
+
+    private final Executor mExecutor;
+    private final Callback mCallback;
+    private final int mMaxPerHost;
+    private int mMaxConcurrent;
+
+    /** Pending tasks, in submission order. */
+    private final Map<String, Task> mPending = new LinkedHashMap<>();
+    private final Map<String, Task> mRunning = new HashMap<>();
+    /** Running tasks per host. */
+    private final Map<String, Integer> mHosts = new HashMap<>();
+
+    public DownloadScheduler(Executor executor, int maxConcurrent, int maxPerHost, Callback callback) {
+        mExecutor = executor;
+        mMaxConcurrent = maxConcurrent;
+        mMaxPerHost = maxPerHost;
+        mCallback = callback;
+    }
+
+    /**
+     * Queues a download.
+     * @return false if the download is already queued or running
+     */
+    public synchronized boolean submit(String url, Task task) {
+        if (mPending.containsKey(url) || mRunning.containsKey(url))
+            return false;
+
+        mPending.put(url, task);
+        schedule();
+        return true;
+    }
+
+    /**
+     * Cancels a download, aborting it if already running.
+     * @return true if the download was still pending and will never run
+     */
+    public synchronized boolean cancel(String url) {
+        if (mPending.remove(url) != null) {
+            if (isIdle())
+                mCallback.idle();
+            return true;
+        }
+
+        Task task = mRunning.get(url);
+        if (task != null)
+            task.abort();
+
+        return false;
+    }
+
+    /** Changes the maximum number of concurrent downloads. */
+    public synchronized void setMaxConcurrent(int maxConcurrent) {
+        mMaxConcurrent = maxConcurrent;
+        schedule();
+    }
+
+    public synchronized boolean isIdle() {
+        return mPending.isEmpty() && mRunning.isEmpty();
+    }
+
+    public synchronized int getRunningCount() {
+        return mRunning.size();
+    }
+
+    /** Starts as many pending tasks as possible. */
+    private void schedule() {
+        while (mRunning.size() < mMaxConcurrent) {
+            String url = next();
+            if (url == null)
+                break;
+
+            start(url, mPending.remove(url));
+        }
+    }
+
+    /** Returns the next task that can be started. */
+    private String next() {
+        String first = null;
+        for (Map.Entry<String, Task> e : mPending.entrySet()) {
+            if (getHostCount(e.getValue().getHost()) < mMaxPerHost) {
+                String url = e.getKey();
+                if (mCallback.isPriority(url))
+                    return url;
+                if (first == null)
+                    first = url;
+            }
+        }
+        return first;
+    }
+
+    private void start(final String url, final Task task) {
+        mRunning.put(url, task);
+        String host = task.getHost();
+        mHosts.put(host, getHostCount(host) + 1);
+
+        mExecutor.execute(new Runnable() {
+            public void run() {
+                try {
+                    task.run();
+                }
+                finally {
+                    finished(url, task);
+                }
+            }
+        });
+    }
+
+    private synchronized void finished(String url, Task task) {
+        mRunning.remove(url);
+        String host = task.getHost();
+        int count = getHostCount(host) - 1;
+        if (count > 0)
+            mHosts.put(host, count);
+        else
+            mHosts.remove(host);
+
+        schedule();
+        if (isIdle())
+            mCallback.idle();
+    }
+
+    private int getHostCount(String host) {
+        Integer count = mHosts.get(host);
+        return count != null ? count : 0;
+    }
+
+    /** Removes all pending downloads and aborts running ones. */
+    public synchronized void cancelAll() {
+        mPending.clear();
+        for (Task task : mRunning.values())
+            task.abort();
+    }
+
+}
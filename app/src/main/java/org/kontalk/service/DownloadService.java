@@ -30,23 +30,37 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
-import java.util.LinkedHashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import android.app.IntentService;
 import android.app.Notification;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
+import android.app.Service;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
+import android.net.ConnectivityManager;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Process;
 import android.support.v4.app.NotificationCompat;
+import android.support.v4.net.ConnectivityManagerCompat;
 import android.util.Log;
 
 import org.kontalk.Kontalk;
@@ -75,14 +89,24 @@ import static org.kontalk.ui.MessagingNotification.NOTIFICATION_UPDATE_DELAY;
 
 /**
  * The attachment download service.
- * TODO implement multiple downloads in queue or in parallel
+ * Downloads are run in parallel by a {@link DownloadScheduler}.
  * @author Daniele Ricci
  */
-public class DownloadService extends IntentService implements DownloadListener {
+public class DownloadService extends Service implements DownloadListener {
     private static final String TAG = MessageCenterService.TAG;
 
+    /** Maximum concurrent downloads on unmetered networks. */
+    private static final int MAX_DOWNLOADS_UNMETERED = 4;
+    /** Maximum concurrent downloads on metered networks. */
+    private static final int MAX_DOWNLOADS_METERED = 2;
+    /** Maximum concurrent downloads from the same host. */
+    private static final int MAX_DOWNLOADS_PER_HOST = 2;
+
     /** A map to avoid duplicate downloads. */
-    private static final Map<String, Long> sQueue = new LinkedHashMap<>();
+    private static final Map<String, Long> sQueue = new ConcurrentHashMap<>();
+
+    /** Downloads currently visible to the user. */
+    private static volatile Set<String> sVisible = Collections.emptySet();
 
     public static final String ACTION_DOWNLOAD_URL = "org.kontalk.action.DOWNLOAD_URL";
     public static final String ACTION_DOWNLOAD_ABORT = "org.kontalk.action.DOWNLOAD_ABORT";
@@ -90,29 +114,134 @@ public class DownloadService extends IntentService implements DownloadListener {
     private ProgressNotificationBuilder mNotificationBuilder;
     private NotificationManager mNotificationManager;
 
-    // data about the download currently being processed
+    // data about the downloads currently being processed
     private Notification mCurrentNotification;
-    private long mTotalBytes;
     /** Step timer for notification updates. */
-    private StepTimer mUpdateTimer = new StepTimer(NOTIFICATION_UPDATE_DELAY);
+    private final StepTimer mUpdateTimer = new StepTimer(NOTIFICATION_UPDATE_DELAY);
+
+    /** Downloads being processed, by URL. */
+    private final Map<String, Download> mDownloads = new ConcurrentHashMap<>();
+
+    private ExecutorService mExecutor;
+    private DownloadScheduler mScheduler;
+    private Handler mHandler;
+    private int mLastStartId;
+
+    private PrivateKey mPrivateKey;
+    private X509Certificate mCertificate;
+
+    /** A single download. */
+    private final class Download implements DownloadScheduler.Task {
+        final String url;
+        final long messageId;
+        final String peer;
+        final boolean encrypted;
+        final Date timestamp;
+        final ClientHTTPConnection client;
+
+        volatile boolean canceled;
+        volatile long totalBytes;
+        volatile long bytes;
+
+        Download(String url, long messageId, String peer, boolean encrypted, Date timestamp) {
+            this.url = url;
+            this.messageId = messageId;
+            this.peer = peer;
+            this.encrypted = encrypted;
+            this.timestamp = timestamp;
+            this.client = new ClientHTTPConnection(DownloadService.this,
+                mPrivateKey, mCertificate);
+        }
+
+        @Override
+        public String getHost() {
+            String host = Uri.parse(url).getHost();
+            return host != null ? host : "";
+        }
+
+        @Override
+        public void abort() {
+            canceled = true;
+            client.abort();
+        }
+
+        @Override
+        public void run() {
+            try {
+                // download content
+                client.downloadAutofilename(url, MediaStorage.MEDIA_ROOT, timestamp, DownloadService.this);
+            }
+            catch (Exception e) {
+                error(url, null, e);
+            }
+            finally {
+                mDownloads.remove(url);
+                sQueue.remove(url);
+            }
+        }
+    }
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        mNotificationManager = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+        mHandler = new Handler();
+
+        mExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(final Runnable r) {
+                return new Thread(new Runnable() {
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, "Download-" + mCount.incrementAndGet());
+            }
+        });
 
-    private long mMessageId;
-    private String mPeer;
-    private boolean mEncrypted;
+        mScheduler = new DownloadScheduler(mExecutor, getMaxDownloads(),
+            MAX_DOWNLOADS_PER_HOST, new DownloadScheduler.Callback() {
+                @Override
+                public boolean isPriority(String url) {
+                    return sVisible.contains(url);
+                }
+
+                @Override
+                public void idle() {
+                    mHandler.post(new Runnable() {
+                        public void run() {
+                            onIdle();
+                        }
+                    });
+                }
+            });
+    }
 
-    private ClientHTTPConnection mDownloadClient;
-    private boolean mCanceled;
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        mScheduler.cancelAll();
+        mExecutor.shutdown();
+    }
 
-    public DownloadService() {
-        super(DownloadService.class.getSimpleName());
+    @Override
+    public IBinder onBind(Intent intent) {
+        return null;
     }
 
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
-        if (mNotificationManager == null)
-            mNotificationManager = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+        mLastStartId = startId;
 
-        if (ACTION_DOWNLOAD_ABORT.equals(intent.getAction())) {
+        String action = intent != null ? intent.getAction() : null;
+
+        if (ACTION_DOWNLOAD_URL.equals(action)) {
+            onDownloadURL(intent.getData(), intent.getExtras());
+        }
+
+        else if (ACTION_DOWNLOAD_ABORT.equals(action)) {
             final Uri uri = intent.getData();
             new Thread(new Runnable() {
                 @Override
@@ -122,15 +251,16 @@ public class DownloadService extends IntentService implements DownloadListener {
             }).start();
         }
 
-        return super.onStartCommand(intent, flags, startId);
-    }
+        if (mScheduler.isIdle())
+            onIdle();
 
-    @Override
-    protected void onHandleIntent(Intent intent) {
-        String action = intent.getAction();
+        return START_NOT_STICKY;
+    }
 
-        if (ACTION_DOWNLOAD_URL.equals(action)) {
-            onDownloadURL(intent.getData(), intent.getExtras());
+    private void onIdle() {
+        if (mScheduler.isIdle()) {
+            stopForeground();
+            stopSelf(mLastStartId);
         }
     }
 
@@ -140,79 +270,79 @@ public class DownloadService extends IntentService implements DownloadListener {
         // check if download has already been queued
         if (sQueue.get(url) != null) return;
 
-        // notify user about download immediately
-        startForeground(0);
-        mCanceled = false;
-
-        if (mDownloadClient == null) {
+        if (mPrivateKey == null) {
             PersonalKey key;
-            PrivateKey privateKey;
             try {
                 key = ((Kontalk) getApplication()).getPersonalKey();
-                privateKey = key.getBridgePrivateKey();
+                mPrivateKey = key.getBridgePrivateKey();
+                mCertificate = key.getBridgeCertificate();
             }
             catch (Exception e) {
                 // TODO i18n :)
                 errorNotification("ERROR", "NAUGHTY BOY/GIRL!");
                 return;
             }
+        }
 
-            mDownloadClient = new ClientHTTPConnection(this,
-                privateKey, key.getBridgeCertificate());
+        // check if external storage is available
+        if (!MediaStorage.isExternalStorageAvailable()) {
+            errorNotification(getString(R.string.notify_ticker_external_storage),
+                getString(R.string.notify_text_external_storage));
+            return;
         }
 
-        try {
-            // check if external storage is available
-            if (!MediaStorage.isExternalStorageAvailable()) {
-                errorNotification(getString(R.string.notify_ticker_external_storage),
-                    getString(R.string.notify_text_external_storage));
-                return;
-            }
+        // make sure storage directory is present
+        MediaStorage.MEDIA_ROOT.mkdirs();
 
-            // make sure storage directory is present
-            MediaStorage.MEDIA_ROOT.mkdirs();
+        long msgId = args.getLong(CompositeMessage.MSG_ID, 0);
+        String peer = args.getString(CompositeMessage.MSG_SENDER);
+        boolean encrypted = args.getBoolean(CompositeMessage.MSG_ENCRYPTED, false);
 
-            mMessageId = args.getLong(CompositeMessage.MSG_ID, 0);
-            mPeer = args.getString(CompositeMessage.MSG_SENDER);
-            mEncrypted = args.getBoolean(CompositeMessage.MSG_ENCRYPTED, false);
-            sQueue.put(url, mMessageId);
+        Date date = null;
+        long timestamp = args.getLong(CompositeMessage.MSG_TIMESTAMP);
+        if (timestamp > 0)
+            date = new Date(timestamp);
 
-            Date date = null;
-            long timestamp = args.getLong(CompositeMessage.MSG_TIMESTAMP);
-            if (timestamp > 0)
-                date = new Date(timestamp);
+        Download download = new Download(url, msgId, peer, encrypted, date);
+        sQueue.put(url, msgId);
+        mDownloads.put(url, download);
 
-            // download content
-            mDownloadClient.downloadAutofilename(url, MediaStorage.MEDIA_ROOT, date, this);
-        }
-        catch (Exception e) {
-            error(url, null, e);
-        }
-        finally {
+        // notify user about download immediately
+        startForeground();
+
+        // adapt to the current network
+        mScheduler.setMaxConcurrent(getMaxDownloads());
+        if (!mScheduler.submit(url, download)) {
+            mDownloads.remove(url);
             sQueue.remove(url);
-            mMessageId = 0;
-            mPeer = null;
         }
     }
 
     private void onDownloadAbort(Uri uri) {
         String url = uri.toString();
-        Long msgId = sQueue.get(url);
-        if (msgId != null) {
+        Download download = mDownloads.get(url);
+        if (download != null) {
+            download.canceled = true;
             // interrupt worker if running
-            if (msgId == mMessageId) {
-                mDownloadClient.abort();
-                mCanceled = true;
-            }
-            // remove from queue - will never be processed
-            else
+            if (mScheduler.cancel(url)) {
+                // removed from queue - will never be processed
+                mDownloads.remove(url);
                 sQueue.remove(url);
+            }
         }
     }
 
-    public void startForeground(long totalBytes) {
+    private int getMaxDownloads() {
+        ConnectivityManager cm = (ConnectivityManager) getSystemService(Context.CONNECTIVITY_SERVICE);
+        return ConnectivityManagerCompat.isActiveNetworkMetered(cm) ?
+            MAX_DOWNLOADS_METERED : MAX_DOWNLOADS_UNMETERED;
+    }
+
+    private void startForeground() {
+        if (mCurrentNotification != null)
+            return;
+
         Log.d(TAG, "starting foreground progress notification");
-        mTotalBytes = totalBytes;
 
         Intent ni = new Intent(getApplicationContext(), ConversationsActivity.class);
         // FIXME this intent should actually open the ComposeMessage activity
@@ -227,8 +357,9 @@ public class DownloadService extends IntentService implements DownloadListener {
                 pi);
         }
 
-        // if we don't know the content length yet, start an interminate progress
-        foregroundNotification(totalBytes > 0 ? 0 : -1);
+        // we don't know the content length yet, start an interminate progress
+        mUpdateTimer.reset();
+        foregroundNotification(-1);
         startForeground(NOTIFICATION_ID_DOWNLOADING, mCurrentNotification);
     }
 
@@ -240,40 +371,65 @@ public class DownloadService extends IntentService implements DownloadListener {
             .build();
     }
 
-    public void stopForeground() {
+    private void stopForeground() {
         stopForeground(true);
         mCurrentNotification = null;
-        mTotalBytes = 0;
+    }
+
+    /**
+     * Updates the progress notification with the aggregate progress of all
+     * running downloads. Indeterminate if some length is not known.
+     */
+    private void updateNotification(boolean force) {
+        synchronized (mUpdateTimer) {
+            if (mCurrentNotification == null || !(force || mUpdateTimer.isStep()))
+                return;
+
+            long total = 0;
+            long bytes = 0;
+            for (Download d : mDownloads.values()) {
+                if (d.totalBytes <= 0) {
+                    total = 0;
+                    break;
+                }
+                total += d.totalBytes;
+                bytes += d.bytes;
+            }
+
+            foregroundNotification(total > 0 ? (int) ((100 * bytes) / total) : -1);
+            // send the updates to the notification manager
+            mNotificationManager.notify(NOTIFICATION_ID_DOWNLOADING, mCurrentNotification);
+        }
     }
 
     @Override
     public void start(String url, File destination, long length) {
-        mUpdateTimer.reset();
-        startForeground(length);
+        Download download = mDownloads.get(url);
+        if (download != null) {
+            download.totalBytes = length;
+            download.bytes = 0;
+            updateNotification(true);
+        }
     }
 
     @Override
     public void completed(String url, String mime, File destination) {
+        Download download = mDownloads.get(url);
+        if (download == null)
+            return;
+
         Uri uri = Uri.fromFile(destination);
 
         ContentValues values = null;
 
         // encrypted file?
-        if (mEncrypted) {
-            mCurrentNotification = mNotificationBuilder
-                .progress(-1,
-                    R.string.attachment_download,
-                    R.string.decrypting_attachment)
-                .build();
-            // send the updates to the notification manager
-            mNotificationManager.notify(NOTIFICATION_ID_DOWNLOADING, mCurrentNotification);
-
+        if (download.encrypted) {
             InputStream in = null;
             OutputStream out = null;
             try {
                 EndpointServer server = Preferences.getEndpointServer(this);
                 PersonalKey key = ((Kontalk) getApplicationContext()).getPersonalKey();
-                Coder coder = UsersProvider.getDecryptCoder(this, server, key, mPeer);
+                Coder coder = UsersProvider.getDecryptCoder(this, server, key, download.peer);
                 if (coder != null) {
                     in = new FileInputStream(destination);
 
@@ -324,16 +480,13 @@ public class DownloadService extends IntentService implements DownloadListener {
             values = new ContentValues(1);
         values.put(Messages.ATTACHMENT_LOCAL_URI, uri.toString());
         getContentResolver().update(ContentUris
-            .withAppendedId(Messages.CONTENT_URI, mMessageId), values, null, null);
+            .withAppendedId(Messages.CONTENT_URI, download.messageId), values, null, null);
 
         // update media store
         MediaStorage.scanFile(this, destination, mime);
 
-        // stop foreground
-        stopForeground();
-
         // notify only if conversation is not open
-        if (!MessagingNotification.isPaused(mPeer)) {
+        if (!MessagingNotification.isPaused(download.peer)) {
 
             // detect mime type if not available
             if (mime == null)
@@ -364,8 +517,8 @@ public class DownloadService extends IntentService implements DownloadListener {
     @Override
     public void error(String url, File destination, Throwable exc) {
         Log.e(TAG, "download error", exc);
-        stopForeground();
-        if (!mCanceled)
+        Download download = mDownloads.get(url);
+        if (download == null || !download.canceled)
             errorNotification(getString(R.string.notify_ticker_download_error),
                 getString(R.string.notify_text_download_error));
     }
@@ -394,15 +547,22 @@ public class DownloadService extends IntentService implements DownloadListener {
 
     @Override
     public void progress(String url, File destination, long bytes) {
-        if (mCurrentNotification != null && (bytes >= mTotalBytes || mUpdateTimer.isStep())) {
-            int progress = (int) ((100 * bytes) / mTotalBytes);
-            foregroundNotification(progress);
-            // send the updates to the notification manager
-            mNotificationManager.notify(NOTIFICATION_ID_DOWNLOADING, mCurrentNotification);
+        Download download = mDownloads.get(url);
+        if (download != null) {
+            download.bytes = bytes;
+            updateNotification(download.totalBytes > 0 && bytes >= download.totalBytes);
         }
     }
 
     public static boolean isQueued(String url) {
         return sQueue.containsKey(url);
     }
+
+    /**
+     * Sets the downloads currently visible to the user. They will be
+     * started before any other pending download.
+     */
+    public static void setVisibleDownloads(Collection<String> urls) {
+        sVisible = Collections.unmodifiableSet(new HashSet<>(urls));
+    }
 }
@@ -23,8 +23,11 @@ import java.security.KeyStore;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
+import java.security.PrivateKey;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 import com.segment.backo.Backo;
@@ -41,6 +44,8 @@ import org.kontalk.Kontalk;
 import org.kontalk.authenticator.LegacyAuthentication;
 import org.kontalk.client.EndpointServer;
 import org.kontalk.client.KontalkConnection;
+import org.kontalk.client.ServerHistory;
+import org.kontalk.client.ServerList;
 import org.kontalk.crypto.PGP;
 import org.kontalk.crypto.PersonalKey;
 import org.kontalk.crypto.X509Bridge;
@@ -52,6 +57,7 @@ import org.spongycastle.openpgp.PGPException;
 
 import android.content.Context;
 import android.provider.Settings;
+import android.text.TextUtils;
 import android.util.Log;
 
 
@@ -68,6 +74,9 @@ public class XMPPConnectionHelper extends Thread {
     /** Max connection retry count if idle. */
     private static final int MAX_IDLE_BACKOFF = 10;
 
+    /** Max number of servers to race connections to. */
+    private static final int MAX_CANDIDATES = 3;
+
     /** Max retries after for authentication error. */
     private static final int MAX_AUTH_ERRORS = 3;
 
@@ -144,7 +153,7 @@ public class XMPPConnectionHelper extends Thread {
         connectOnce(key, null, forceLogin);
     }
 
-    private void connectOnce(PersonalKey key, String token, boolean forceLogin) throws XMPPException,
+    private void connectOnce(PersonalKey key, final String token, boolean forceLogin) throws XMPPException,
             SmackException, PGPException, IOException, KeyStoreException,
             NoSuchProviderException, NoSuchAlgorithmException, CertificateException {
 
@@ -161,38 +170,64 @@ public class XMPPConnectionHelper extends Thread {
             }
         }
 
+        boolean connected = false;
+
+        // reuse a closed connection if its stream can be resumed
+        if (mConn != null && mConn.isDisconnectedButSmResumptionPossible()) {
+            Log.d(TAG, "resuming stream");
+
+            if (mListener != null)
+                mListener.created(mConn);
+        }
+
         // recreate connection if closed
-        if (mConn == null || !mConn.isConnected()) {
+        else if (mConn == null || !mConn.isConnected()) {
 
             KeyStore trustStore = null;
-            boolean acceptAnyCertificate = Preferences.getAcceptAnyCertificate(mContext);
+            final boolean acceptAnyCertificate = Preferences.getAcceptAnyCertificate(mContext);
             if (!acceptAnyCertificate)
                 trustStore = InternalTrustStore.getTrustStore(mContext);
 
-            String resource = getResource(mContext);
+            final KeyStore connTrustStore = trustStore;
+            final String resource = getResource(mContext);
+            final PrivateKey privateKey = (key != null) ? key.getBridgePrivateKey() : null;
+            final X509Certificate bridgeCert = (key != null) ? key.getBridgeCertificate() : null;
+            // apply packet timeout based on retry count
+            final int packetTimeout = (mRetryCount + 1) * KontalkConnection.DEFAULT_PACKET_TIMEOUT;
+
+            ConnectionRacer racer = new ConnectionRacer(getCandidateServers(),
+                new ConnectionRacer.ConnectionFactory() {
+                    @Override
+                    public KontalkConnection create(EndpointServer server) throws XMPPException {
+                        KontalkConnection conn;
+                        if (privateKey == null) {
+                            conn = new KontalkConnection(resource, server, !USE_STARTTLS,
+                                acceptAnyCertificate, connTrustStore, token);
+                        }
 
-            if (key == null) {
-                mConn = new KontalkConnection(resource, mServer, !USE_STARTTLS,
-                    acceptAnyCertificate, trustStore, token);
-            }
+                        else {
+                            conn = new KontalkConnection(resource, server, !USE_STARTTLS,
+                                privateKey, bridgeCert,
+                                acceptAnyCertificate,
+                                connTrustStore, token);
+                        }
 
-            else {
-                mConn = new KontalkConnection(resource, mServer, !USE_STARTTLS,
-                    key.getBridgePrivateKey(),
-                    key.getBridgeCertificate(),
-                    acceptAnyCertificate,
-                    trustStore, token);
-            }
+                        conn.setPacketReplyTimeout(packetTimeout);
+                        return conn;
+                    }
+                });
 
-            // apply packet timeout based on retry count
-            mConn.setPacketReplyTimeout((mRetryCount + 1) * KontalkConnection.DEFAULT_PACKET_TIMEOUT);
+            // race connections to candidate servers
+            mConn = racer.race();
+            connected = true;
 
             if (mListener != null)
                 mListener.created(mConn);
         }
 
         // connect
-        mConn.connect();
+        if (!connected)
+            mConn.connect();
 
         if (mListener != null) {
             mConn.addConnectionListener(mListener);
@@ -267,8 +302,11 @@ public class XMPPConnectionHelper extends Thread {
                     if (mConn != null) {
                         // forcibly close connection, no matter what
                         mConn.instantShutdown();
-                        // EXTERMINATE!!
-                        mConn = null;
+                        // keep it if we can still try to resume the stream
+                        if (!mConn.isDisconnectedButSmResumptionPossible()) {
+                            // EXTERMINATE!!
+                            mConn = null;
+                        }
                     }
 
                     // SASL: not authorized
@@ -331,6 +369,31 @@ public class XMPPConnectionHelper extends Thread {
         mConnecting = false;
     }
 
+    /**
+     * Returns the servers to race connections to, best first: the configured
+     * server and other servers of the same network from the server list,
+     * unless a custom server was set.
+     */
+    private List<EndpointServer> getCandidateServers() {
+        List<EndpointServer> servers = new ArrayList<>();
+        servers.add(mServer);
+
+        if (TextUtils.isEmpty(Preferences.getServerURI(mContext))) {
+            ServerList list = ServerListUpdater.getCurrentList(mContext);
+            if (list != null) {
+                for (EndpointServer server : list) {
+                    if (!server.equals(mServer) &&
+                            mServer.getNetwork().equalsIgnoreCase(server.getNetwork()))
+                        servers.add(server);
+                }
+            }
+        }
+
+        ServerHistory.sort(servers);
+        return (servers.size() > MAX_CANDIDATES) ?
+            servers.subList(0, MAX_CANDIDATES) : servers;
+    }
+
     private static String getResource(Context context) {
         return Settings.Secure.getString(context.getContentResolver(), Settings.Secure.ANDROID_ID);
     }
@@ -368,6 +431,15 @@ public class XMPPConnectionHelper extends Thread {
         return mServer;
     }
 
+    /**
+     * Sets a connection closed on error to be resumed the next time we will
+     * connect. If the stream can't be resumed, a new connection will be
+     * created as usual.
+     */
+    public void setConnection(KontalkConnection conn) {
+        mConn = conn;
+    }
+
     /** Sets the server the next time we will connect to. */
     public void setServer(EndpointServer server) {
         mServer = server;
@@ -25,15 +25,24 @@ import org.jivesoftware.smack.XMPPConnection;
 
 
 /**
- * An adaptive ping manager.
+ * An adaptive ping manager. The ping interval is learned separately for
+ * each network, so moving between networks doesn't reset learning.
  * @author Daniele Ricci
  */
 public abstract class AbstractAdaptiveServerPingManager extends Manager {
 
     private static final Logger LOGGER = Logger.getLogger(AbstractAdaptiveServerPingManager.class.getName());
 
+    /** Ping interval used for networks never seen before. */
+    protected static final long DEFAULT_INTERVAL = 30 * 60 * 1000;
+
     protected boolean mEnabled = true;
 
+    /**
+     * Identity of the network the current state belongs to.
+     */
+    protected String mNetworkId;
+
     // All values are in milliseconds.
 
     /**
@@ -51,7 +60,16 @@ public abstract class AbstractAdaptiveServerPingManager extends Manager {
     /**
      * Interval for the next increase.
      */
-    protected static long mNextIncrease;
+    protected long mNextIncrease;
+
+    /**
+     * Pings since the current network was set.
+     */
+    protected long mWakeups;
+    /**
+     * Timestamp the current network was set.
+     */
+    protected long mWakeupsStart;
 
     protected AbstractAdaptiveServerPingManager(XMPPConnection connection) {
         super(connection);
@@ -69,12 +87,40 @@ public abstract class AbstractAdaptiveServerPingManager extends Manager {
 
     public abstract void onConnectivityChanged();
 
+    /**
+     * Switches to the state learned for the given network. Learning resumes
+     * from the last interval saved for that network.
+     */
+    protected void setNetwork(String networkId) {
+        if (networkId == null || !networkId.equals(mNetworkId)) {
+            // reset wakeup counter
+            mWakeups = 0;
+            mWakeupsStart = getElapsedRealtime();
+        }
+        mNetworkId = networkId;
+
+        // setup first alarm using last value for this network
+        setupPing(loadInterval(networkId, DEFAULT_INTERVAL));
+        // next increase can happen at least at next interval
+        mNextIncrease = loadNextIncrease(networkId, mInterval);
+        // reset internal variables
+        mLastSuccess = 0;
+        mLastSuccessInterval = 0;
+    }
+
+    /** Returns the average number of pings per hour on the current network. */
+    public float getWakeupsPerHour() {
+        long elapsed = getElapsedRealtime() - mWakeupsStart;
+        return (elapsed > 0) ? mWakeups * 3600000f / elapsed : 0;
+    }
+
     /**
      * Called by the ping failed listener.
      * It will half the interval for the next alarm.
      */
     public void pingFailed() {
         long interval;
+        mWakeups++;
 
         if (mLastSuccessInterval > 0) {
             // we were trying an increase, go back to previous value
@@ -98,6 +144,7 @@ public abstract class AbstractAdaptiveServerPingManager extends Manager {
     public void pingSuccess() {
         long nextAlarm = mInterval;
         long now = getElapsedRealtime();
+        mWakeups++;
 
         if (mLastSuccessInterval > 0) {
             // interval increase was successful, reset backoff
@@ -128,6 +175,12 @@ public abstract class AbstractAdaptiveServerPingManager extends Manager {
 
     protected abstract long getElapsedRealtime();
 
+    /** Returns the saved ping interval for the given network. */
+    protected abstract long loadInterval(String networkId, long defaultValue);
+
+    /** Returns the saved next increase interval for the given network. */
+    protected abstract long loadNextIncrease(String networkId, long defaultValue);
+
     protected void setNextIncreaseInterval(long interval) {
         // reset last successful interval
         mLastSuccessInterval = 0;
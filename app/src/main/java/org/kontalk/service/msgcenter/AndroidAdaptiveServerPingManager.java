@@ -19,6 +19,7 @@
 package org.kontalk.service.msgcenter;
 
 import java.util.Iterator;
+import java.util.Locale;
 import java.util.Map;
 import java.util.WeakHashMap;
 import java.util.logging.Level;
@@ -96,19 +97,28 @@ public class AndroidAdaptiveServerPingManager extends AbstractAdaptiveServerPing
     @Override
     public void onConnectionCompleted() {
         if (mContext != null) {
-            // setup first alarm using last value from preference
-            setupPing(Preferences.getPingAlarmInterval(mContext, AlarmManager.INTERVAL_HALF_HOUR));
-            // next increase can happen at least at next interval
-            mNextIncrease = Preferences.getPingAlarmBackoff(mContext, mInterval);
-            // reset internal variables
-            mLastSuccess = 0;
-            mLastSuccessInterval = 0;
+            setNetwork(SystemUtils.getCurrentNetworkIdentity(mContext));
         }
     }
 
     @Override
     public void onConnectivityChanged() {
-        onConnectionCompleted();
+        // keep learning if we are still on the same network
+        if (mContext != null) {
+            String networkId = SystemUtils.getCurrentNetworkIdentity(mContext);
+            if (networkId == null || !networkId.equals(mNetworkId))
+                setNetwork(networkId);
+        }
+    }
+
+    @Override
+    protected long loadInterval(String networkId, long defaultValue) {
+        return Preferences.getPingAlarmInterval(mContext, networkId, defaultValue);
+    }
+
+    @Override
+    protected long loadNextIncrease(String networkId, long defaultValue) {
+        return Preferences.getPingAlarmBackoff(mContext, networkId, defaultValue);
     }
 
     @Override
@@ -161,7 +171,7 @@ public class AndroidAdaptiveServerPingManager extends AbstractAdaptiveServerPing
             }
 
             // save value to preference for later retrieval
-            Preferences.setPingAlarmInterval(mContext, mInterval);
+            Preferences.setPingAlarmInterval(mContext, mNetworkId, mInterval);
 
             // remove difference from last received stanza
             long interval = mInterval;
@@ -173,7 +183,8 @@ public class AndroidAdaptiveServerPingManager extends AbstractAdaptiveServerPing
                     interval -= (now - lastStanza);
             }
 
-            LOGGER.log(Level.WARNING, "Setting alarm for next ping to " + mInterval + " ms (real " + interval + " ms)");
+            LOGGER.log(Level.WARNING, "Setting alarm for next ping to " + mInterval + " ms (real " + interval + " ms, " +
+                String.format(Locale.US, "%.1f", getWakeupsPerHour()) + " wakeups/hour)");
 
             if (SystemUtils.isOnWifi(mContext)) {
                 // when on WiFi we can afford an inexact ping (carrier will not destroy our connection)
@@ -199,7 +210,7 @@ public class AndroidAdaptiveServerPingManager extends AbstractAdaptiveServerPing
     @Override
     protected void setNextIncreaseInterval(long interval) {
         super.setNextIncreaseInterval(interval);
-        Preferences.setPingAlarmBackoff(mContext, mNextIncrease);
+        Preferences.setPingAlarmBackoff(mContext, mNetworkId, mNextIncrease);
     }
 
     public static void onConnected() {
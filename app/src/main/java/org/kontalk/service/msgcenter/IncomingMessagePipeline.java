@@ -0,0 +1,290 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.service.msgcenter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jivesoftware.smack.packet.Message;
+
+import org.kontalk.message.CompositeMessage;
+
+import android.os.Process;
+import android.util.Log;
+
+
+/**
+ * Staged pipeline for incoming messages. Stanzas are parsed by the caller,
+ * decrypted in parallel by a small worker pool and stored in batches by a
+ * single persistence thread, in the same order they were submitted (so
+ * ordering is also guaranteed for every peer).
+ * When too many messages are in flight, {@link #submit} will block the
+ * caller until the persistence stage catches up.
+ * @author Daniele Ricci
+ */
+class IncomingMessagePipeline {
+    private static final String TAG = MessageCenterService.TAG;
+
+    /** Maximum number of messages in flight. */
+    private static final int QUEUE_SIZE = 100;
+    /** Maximum number of messages stored in a single batch. */
+    private static final int BATCH_SIZE = 50;
+    /** Maximum number of decryption workers. */
+    private static final int MAX_WORKERS = 4;
+
+    /** Pipeline stages. */
+    interface Processor {
+        /**
+         * Builds the message from its stanza, decrypting it if needed.
+         * Called from a worker thread.
+         */
+        CompositeMessage process(Entry entry);
+
+        /**
+         * Stores a batch of messages. Called from the persistence thread.
+         */
+        void store(List<Entry> batch);
+    }
+
+    /** A message going through the pipeline. */
+    static final class Entry {
+        final Message stanza;
+        final String msgId;
+        final String from;
+        final long serverTimestamp;
+        final boolean receipt;
+        CompositeMessage message;
+
+        Entry(Message stanza, String msgId, String from, long serverTimestamp, boolean receipt) {
+            this.stanza = stanza;
+            this.msgId = msgId;
+            this.from = from;
+            this.serverTimestamp = serverTimestamp;
+            this.receipt = receipt;
+        }
+    }
+
+    /** Time counter for a pipeline stage. */
+    static final class StageCounter {
+        private final String mName;
+        private final AtomicLong mCount = new AtomicLong();
+        private final AtomicLong mTime = new AtomicLong();
+
+        StageCounter(String name) {
+            mName = name;
+        }
+
+        void add(long count, long startNanos) {
+            mCount.addAndGet(count);
+            mTime.addAndGet(System.nanoTime() - startNanos);
+        }
+
+        @Override
+        public String toString() {
+            long count = mCount.get();
+            long time = mTime.get() / 1000000;
+            return mName + ": " + count + " in " + time + " ms" +
+                (count > 0 ? " (" + ((float) time / count) + " ms each)" : "");
+        }
+    }
+
+    /** Marks the end of the queue. */
+    private static final Future<Entry> END = new FutureTask<>(new Callable<Entry>() {
+        public Entry call() {
+            return null;
+        }
+    });
+
+    private final Processor mProcessor;
+    private final BlockingQueue<Future<Entry>> mQueue;
+    private final ExecutorService mWorkers;
+    private final Thread mPersister;
+    private volatile boolean mClosed;
+
+    final StageCounter mParseCounter = new StageCounter("parse");
+    final StageCounter mWaitCounter = new StageCounter("backpressure");
+    final StageCounter mDecryptCounter = new StageCounter("decrypt");
+    final StageCounter mStoreCounter = new StageCounter("store");
+
+    public IncomingMessagePipeline(Processor processor) {
+        mProcessor = processor;
+        mQueue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+
+        int workers = Math.max(1, Math.min(MAX_WORKERS,
+            Runtime.getRuntime().availableProcessors()));
+        mWorkers = Executors.newFixedThreadPool(workers, new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(final Runnable r) {
+                return new Thread(new Runnable() {
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, "IncomingDecrypt-" + mCount.incrementAndGet());
+            }
+        });
+
+        mPersister = new Thread(new Runnable() {
+            public void run() {
+                persist();
+            }
+        }, "IncomingStore");
+        mPersister.start();
+    }
+
+    /**
+     * Queues a message for processing. Blocks if too many messages are
+     * waiting to be stored.
+     * @return false if the pipeline has been shut down
+     */
+    public synchronized boolean submit(final Entry entry) {
+        if (mClosed)
+            return false;
+
+        FutureTask<Entry> task = new FutureTask<>(new Callable<Entry>() {
+            public Entry call() {
+                long start = System.nanoTime();
+                entry.message = mProcessor.process(entry);
+                mDecryptCounter.add(1, start);
+                return entry;
+            }
+        });
+
+        // queue before executing so the number of messages in flight is bounded
+        long start = System.nanoTime();
+        try {
+            mQueue.put(task);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        mWaitCounter.add(1, start);
+
+        try {
+            mWorkers.execute(task);
+        }
+        catch (RejectedExecutionException e) {
+            // shutting down, process it here
+            task.run();
+        }
+        return true;
+    }
+
+    /**
+     * Stops accepting new messages. Messages already queued will still be
+     * processed and stored.
+     */
+    public synchronized void shutdown() {
+        if (mClosed)
+            return;
+
+        // submit holds the same lock, so END will be the last item queued
+        mClosed = true;
+        mWorkers.shutdown();
+        // wake up the persistence thread if it's waiting
+        try {
+            mQueue.put(END);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            Log.w(TAG, "interrupted while stopping incoming pipeline");
+        }
+    }
+
+    private void persist() {
+        List<Entry> batch = new ArrayList<>(BATCH_SIZE);
+        try {
+            while (true) {
+                Future<Entry> next = mQueue.poll();
+                if (next == null) {
+                    if (mClosed)
+                        break;
+                    next = mQueue.take();
+                }
+                if (next == END)
+                    break;
+
+                addEntry(batch, next);
+
+                // take any other message that is already decrypted
+                while (batch.size() < BATCH_SIZE) {
+                    next = mQueue.peek();
+                    if (next == null || next == END || !next.isDone())
+                        break;
+                    mQueue.poll();
+                    addEntry(batch, next);
+                }
+
+                if (batch.size() > 0) {
+                    int count = batch.size();
+                    long start = System.nanoTime();
+                    try {
+                        mProcessor.store(batch);
+                    }
+                    catch (Exception e) {
+                        Log.e(TAG, "unable to store incoming messages", e);
+                    }
+                    mStoreCounter.add(count, start);
+                    batch.clear();
+
+                    // end of a flood of messages
+                    if (count > 1 && mQueue.isEmpty())
+                        Log.v(TAG, "incoming pipeline: " + getStats());
+                }
+            }
+        }
+        catch (InterruptedException e) {
+            // exit
+        }
+
+        Log.v(TAG, "incoming pipeline stopped: " + getStats());
+    }
+
+    private void addEntry(List<Entry> batch, Future<Entry> future) throws InterruptedException {
+        try {
+            Entry entry = future.get();
+            if (entry != null && entry.message != null)
+                batch.add(entry);
+        }
+        catch (ExecutionException e) {
+            Log.e(TAG, "unable to process incoming message", e.getCause());
+        }
+    }
+
+    public String getStats() {
+        return mParseCounter + ", " + mWaitCounter + ", " +
+            mDecryptCounter + ", " + mStoreCounter;
+    }
+
+}
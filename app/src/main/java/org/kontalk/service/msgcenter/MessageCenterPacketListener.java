@@ -19,7 +19,9 @@
 package org.kontalk.service.msgcenter;
 
 import java.lang.ref.WeakReference;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import org.jivesoftware.smack.StanzaListener;
@@ -174,7 +176,7 @@ abstract class MessageCenterPacketListener implements StanzaListener {
             instance.pushRegister();
     }
 
-    protected Map<String, Long> getWaitingReceiptList() {
+    protected PendingReceiptIndex getWaitingReceiptList() {
         MessageCenterService instance = mInstance.get();
         return (instance != null) ? instance.mWaitingReceipt : null;
     }
@@ -187,6 +189,14 @@ abstract class MessageCenterPacketListener implements StanzaListener {
         return null;
     }
 
+    protected Map<String, Uri> incoming(List<CompositeMessage> msgs) {
+        MessageCenterService instance = mInstance.get();
+        if (instance != null)
+            return instance.incoming(msgs);
+
+        return Collections.emptyMap();
+    }
+
     protected IdleConnectionHandler getIdleHandler() {
         MessageCenterService instance = mInstance.get();
         return (instance != null) ? instance.mIdleHandler: null;
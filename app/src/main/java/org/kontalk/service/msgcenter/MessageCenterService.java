@@ -23,7 +23,9 @@ import java.io.IOException;
 import java.lang.ref.WeakReference;
 import java.security.GeneralSecurityException;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -68,6 +70,7 @@ import android.app.AlarmManager;
 import android.app.PendingIntent;
 import android.app.Service;
 import android.content.BroadcastReceiver;
+import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
@@ -330,6 +333,7 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
     private AlarmManager mAlarmManager;
 
     private PingFailedListener mPingFailedListener;
+    private MessageAckListener mAckListener;
 
     /** Cached last used server. */
     EndpointServer mServer;
@@ -337,6 +341,10 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
     private XMPPConnectionHelper mHelper;
     /** The connection instance. */
     KontalkConnection mConnection;
+    /** A connection closed on error, kept for stream resumption. */
+    private KontalkConnection mSuspendedConnection;
+    /** Time the last connection attempt was started. */
+    private long mConnectStartTime;
     /** My username (account name). */
     String mMyUsername;
 
@@ -350,6 +358,8 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
     Handler mHandler;
     /** Task execution pool. Generally used by packet listeners. */
     private ExecutorService mThreadPool;
+    /** Message listener (owns the incoming messages pipeline). */
+    private MessageListener mMessageListener;
 
     /** Idle handler. */
     IdleConnectionHandler mIdleHandler;
@@ -363,7 +373,16 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
     private boolean mFirstStart = true;
 
     /** Messages waiting for server receipt (packetId: internalStorageId). */
-    Map<String, Long> mWaitingReceipt = new HashMap<>();
+    final PendingReceiptIndex mWaitingReceipt = new PendingReceiptIndex(
+        new PendingReceiptIndex.DropListener() {
+            @Override
+            public void onDropped(long msgId) {
+                // release the hold taken when sending the message
+                IdleConnectionHandler handler = mIdleHandler;
+                if (handler != null)
+                    handler.release();
+            }
+        });
 
     private RegenerateKeyPairListener mKeyPairRegenerator;
     private ImportKeyPairListener mKeyPairImporter;
@@ -707,7 +726,22 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
         return mLocalBroadcastManager != null;
     }
 
-    private synchronized void quit(boolean restarting) {
+    private void quit(boolean restarting) {
+        quit(restarting, false);
+    }
+
+    /**
+     * Stops the message center.
+     * @param restarting true if the message center will be restarted
+     * @param suspend true to keep the connection for stream resumption (if
+     * possible) instead of disconnecting
+     */
+    private synchronized void quit(boolean restarting, boolean suspend) {
+        // keep the stream if it can be resumed
+        suspend = suspend && restarting && mConnection != null &&
+            mConnection.isDisconnectedButSmResumptionPossible();
+        mSuspendedConnection = null;
+
         if (!restarting) {
             // quit the idle handler
             mIdleHandler.quit();
@@ -725,6 +759,14 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
             mThreadPool = null;
         }
 
+        // stop incoming messages pipeline (pending messages will be stored)
+        if (mMessageListener != null) {
+            mMessageListener.shutdown();
+            if (suspend)
+                mConnection.removeSyncStanzaListener(mMessageListener);
+            mMessageListener = null;
+        }
+
         // disable listeners
         if (mHelper != null)
             mHelper.setListener(null);
@@ -746,8 +788,17 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
                 .setEnabled(false);
             PingManager.getInstanceFor(mConnection)
                 .unregisterPingFailedListener(mPingFailedListener);
-            // this is because of NetworkOnMainThreadException
-            new DisconnectThread(mConnection).start();
+            mPingFailedListener = null;
+
+            if (suspend) {
+                // socket has already been closed by Smack
+                Log.v(TAG, "keeping connection for stream resumption");
+                mSuspendedConnection = mConnection;
+            }
+            else {
+                // this is because of NetworkOnMainThreadException
+                new DisconnectThread(mConnection).start();
+            }
             mConnection = null;
         }
 
@@ -1153,11 +1204,11 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
             // acquire the wakelock
             mWakeLock.acquire();
 
+            mConnectStartTime = SystemClock.elapsedRealtime();
+
             // reset push notification variable
             mPushNotifications = Preferences.getPushNotificationsEnabled(this) &&
                 mPushService.isServiceAvailable();
-            // reset waiting messages
-            mWaitingReceipt.clear();
 
             // setup task execution pool
             mThreadPool = Executors.newCachedThreadPool();
@@ -1171,8 +1222,21 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
             // get server from preferences
             mServer = Preferences.getEndpointServer(this);
 
+            // a stream can be resumed only on the same network (connection
+            // might have been made to another server of the network)
+            if (mSuspendedConnection != null && !mServer.getNetwork()
+                    .equalsIgnoreCase(mSuspendedConnection.getServer().getNetwork()))
+                mSuspendedConnection = null;
+
+            // reset waiting messages (unacked messages of a resumed stream
+            // will be retransmitted by Smack)
+            if (mSuspendedConnection == null)
+                mWaitingReceipt.clear();
+
             mHelper = new XMPPConnectionHelper(this, mServer, false);
             mHelper.setListener(this);
+            if (mSuspendedConnection != null)
+                mHelper.setConnection(mSuspendedConnection);
             mHelper.start();
         }
     }
@@ -1185,7 +1249,7 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
     @Override
     public void connectionClosedOnError(Exception error) {
         Log.w(TAG, "connection closed with error", error);
-        quit(true);
+        quit(true, true);
         createConnection();
     }
 
@@ -1218,32 +1282,57 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
 
     @Override
     public synchronized void created(final XMPPConnection connection) {
-        Log.v(TAG, "connection created.");
+        // a connection being resumed still has our listeners
+        boolean reused = (connection == mConnection || connection == mSuspendedConnection);
+        Log.v(TAG, reused ? "connection reused." : "connection created.");
         mConnection = (KontalkConnection) connection;
+        mSuspendedConnection = null;
+
+        StanzaFilter filter;
 
-        // setup version manager
-        final VersionManager verMgr = VersionManager.getInstanceFor(connection);
-        verMgr.setVersion(getString(R.string.app_name), SystemUtils.getVersionFullName(this));
+        if (!reused) {
+            // setup version manager
+            final VersionManager verMgr = VersionManager.getInstanceFor(connection);
+            verMgr.setVersion(getString(R.string.app_name), SystemUtils.getVersionFullName(this));
 
-        // setup roster
-        Roster roster = getRoster();
-        roster.addRosterLoadedListener(new RosterLoadedListener() {
-            @Override
-            public void onRosterLoaded(Roster roster) {
-                // resend failed and pending messages
-                resendPendingMessages(false);
-                // resend failed and pending received receipts
-                resendPendingReceipts();
-                // roster has been loaded
-                broadcast(ACTION_ROSTER_LOADED);
-            }
-        });
-        roster.setRosterStore(mRosterStore);
+            // setup roster
+            Roster roster = getRoster();
+            roster.addRosterLoadedListener(new RosterLoadedListener() {
+                @Override
+                public void onRosterLoaded(Roster roster) {
+                    // resend failed and pending messages
+                    resendPendingMessages(false);
+                    // resend failed and pending received receipts
+                    resendPendingReceipts();
+                    // roster has been loaded
+                    broadcast(ACTION_ROSTER_LOADED);
+                }
+            });
+            roster.setRosterStore(mRosterStore);
+
+            filter = new StanzaTypeFilter(Presence.class);
+            connection.addAsyncStanzaListener(new PresenceListener(this), filter);
+
+            filter = new StanzaTypeFilter(RosterMatch.class);
+            connection.addAsyncStanzaListener(new RosterMatchListener(this), filter);
+
+            filter = new StanzaTypeFilter(LastActivity.class);
+            connection.addAsyncStanzaListener(new LastActivityListener(this), filter);
+
+            filter = new StanzaTypeFilter(Version.class);
+            connection.addAsyncStanzaListener(new VersionListener(this), filter);
+
+            filter = new StanzaTypeFilter(PublicKeyPublish.class);
+            connection.addAsyncStanzaListener(new PublicKeyListener(this), filter);
+        }
 
         // enable ping manager
         AndroidAdaptiveServerPingManager
             .getInstanceFor(connection, this)
             .setEnabled(true);
+        PingManager pingManager = PingManager.getInstanceFor(connection);
+        if (mPingFailedListener != null)
+            pingManager.unregisterPingFailedListener(mPingFailedListener);
         mPingFailedListener = new PingFailedListener() {
             @Override
             public void pingFailed() {
@@ -1254,29 +1343,16 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
                 }
             }
         };
-        PingManager pingManager = PingManager.getInstanceFor(connection);
         pingManager.registerPingFailedListener(mPingFailedListener);
         pingManager.setPingInterval(0);
 
-        StanzaFilter filter;
-
-        filter = new StanzaTypeFilter(Presence.class);
-        connection.addAsyncStanzaListener(new PresenceListener(this), filter);
-
-        filter = new StanzaTypeFilter(RosterMatch.class);
-        connection.addAsyncStanzaListener(new RosterMatchListener(this), filter);
-
         filter = new StanzaTypeFilter(org.jivesoftware.smack.packet.Message.class);
-        connection.addSyncStanzaListener(new MessageListener(this), filter);
-
-        filter = new StanzaTypeFilter(LastActivity.class);
-        connection.addAsyncStanzaListener(new LastActivityListener(this), filter);
-
-        filter = new StanzaTypeFilter(Version.class);
-        connection.addAsyncStanzaListener(new VersionListener(this), filter);
-
-        filter = new StanzaTypeFilter(PublicKeyPublish.class);
-        connection.addAsyncStanzaListener(new PublicKeyListener(this), filter);
+        if (mMessageListener != null) {
+            mMessageListener.shutdown();
+            connection.removeSyncStanzaListener(mMessageListener);
+        }
+        mMessageListener = new MessageListener(this);
+        connection.addSyncStanzaListener(mMessageListener, filter);
     }
 
     @Override
@@ -1286,23 +1362,36 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
 
     @Override
     public void authenticated(XMPPConnection connection, boolean resumed) {
-        Log.v(TAG, "authenticated!");
+        Log.v(TAG, "authenticated in " + (SystemClock.elapsedRealtime() - mConnectStartTime) +
+            " ms" + (resumed ? " (stream resumed)" : ""));
 
         // add message ack listener
+        if (mAckListener != null)
+            mConnection.removeStanzaAcknowledgedListener(mAckListener);
         if (mConnection.isSmEnabled()) {
-            mConnection.addStanzaAcknowledgedListener(new MessageAckListener(this));
+            mAckListener = new MessageAckListener(this);
+            mConnection.addStanzaAcknowledgedListener(mAckListener);
         }
         else {
+            mAckListener = null;
             Log.w(TAG, "stream management not available - disabling delivery receipts");
         }
 
-        // send presence
-        sendPresence();
-        // discovery
-        discovery();
-        // pending messages and receipts will be sent when roster will be loaded
-        // send pending subscription replies
-        sendPendingSubscriptionReplies();
+        // a resumed stream keeps presence and roster, and Smack retransmits
+        // unacked stanzas by itself
+        if (!resumed) {
+            // send presence
+            sendPresence();
+            // discovery
+            discovery();
+            // pending messages and receipts will be sent when roster will be loaded
+            // send pending subscription replies
+            sendPendingSubscriptionReplies();
+        }
+        else {
+            // messages written while we were offline were not sent
+            resendPendingAfterResume();
+        }
 
         // helper is not needed any more
         mHelper = null;
@@ -1522,6 +1611,28 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
         c.close();
     }
 
+    /**
+     * Sends pending messages and receipts after a stream has been resumed.
+     * The roster is not reloaded on resumption, so the roster listener won't
+     * do it for us. Messages still waiting for an ack are skipped by
+     * {@link #sendMessage(Bundle)}.
+     */
+    private void resendPendingAfterResume() {
+        if (isRosterLoaded()) {
+            resendPendingMessages(false);
+            resendPendingReceipts();
+        }
+        else {
+            // roster was reset while disconnected: listener will resend
+            try {
+                getRoster().reload();
+            }
+            catch (Exception e) {
+                Log.w(TAG, "unable to reload roster", e);
+            }
+        }
+    }
+
     void resendPendingReceipts() {
         Cursor c = getContentResolver().query(Messages.CONTENT_URI,
             new String[] {
@@ -1815,7 +1926,7 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
 
         // check if message is already pending
         long msgId = data.getLong("org.kontalk.message.msgId");
-        if (mWaitingReceipt.containsValue(msgId)) {
+        if (mWaitingReceipt.containsMessage(msgId)) {
             Log.v(TAG, "message already queued and waiting - dropping");
             return;
         }
@@ -1998,14 +2109,11 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
         }
     }
 
-    /** Process an incoming message. */
-    Uri incoming(CompositeMessage msg) {
-        final String sender = msg.getSender(true);
-
-        // save to local storage
+    /** Builds the values for storing an incoming message. */
+    private ContentValues prepareIncoming(CompositeMessage msg) {
         ContentValues values = new ContentValues();
         values.put(Messages.MESSAGE_ID, msg.getId());
-        values.put(Messages.PEER, sender);
+        values.put(Messages.PEER, msg.getSender(true));
 
         MessageUtils.fillContentValues(values, msg);
 
@@ -2014,6 +2122,32 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
         values.put(Messages.NEW, true);
         values.put(Messages.DIRECTION, Messages.DIRECTION_IN);
         values.put(Messages.TIMESTAMP, System.currentTimeMillis());
+        return values;
+    }
+
+    /** Marks the given senders as registered in the users database. */
+    private void markRegistered(final Collection<String> senders) {
+        final Context context = getApplicationContext();
+        new Thread(new Runnable() {
+            public void run() {
+                for (String sender : senders) {
+                    try {
+                        UsersProvider.markRegistered(context, sender);
+                    }
+                    catch (SQLiteConstraintException e) {
+                        // this might happen during an online/offline switch
+                    }
+                }
+            }
+        }).start();
+    }
+
+    /** Process an incoming message. */
+    Uri incoming(CompositeMessage msg) {
+        final String sender = msg.getSender(true);
+
+        // save to local storage
+        ContentValues values = prepareIncoming(msg);
 
         Uri msgUri = null;
         try {
@@ -2024,17 +2158,7 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
         }
 
         // mark sender as registered in the users database
-        final Context context = getApplicationContext();
-        new Thread(new Runnable() {
-            public void run() {
-                try {
-                    UsersProvider.markRegistered(context, sender);
-                }
-                catch (SQLiteConstraintException e) {
-                    // this might happen during an online/offline switch
-                }
-            }
-        }).start();
+        markRegistered(Collections.singletonList(sender));
 
         // fire notification only if message was actually inserted to database
         if (msgUri != null && !MessagingNotification.isPaused(sender)) {
@@ -2045,6 +2169,65 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
         return msgUri;
     }
 
+    /**
+     * Process a batch of incoming messages (e.g. offline messages) in a
+     * single transaction.
+     * @return a map of message id to stored message uri
+     */
+    Map<String, Uri> incoming(List<CompositeMessage> msgs) {
+        Map<String, Uri> uris = new HashMap<>(msgs.size());
+        if (msgs.size() == 0)
+            return uris;
+
+        ContentValues[] values = new ContentValues[msgs.size()];
+        String[] msgIds = new String[msgs.size()];
+        Set<String> senders = new HashSet<>();
+        for (int i = 0; i < values.length; i++) {
+            CompositeMessage msg = msgs.get(i);
+            values[i] = prepareIncoming(msg);
+            msgIds[i] = msg.getId();
+            senders.add(msg.getSender(true));
+        }
+
+        ContentResolver cr = getContentResolver();
+        int count = cr.bulkInsert(Messages.CONTENT_URI, values);
+
+        if (count > 0) {
+            // retrieve storage ids for delivery receipts
+            StringBuilder where = new StringBuilder(Messages.DIRECTION)
+                .append('=').append(Messages.DIRECTION_IN)
+                .append(" AND ").append(Messages.MESSAGE_ID).append(" IN (?");
+            for (int i = 1; i < msgIds.length; i++)
+                where.append(",?");
+            where.append(')');
+
+            Cursor c = cr.query(Messages.CONTENT_URI,
+                new String[] { Messages._ID, Messages.MESSAGE_ID },
+                where.toString(), msgIds, null);
+            while (c.moveToNext()) {
+                uris.put(c.getString(1),
+                    ContentUris.withAppendedId(Messages.CONTENT_URI, c.getLong(0)));
+            }
+            c.close();
+        }
+
+        // mark senders as registered in the users database
+        markRegistered(senders);
+
+        // fire notification only if messages were actually inserted to database
+        if (count > 0) {
+            for (String sender : senders) {
+                if (!MessagingNotification.isPaused(sender)) {
+                    // update notifications (delayed)
+                    MessagingNotification.delayedUpdateMessagesNotification(getApplicationContext(), true);
+                    break;
+                }
+            }
+        }
+
+        return uris;
+    }
+
     /** Returns the first available upload service post URL. */
     private String getUploadService() {
         if (mUploadServices != null && mUploadServices.size() > 0) {
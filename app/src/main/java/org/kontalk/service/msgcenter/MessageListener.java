@@ -24,7 +24,10 @@ import static org.kontalk.service.msgcenter.MessageCenterService.EXTRA_TO;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.List;
 import java.util.Map;
 
 import org.jivesoftware.smack.packet.ExtensionElement;
@@ -62,18 +65,22 @@ import android.util.Log;
  * Packet listener for message stanzas.
  * @author Daniele Ricci
  */
-class MessageListener extends MessageCenterPacketListener {
+class MessageListener extends MessageCenterPacketListener
+        implements IncomingMessagePipeline.Processor {
 
     private static final String selectionOutgoing = Messages.DIRECTION + "=" + Messages.DIRECTION_OUT;
     private static final String selectionIngoing = Messages.DIRECTION + "=" + Messages.DIRECTION_IN;
 
+    private final IncomingMessagePipeline mPipeline;
+
     public MessageListener(MessageCenterService instance) {
         super(instance);
+        mPipeline = new IncomingMessagePipeline(this);
     }
 
     @Override
     public void processPacket(Stanza packet) {
-        Map<String, Long> waitingReceipt = getWaitingReceiptList();
+        PendingReceiptIndex waitingReceipt = getWaitingReceiptList();
 
         org.jivesoftware.smack.packet.Message m = (org.jivesoftware.smack.packet.Message) packet;
 
@@ -111,227 +118,277 @@ class MessageListener extends MessageCenterPacketListener {
 
             // delivery receipt
             if (deliveryReceipt != null) {
-                synchronized (waitingReceipt) {
-                    String id = m.getStanzaId();
-                    Long _msgId = waitingReceipt.get(id);
-                    long msgId = (_msgId != null) ? _msgId : 0;
-                    ContentResolver cr = getContext().getContentResolver();
-
-                    // message has been delivered: check if we have previously stored the server id
-                    if (msgId > 0) {
-                        ContentValues values = new ContentValues(3);
-                        values.put(Messages.MESSAGE_ID, deliveryReceipt.getId());
-                        values.put(Messages.STATUS, Messages.STATUS_RECEIVED);
-                        values.put(Messages.STATUS_CHANGED, serverTimestamp);
-                        cr.update(ContentUris.withAppendedId(Messages.CONTENT_URI, msgId),
-                            values, selectionOutgoing, null);
-
-                        waitingReceipt.remove(id);
-                    }
-                    else {
-                        // FIXME this could lead to fake delivery receipts because message IDs are client-generated
-                        Uri msg = Messages.getUri(deliveryReceipt.getId());
-                        ContentValues values = new ContentValues(2);
-                        values.put(Messages.STATUS, Messages.STATUS_RECEIVED);
-                        values.put(Messages.STATUS_CHANGED, serverTimestamp);
-                        cr.update(msg, values, selectionOutgoing, null);
-                    }
+                String id = m.getStanzaId();
+                Long _msgId = waitingReceipt.remove(id);
+                long msgId = (_msgId != null) ? _msgId : 0;
+                ContentResolver cr = getContext().getContentResolver();
+
+                // message has been delivered: check if we have previously stored the server id
+                if (msgId > 0) {
+                    ContentValues values = new ContentValues(3);
+                    values.put(Messages.MESSAGE_ID, deliveryReceipt.getId());
+                    values.put(Messages.STATUS, Messages.STATUS_RECEIVED);
+                    values.put(Messages.STATUS_CHANGED, serverTimestamp);
+                    cr.update(ContentUris.withAppendedId(Messages.CONTENT_URI, msgId),
+                        values, selectionOutgoing, null);
+                }
+                else {
+                    // FIXME this could lead to fake delivery receipts because message IDs are client-generated
+                    Uri msg = Messages.getUri(deliveryReceipt.getId());
+                    ContentValues values = new ContentValues(2);
+                    values.put(Messages.STATUS, Messages.STATUS_RECEIVED);
+                    values.put(Messages.STATUS_CHANGED, serverTimestamp);
+                    cr.update(msg, values, selectionOutgoing, null);
                 }
             }
 
             // incoming message
             else {
+                long start = System.nanoTime();
+
                 String msgId = m.getStanzaId();
                 if (msgId == null)
                     msgId = MessageUtils.messageId();
 
-                String body = m.getBody();
+                boolean needReceipt = m.hasExtension(DeliveryReceiptRequest.ELEMENT,
+                    DeliveryReceipt.NAMESPACE);
 
-                // create message
-                CompositeMessage msg = new CompositeMessage(
-                        getContext(),
-                        msgId,
-                        serverTimestamp,
-                        from,
-                        false,
-                        Coder.SECURITY_CLEARTEXT
-                    );
+                IncomingMessagePipeline.Entry entry = new IncomingMessagePipeline
+                    .Entry(m, msgId, from, serverTimestamp, needReceipt);
+                mPipeline.mParseCounter.add(1, start);
 
-                ExtensionElement _encrypted = m.getExtension(E2EEncryption.ELEMENT_NAME, E2EEncryption.NAMESPACE);
+                // decryption and storage will happen in background
+                if (!mPipeline.submit(entry)) {
+                    // pipeline is shutting down, process the message here
+                    entry.message = process(entry);
+                    store(Collections.singletonList(entry));
+                }
+            }
+        }
 
-                if (_encrypted != null && _encrypted instanceof E2EEncryption) {
-                    E2EEncryption mEnc = (E2EEncryption) _encrypted;
-                    byte[] encryptedData = mEnc.getData();
+        // error message
+        else if (m.getType() == org.jivesoftware.smack.packet.Message.Type.error) {
+            DeliveryReceipt deliveryReceipt = DeliveryReceipt.from(m);
 
-                    // encrypted message
-                    msg.setEncrypted(true);
-                    msg.setSecurityFlags(Coder.SECURITY_BASIC);
+            // delivery receipt error
+            if (deliveryReceipt != null) {
+                // mark indicated message as incoming and try again
+                Uri msg = Messages.getUri(deliveryReceipt.getId());
+                ContentValues values = new ContentValues(2);
+                values.put(Messages.STATUS, Messages.STATUS_INCOMING);
+                values.put(Messages.STATUS_CHANGED, System.currentTimeMillis());
+                getContext().getContentResolver()
+                    .update(msg, values, selectionIngoing, null);
 
-                    if (encryptedData != null) {
+                // send receipt again
+                sendReceipt(null, deliveryReceipt.getId(), m.getFrom(), waitingReceipt);
+            }
 
-                        // decrypt message
-                        try {
-                            MessageUtils.decryptMessage(getContext(),
-                                    getServer(), msg, encryptedData);
-                        }
+            String id = m.getStanzaId();
+            Long _msgId = waitingReceipt.remove(id);
+            long msgId = (_msgId != null) ? _msgId : 0;
+            ContentResolver cr = getContext().getContentResolver();
 
-                        catch (Exception exc) {
-                            Log.e(MessageCenterService.TAG, "decryption failed", exc);
+            // message has been rejected: mark as error
+            if (msgId > 0) {
+                ContentValues values = new ContentValues(2);
+                values.put(Messages.STATUS, Messages.STATUS_NOTDELIVERED);
+                values.put(Messages.STATUS_CHANGED, System.currentTimeMillis());
+                cr.update(ContentUris.withAppendedId(Messages.CONTENT_URI, msgId),
+                    values, selectionOutgoing, null);
 
-                            // raw component for encrypted data
-                            // reuse security flags
-                            msg.clearComponents();
-                            msg.addComponent(new RawComponent(encryptedData, true, msg.getSecurityFlags()));
-                        }
+                // we can now release the message center. Hopefully
+                // there will be one hold and one matching release.
+                getIdleHandler().release();
+            }
+            else if (id != null) {
+                // FIXME this could lead to fake delivery receipts because message IDs are client-generated
+                Uri msg = Messages.getUri(id);
+                ContentValues values = new ContentValues(2);
+                values.put(Messages.STATUS, Messages.STATUS_NOTDELIVERED);
+                values.put(Messages.STATUS_CHANGED, System.currentTimeMillis());
+                cr.update(msg, values, selectionOutgoing, null);
+            }
+        }
+    }
 
-                    }
+    /** Builds a message from its stanza. Called by the pipeline workers. */
+    @Override
+    public CompositeMessage process(IncomingMessagePipeline.Entry entry) {
+        org.jivesoftware.smack.packet.Message m = entry.stanza;
+        String msgId = entry.msgId;
+        String from = entry.from;
+        long serverTimestamp = entry.serverTimestamp;
+
+        String body = m.getBody();
+
+        // create message
+        CompositeMessage msg = new CompositeMessage(
+                getContext(),
+                msgId,
+                serverTimestamp,
+                from,
+                false,
+                Coder.SECURITY_CLEARTEXT
+            );
+
+        ExtensionElement _encrypted = m.getExtension(E2EEncryption.ELEMENT_NAME, E2EEncryption.NAMESPACE);
+
+        if (_encrypted != null && _encrypted instanceof E2EEncryption) {
+            E2EEncryption mEnc = (E2EEncryption) _encrypted;
+            byte[] encryptedData = mEnc.getData();
+
+            // encrypted message
+            msg.setEncrypted(true);
+            msg.setSecurityFlags(Coder.SECURITY_BASIC);
+
+            if (encryptedData != null) {
+
+                // decrypt message
+                try {
+                    MessageUtils.decryptMessage(getContext(),
+                            getServer(), msg, encryptedData);
                 }
 
-                else {
-
-                    // use message body
-                    if (body != null)
-                        msg.addComponent(new TextComponent(body));
+                catch (Exception exc) {
+                    Log.e(MessageCenterService.TAG, "decryption failed", exc);
 
+                    // raw component for encrypted data
+                    // reuse security flags
+                    msg.clearComponents();
+                    msg.addComponent(new RawComponent(encryptedData, true, msg.getSecurityFlags()));
                 }
 
-                // TODO duplicated code (MessageUtils#decryptMessage)
-
-                // out of band data
-                ExtensionElement _media = m.getExtension(OutOfBandData.ELEMENT_NAME, OutOfBandData.NAMESPACE);
-                if (_media != null && _media instanceof OutOfBandData) {
-                    File previewFile = null;
-
-                    OutOfBandData media = (OutOfBandData) _media;
-                    String mime = media.getMime();
-                    String fetchUrl = media.getUrl();
-                    long length = media.getLength();
-                    boolean encrypted = media.isEncrypted();
-
-                    // bits-of-binary for preview
-                    ExtensionElement _preview = m.getExtension(BitsOfBinary.ELEMENT_NAME, BitsOfBinary.NAMESPACE);
-                    if (_preview != null && _preview instanceof BitsOfBinary) {
-                        BitsOfBinary preview = (BitsOfBinary) _preview;
-                        String previewMime = preview.getType();
-                        if (previewMime == null)
-                            previewMime = MediaStorage.THUMBNAIL_MIME_NETWORK;
-
-                        String filename = null;
-
-                        if (ImageComponent.supportsMimeType(mime)) {
-                            filename = ImageComponent.buildMediaFilename(msgId, previewMime);
-                        }
-
-                        else if (VCardComponent.supportsMimeType(mime)) {
-                            filename = VCardComponent.buildMediaFilename(msgId, previewMime);
-                        }
-
-                        try {
-                            if (filename != null) previewFile =
-                                MediaStorage.writeInternalMedia(getContext(),
-                                    filename, preview.getContents());
-                        }
-                        catch (IOException e) {
-                            Log.w(MessageCenterService.TAG, "error storing thumbnail", e);
-                        }
-                    }
-
-                    MessageComponent<?> attachment = null;
-
-                    if (ImageComponent.supportsMimeType(mime)) {
-                        // cleartext only for now
-                        attachment = new ImageComponent(mime, previewFile, null, fetchUrl, length,
-                            encrypted, encrypted ? Coder.SECURITY_BASIC : Coder.SECURITY_CLEARTEXT);
-                    }
-
-                    else if (VCardComponent.supportsMimeType(mime)) {
-                        // cleartext only for now
-                        attachment = new VCardComponent(previewFile, null, fetchUrl, length,
-                            encrypted, encrypted ? Coder.SECURITY_BASIC : Coder.SECURITY_CLEARTEXT);
-                    }
-
-                    else if (AudioComponent.supportsMimeType(mime)) {
-                        attachment = new AudioComponent(mime, null, fetchUrl, length,
-                            encrypted, encrypted ? Coder.SECURITY_BASIC : Coder.SECURITY_CLEARTEXT);
-                    }
-
-                    // TODO other types
-
-                    if (attachment != null)
-                        msg.addComponent(attachment);
-
-                    // add a dummy body if none was found
-                    /*
-                    if (body == null) {
-                        msg.addComponent(new TextComponent(CompositeMessage
-                            .getSampleTextContent((Class<? extends MessageComponent<?>>)
-                                attachment.getClass(), mime)));
-                    }
-                    */
+            }
+        }
+
+        else {
+
+            // use message body
+            if (body != null)
+                msg.addComponent(new TextComponent(body));
+
+        }
+
+        // TODO duplicated code (MessageUtils#decryptMessage)
+
+        // out of band data
+        ExtensionElement _media = m.getExtension(OutOfBandData.ELEMENT_NAME, OutOfBandData.NAMESPACE);
+        if (_media != null && _media instanceof OutOfBandData) {
+            File previewFile = null;
 
+            OutOfBandData media = (OutOfBandData) _media;
+            String mime = media.getMime();
+            String fetchUrl = media.getUrl();
+            long length = media.getLength();
+            boolean encrypted = media.isEncrypted();
+
+            // bits-of-binary for preview
+            ExtensionElement _preview = m.getExtension(BitsOfBinary.ELEMENT_NAME, BitsOfBinary.NAMESPACE);
+            if (_preview != null && _preview instanceof BitsOfBinary) {
+                BitsOfBinary preview = (BitsOfBinary) _preview;
+                String previewMime = preview.getType();
+                if (previewMime == null)
+                    previewMime = MediaStorage.THUMBNAIL_MIME_NETWORK;
+
+                String filename = null;
+
+                if (ImageComponent.supportsMimeType(mime)) {
+                    filename = ImageComponent.buildMediaFilename(msgId, previewMime);
                 }
 
-                Uri msgUri = incoming(msg);
+                else if (VCardComponent.supportsMimeType(mime)) {
+                    filename = VCardComponent.buildMediaFilename(msgId, previewMime);
+                }
 
-                if (m.hasExtension(DeliveryReceiptRequest.ELEMENT, DeliveryReceipt.NAMESPACE)) {
-                    // send ack :)
-                    sendReceipt(msgUri, msgId, from, waitingReceipt);
+                try {
+                    if (filename != null) previewFile =
+                        MediaStorage.writeInternalMedia(getContext(),
+                            filename, preview.getContents());
+                }
+                catch (IOException e) {
+                    Log.w(MessageCenterService.TAG, "error storing thumbnail", e);
                 }
+            }
 
+            MessageComponent<?> attachment = null;
+
+            if (ImageComponent.supportsMimeType(mime)) {
+                // cleartext only for now
+                attachment = new ImageComponent(mime, previewFile, null, fetchUrl, length,
+                    encrypted, encrypted ? Coder.SECURITY_BASIC : Coder.SECURITY_CLEARTEXT);
             }
-        }
 
-        // error message
-        else if (m.getType() == org.jivesoftware.smack.packet.Message.Type.error) {
-            DeliveryReceipt deliveryReceipt = DeliveryReceipt.from(m);
+            else if (VCardComponent.supportsMimeType(mime)) {
+                // cleartext only for now
+                attachment = new VCardComponent(previewFile, null, fetchUrl, length,
+                    encrypted, encrypted ? Coder.SECURITY_BASIC : Coder.SECURITY_CLEARTEXT);
+            }
 
-            // delivery receipt error
-            if (deliveryReceipt != null) {
-                // mark indicated message as incoming and try again
-                Uri msg = Messages.getUri(deliveryReceipt.getId());
-                ContentValues values = new ContentValues(2);
-                values.put(Messages.STATUS, Messages.STATUS_INCOMING);
-                values.put(Messages.STATUS_CHANGED, System.currentTimeMillis());
-                getContext().getContentResolver()
-                    .update(msg, values, selectionIngoing, null);
+            else if (AudioComponent.supportsMimeType(mime)) {
+                attachment = new AudioComponent(mime, null, fetchUrl, length,
+                    encrypted, encrypted ? Coder.SECURITY_BASIC : Coder.SECURITY_CLEARTEXT);
+            }
 
-                // send receipt again
-                sendReceipt(null, deliveryReceipt.getId(), m.getFrom(), waitingReceipt);
+            // TODO other types
+
+            if (attachment != null)
+                msg.addComponent(attachment);
+
+            // add a dummy body if none was found
+            /*
+            if (body == null) {
+                msg.addComponent(new TextComponent(CompositeMessage
+                    .getSampleTextContent((Class<? extends MessageComponent<?>>)
+                        attachment.getClass(), mime)));
             }
+            */
 
-            synchronized (waitingReceipt) {
-                String id = m.getStanzaId();
-                Long _msgId = waitingReceipt.get(id);
-                long msgId = (_msgId != null) ? _msgId : 0;
-                ContentResolver cr = getContext().getContentResolver();
+        }
 
-                // message has been rejected: mark as error
-                if (msgId > 0) {
-                    ContentValues values = new ContentValues(2);
-                    values.put(Messages.STATUS, Messages.STATUS_NOTDELIVERED);
-                    values.put(Messages.STATUS_CHANGED, System.currentTimeMillis());
-                    cr.update(ContentUris.withAppendedId(Messages.CONTENT_URI, msgId),
-                        values, selectionOutgoing, null);
+        return msg;
+    }
 
-                    waitingReceipt.remove(id);
+    /** Stores a batch of messages. Called by the pipeline persistence thread. */
+    @Override
+    public void store(List<IncomingMessagePipeline.Entry> batch) {
+        PendingReceiptIndex waitingReceipt = getWaitingReceiptList();
 
-                    // we can now release the message center. Hopefully
-                    // there will be one hold and one matching release.
-                    getIdleHandler().release();
-                }
-                else if (id != null) {
-                    // FIXME this could lead to fake delivery receipts because message IDs are client-generated
-                    Uri msg = Messages.getUri(id);
-                    ContentValues values = new ContentValues(2);
-                    values.put(Messages.STATUS, Messages.STATUS_NOTDELIVERED);
-                    values.put(Messages.STATUS_CHANGED, System.currentTimeMillis());
-                    cr.update(msg, values, selectionOutgoing, null);
+        if (batch.size() == 1) {
+            IncomingMessagePipeline.Entry entry = batch.get(0);
+            Uri msgUri = incoming(entry.message);
+
+            if (entry.receipt) {
+                // send ack :)
+                sendReceipt(msgUri, entry.msgId, entry.from, waitingReceipt);
+            }
+        }
+
+        else {
+            List<CompositeMessage> msgs = new ArrayList<>(batch.size());
+            for (IncomingMessagePipeline.Entry entry : batch)
+                msgs.add(entry.message);
+
+            Map<String, Uri> msgUris = incoming(msgs);
+
+            for (IncomingMessagePipeline.Entry entry : batch) {
+                if (entry.receipt) {
+                    // send ack :)
+                    sendReceipt(msgUris.get(entry.msgId), entry.msgId, entry.from, waitingReceipt);
                 }
             }
         }
     }
 
-    private void sendReceipt(Uri msgUri, String msgId, String from, Map<String, Long> waitingReceipt) {
+    /**
+     * Stops the incoming pipeline. Messages already received will still be
+     * stored.
+     */
+    public void shutdown() {
+        mPipeline.shutdown();
+    }
+
+    private void sendReceipt(Uri msgUri, String msgId, String from, PendingReceiptIndex waitingReceipt) {
         DeliveryReceipt receipt = new DeliveryReceipt(msgId);
         org.jivesoftware.smack.packet.Message ack =
             new org.jivesoftware.smack.packet.Message(from,
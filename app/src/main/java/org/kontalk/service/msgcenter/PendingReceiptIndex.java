@@ -0,0 +1,191 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.service.msgcenter;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/**
+ * Messages waiting for an ack from the server, indexed both by packet id
+ * and by database id. Lookups are constant time and don't block; entries
+ * not acked within {@link #EXPIRY} are considered lost. Entries dropped
+ * without being acked are reported to a {@link DropListener}.
+ * @author Daniele Ricci
+ */
+class PendingReceiptIndex {
+
+    /** Time after which an entry is stale. Longer than stream resumption time. */
+    static final long EXPIRY = 10 * 60 * 1000;
+
+    /** Notified of entries removed without being acked. */
+    interface DropListener {
+        /** Called once for every dropped entry, possibly with the index locked. */
+        void onDropped(long msgId);
+    }
+
+    private static final class Entry {
+        final long msgId;
+        final long timestamp;
+
+        Entry(long msgId, long timestamp) {
+            this.msgId = msgId;
+            this.timestamp = timestamp;
+        }
+    }
+
+    /** Entries by packet id. */
+    private final ConcurrentHashMap<String, Entry> mByPacket = new ConcurrentHashMap<>();
+    /** Packet ids by database id. */
+    private final ConcurrentHashMap<Long, String> mByMessage = new ConcurrentHashMap<>();
+
+    private final DropListener mListener;
+
+    /** Keeps the two indexes consistent. Readers don't need it. */
+    private final Object mLock = new Object();
+    /** Time of the last expiry run. */
+    private long mLastExpire;
+
+    public PendingReceiptIndex() {
+        this(null);
+    }
+
+    public PendingReceiptIndex(DropListener listener) {
+        mListener = listener;
+    }
+
+    /** Adds a message waiting for an ack. */
+    public void put(String packetId, long msgId) {
+        put(packetId, msgId, System.currentTimeMillis());
+    }
+
+    void put(String packetId, long msgId, long now) {
+        if (packetId == null)
+            return;
+
+        synchronized (mLock) {
+            Entry old = mByPacket.put(packetId, new Entry(msgId, now));
+            if (old != null) {
+                if (old.msgId != msgId)
+                    mByMessage.remove(old.msgId, packetId);
+                dropped(old.msgId);
+            }
+
+            String oldPacketId = mByMessage.put(msgId, packetId);
+            if (oldPacketId != null && !oldPacketId.equals(packetId)) {
+                old = mByPacket.remove(oldPacketId);
+                if (old != null)
+                    dropped(old.msgId);
+            }
+
+            // remove stale entries from time to time
+            if (now - mLastExpire >= EXPIRY) {
+                expire(now);
+                mLastExpire = now;
+            }
+        }
+    }
+
+    /** Returns the database id of the message with the given packet id, or null. */
+    public Long get(String packetId) {
+        Entry e = (packetId != null) ? mByPacket.get(packetId) : null;
+        return (e != null) ? e.msgId : null;
+    }
+
+    /**
+     * Removes a message acked by the server.
+     * @return the database id of the message, or null if not found
+     */
+    public Long remove(String packetId) {
+        if (packetId == null)
+            return null;
+
+        synchronized (mLock) {
+            Entry e = mByPacket.remove(packetId);
+            if (e == null)
+                return null;
+
+            mByMessage.remove(e.msgId, packetId);
+            return e.msgId;
+        }
+    }
+
+    /** Returns true if the given message is waiting for an ack. */
+    public boolean containsMessage(long msgId) {
+        return containsMessage(msgId, System.currentTimeMillis());
+    }
+
+    boolean containsMessage(long msgId, long now) {
+        String packetId = mByMessage.get(msgId);
+        if (packetId == null)
+            return false;
+
+        Entry e = mByPacket.get(packetId);
+        if (e != null && e.msgId == msgId && now - e.timestamp < EXPIRY)
+            return true;
+
+        // stale entry: message can be sent again
+        synchronized (mLock) {
+            if (mByMessage.remove(msgId, packetId)) {
+                e = mByPacket.get(packetId);
+                if (e != null && e.msgId == msgId && mByPacket.remove(packetId, e))
+                    dropped(msgId);
+            }
+        }
+        return false;
+    }
+
+    public void clear() {
+        List<Entry> dropped;
+        synchronized (mLock) {
+            dropped = new ArrayList<>(mByPacket.values());
+            mByPacket.clear();
+            mByMessage.clear();
+        }
+
+        for (Entry e : dropped)
+            dropped(e.msgId);
+    }
+
+    public int size() {
+        return mByPacket.size();
+    }
+
+    /** Removes stale entries. Must be called with the lock held. */
+    private void expire(long now) {
+        Iterator<Map.Entry<String, Entry>> it = mByPacket.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Entry> e = it.next();
+            if (now - e.getValue().timestamp >= EXPIRY) {
+                it.remove();
+                mByMessage.remove(e.getValue().msgId, e.getKey());
+                dropped(e.getValue().msgId);
+            }
+        }
+    }
+
+    private void dropped(long msgId) {
+        if (mListener != null)
+            mListener.onDropped(msgId);
+    }
+
+}
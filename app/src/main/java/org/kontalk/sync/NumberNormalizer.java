@@ -0,0 +1,112 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.sync;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.jxmpp.util.XmppStringUtils;
+
+import com.google.i18n.phonenumbers.NumberParseException;
+
+import android.content.Context;
+
+import org.kontalk.client.EndpointServer;
+import org.kontalk.client.NumberValidator;
+import org.kontalk.util.MessageUtils;
+import org.kontalk.util.Preferences;
+
+
+/**
+ * Normalizes phone numbers during a sync. The default region is resolved
+ * only once and results are remembered, so the same number is never parsed
+ * twice. An instance should be used for a single sync.
+ * @author Daniele Ricci
+ */
+public class NumberNormalizer {
+
+    private final String mRegionCode;
+    private final String mNetwork;
+
+    /** Normalized numbers by input number. */
+    private final Map<String, String> mNumbers = new HashMap<>();
+    /** Numbers that failed to parse. */
+    private final Map<String, NumberParseException> mErrors = new HashMap<>();
+
+    public NumberNormalizer(Context context, String myNumber) {
+        this(NumberValidator.getRegionCode(context, myNumber),
+            getNetwork(context));
+    }
+
+    NumberNormalizer(String regionCode, String network) {
+        mRegionCode = regionCode;
+        mNetwork = network;
+    }
+
+    private static String getNetwork(Context context) {
+        EndpointServer server = Preferences.getEndpointServer(context);
+        return server != null ? server.getNetwork() : null;
+    }
+
+    /** Returns the region code used for numbers without a country code. */
+    public String getRegionCode() {
+        return mRegionCode;
+    }
+
+    /**
+     * Converts a phone number into E.164 format.
+     * @see NumberValidator#fixNumber(String, String, int)
+     */
+    public String normalize(String number, int lastResortCc) throws NumberParseException {
+        String result = mNumbers.get(number);
+        if (result != null)
+            return result;
+
+        NumberParseException error = mErrors.get(number);
+        if (error != null)
+            throw error;
+
+        try {
+            result = NumberValidator.fixNumber(mRegionCode, number, lastResortCc);
+        }
+        catch (NumberParseException e) {
+            mErrors.put(number, e);
+            throw e;
+        }
+
+        mNumbers.put(number, result);
+        return result;
+    }
+
+    /** Returns the hash of a normalized phone number. */
+    public static String hash(String number) {
+        return MessageUtils.sha1(number);
+    }
+
+    /**
+     * Returns the JID for the given hash on our network.
+     * @throws IllegalArgumentException if no server is configured
+     */
+    public String getJID(String hash) {
+        if (mNetwork == null)
+            throw new IllegalArgumentException("server is null");
+        return XmppStringUtils.completeJidFrom(hash, mNetwork);
+    }
+
+}
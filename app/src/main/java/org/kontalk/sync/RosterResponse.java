@@ -0,0 +1,91 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.sync;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import org.jxmpp.util.XmppStringUtils;
+
+
+/**
+ * Collects roster match, presence, public key and block list data received
+ * during a sync. Items are indexed by bare JID.
+ * @author Daniele Ricci
+ */
+class RosterResponse {
+
+    static final class PresenceItem {
+        public String from;
+        public String status;
+        public String rosterName;
+        public long timestamp;
+        public byte[] publicKey;
+        public boolean blocked;
+        public boolean presence;
+    }
+
+    /** Items by normalized bare JID, in order of arrival. */
+    private final Map<String, PresenceItem> mItems = new LinkedHashMap<>();
+
+    /** Returns the key used for indexing the given JID. */
+    static String key(String jid) {
+        return XmppStringUtils.parseBareJid(jid).toLowerCase(Locale.US);
+    }
+
+    /** Adds users found by a roster match. */
+    public void addAll(String[] jids) {
+        for (String jid : jids) {
+            String key = key(jid);
+            if (!mItems.containsKey(key)) {
+                PresenceItem item = new PresenceItem();
+                item.from = jid;
+                mItems.put(key, item);
+            }
+        }
+    }
+
+    /** Returns the item for the given JID, or null if not found. */
+    public PresenceItem get(String jid) {
+        return mItems.get(key(jid));
+    }
+
+    /** Returns the item for the given JID, adding it if not found. */
+    public PresenceItem getOrAdd(String jid) {
+        String key = key(jid);
+        PresenceItem item = mItems.get(key);
+        if (item == null) {
+            item = new PresenceItem();
+            item.from = XmppStringUtils.parseBareJid(jid);
+            mItems.put(key, item);
+        }
+        return item;
+    }
+
+    public int size() {
+        return mItems.size();
+    }
+
+    public Collection<PresenceItem> getItems() {
+        return mItems.values();
+    }
+
+}
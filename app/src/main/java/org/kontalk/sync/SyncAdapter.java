@@ -47,6 +47,8 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
 
     /** How many seconds between sync operations. */
     private static final int MAX_SYNC_DELAY = 600;
+    /** How many seconds between full sync operations. */
+    private static final int MAX_FULL_SYNC_DELAY = 86400;
 
     /** Broadcast action: sync has started. */
     public static final String ACTION_SYNC_START = "org.kontalk.sync.action.START";
@@ -105,9 +107,16 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
                 // hold a reference to the message center while syncing
                 MessageCenterService.hold(mContext);
                 // start sync
+                boolean full = isFullSyncNeeded(mContext);
                 mSyncer = new Syncer(mContext);
                 mSyncer.performSync(mContext, account, authority,
-                    provider, usersProvider, syncResult);
+                    provider, usersProvider, !full, syncResult);
+
+                if (isError(syncResult))
+                    // something went wrong, rebuild everything next time
+                    Preferences.setLastFullSyncTimestamp(mContext, -1);
+                else if (full)
+                    Preferences.setLastFullSyncTimestamp(mContext, System.currentTimeMillis());
             }
             catch (OperationCanceledException e) {
                 Log.w(TAG, "sync canceled!", e);
@@ -168,6 +177,16 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
         return (lastSync >= 0 && diff < MAX_SYNC_DELAY);
     }
 
+    /**
+     * Returns true if the next sync should rebuild all users and contacts
+     * from scratch instead of looking only for changes.
+     */
+    private static boolean isFullSyncNeeded(Context context) {
+        long lastSync = Preferences.getLastFullSyncTimestamp(context);
+        float diff = (System.currentTimeMillis() - lastSync) / 1000;
+        return (lastSync < 0 || diff >= MAX_FULL_SYNC_DELAY);
+    }
+
     public static boolean isPending(Context context) {
         Account acc = Authenticator.getDefaultAccount(context);
         return ContentResolver.isSyncPending(acc, ContactsContract.AUTHORITY);
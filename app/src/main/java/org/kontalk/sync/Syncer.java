@@ -21,8 +21,11 @@ package org.kontalk.sync;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
 
 import org.jivesoftware.smack.packet.Presence;
 import org.jivesoftware.smack.util.StringUtils;
@@ -34,6 +37,7 @@ import android.accounts.OperationCanceledException;
 import android.content.BroadcastReceiver;
 import android.content.ContentProviderClient;
 import android.content.ContentProviderOperation;
+import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
@@ -43,6 +47,7 @@ import android.database.Cursor;
 import android.net.Uri;
 import android.os.Process;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.provider.ContactsContract;
 import android.provider.ContactsContract.Data;
 import android.provider.ContactsContract.RawContacts;
@@ -53,13 +58,13 @@ import android.util.Log;
 import org.kontalk.BuildConfig;
 import org.kontalk.R;
 import org.kontalk.authenticator.Authenticator;
-import org.kontalk.client.NumberValidator;
 import org.kontalk.crypto.PGP;
 import org.kontalk.crypto.PGPUserID;
 import org.kontalk.data.Contact;
 import org.kontalk.provider.MyUsers.Users;
 import org.kontalk.provider.UsersProvider;
 import org.kontalk.service.msgcenter.MessageCenterService;
+import org.kontalk.sync.RosterResponse.PresenceItem;
 import org.kontalk.util.XMPPUtils;
 
 
@@ -74,6 +79,9 @@ public class Syncer {
     // max time to wait for network response
     private static final int MAX_WAIT_TIME = 60000;
 
+    // users updates between transaction yield points
+    private static final int USERS_YIELD_INTERVAL = 100;
+
     /** {@link Data} column for the display name. */
     public static final String DATA_COLUMN_DISPLAY_NAME = Data.DATA1;
     /** {@link Data} column for the account name. */
@@ -94,27 +102,17 @@ public class Syncer {
     private volatile boolean mCanceled;
     private final Context mContext;
 
-    private final static class PresenceItem {
-        public String from;
-        public String status;
-        public String rosterName;
-        public long timestamp;
-        public byte[] publicKey;
-        public boolean blocked;
-        public boolean presence;
-    }
-
     // FIXME this class should handle most recent/available presence stanzas
     private static final class PresenceBroadcastReceiver extends BroadcastReceiver {
         /** Max number of items in a roster match request. */
         private static final int MAX_ROSTER_MATCH_SIZE = 500;
 
-        private List<PresenceItem> response;
+        private RosterResponse response;
         private final WeakReference<Syncer> notifyTo;
 
         private final List<String> jidList;
-        private int rosterParts = -1;
-        private String[] iq;
+        /** Roster match parts still waiting for a reply, null if not requested yet. */
+        private Set<String> iq;
         private String presenceId;
 
         private int presenceCount;
@@ -141,8 +139,7 @@ public class Syncer {
                     String id = intent.getStringExtra(MessageCenterService.EXTRA_PACKET_ID);
                     if (type != null && presenceId.equals(id)) {
                         // update presence item data
-                        String bareJid = XmppStringUtils.parseBareJid(jid);
-                        PresenceItem item = getPresenceItem(bareJid);
+                        PresenceItem item = response.getOrAdd(jid);
                         item.status = intent.getStringExtra(MessageCenterService.EXTRA_STATUS);
                         item.timestamp = intent.getLongExtra(MessageCenterService.EXTRA_STAMP, -1);
                         item.rosterName = intent.getStringExtra(MessageCenterService.EXTRA_ROSTER_NAME);
@@ -158,48 +155,21 @@ public class Syncer {
             // roster match result received
             else if (MessageCenterService.ACTION_ROSTER_MATCH.equals(action)) {
                 String id = intent.getStringExtra(MessageCenterService.EXTRA_PACKET_ID);
-                for (String iqId : iq) {
-                    if (iqId.equals(id)) {
-                        // decrease roster parts counter
-                        rosterParts--;
-
-                        String[] list = intent.getStringArrayExtra(MessageCenterService.EXTRA_JIDLIST);
-                        if (list != null) {
-                            rosterCount += list.length;
-                            if (response == null) {
-                                // prepare list to be filled in with presence data
-                                response = new ArrayList<PresenceItem>(rosterCount);
-                            }
-                            for (String jid : list) {
-                                PresenceItem p = new PresenceItem();
-                                p.from = jid;
-                                response.add(p);
-                            }
-                        }
-
-                        if (rosterParts <= 0) {
-                            // all roster parts received
-
-                            if (rosterCount == 0 && blocklistReceived) {
-                                // no roster elements
-                                finish();
-                            }
-                            else {
-                                Syncer w = notifyTo.get();
-                                if (w != null) {
-                                    // request presence data for the whole roster
-                                    presenceId = StringUtils.randomString(6);
-                                    w.requestPresenceData(presenceId);
-                                    // request public keys for the whole roster
-                                    w.requestPublicKeys();
-                                    // request block list
-                                    w.requestBlocklist();
-                                }
-                            }
+                // parts are processed as they arrive
+                if (iq != null && iq.remove(id)) {
+                    String[] list = intent.getStringArrayExtra(MessageCenterService.EXTRA_JIDLIST);
+                    if (list != null) {
+                        rosterCount += list.length;
+                        if (response == null) {
+                            // prepare list to be filled in with presence data
+                            response = new RosterResponse();
                         }
+                        response.addAll(list);
+                    }
 
-                        // no need to continue
-                        break;
+                    if (iq.isEmpty()) {
+                        // all roster parts received
+                        rosterMatched();
                     }
                 }
             }
@@ -208,15 +178,12 @@ public class Syncer {
                 if (response != null) {
                     String jid = intent.getStringExtra(MessageCenterService.EXTRA_FROM);
                     // see if bare JID is present in roster response
-                    String compare = XmppStringUtils.parseBareJid(jid);
-                    for (PresenceItem item : response) {
-                        if (XmppStringUtils.parseBareJid(item.from).equalsIgnoreCase(compare)) {
-                            item.publicKey = intent.getByteArrayExtra(MessageCenterService.EXTRA_PUBLIC_KEY);
-
-                            // increment vcard count
-                            pubkeyCount++;
-                            break;
-                        }
+                    PresenceItem item = response.get(jid);
+                    if (item != null) {
+                        item.publicKey = intent.getByteArrayExtra(MessageCenterService.EXTRA_PUBLIC_KEY);
+
+                        // increment vcard count
+                        pubkeyCount++;
                     }
 
                     // done with presence data and blocklist
@@ -231,18 +198,13 @@ public class Syncer {
                 blocklistReceived = true;
 
                 String[] list = intent.getStringArrayExtra(MessageCenterService.EXTRA_BLOCKLIST);
-                if (list != null) {
+                if (list != null && response != null) {
 
                     for (String jid : list) {
                         // see if bare JID is present in roster response
-                        String compare = XmppStringUtils.parseBareJid(jid);
-                        for (PresenceItem item : response) {
-                            if (XmppStringUtils.parseBareJid(item.from).equalsIgnoreCase(compare)) {
-                                item.blocked = true;
-
-                                break;
-                            }
-                        }
+                        PresenceItem item = response.get(jid);
+                        if (item != null)
+                            item.blocked = true;
                     }
 
                 }
@@ -253,43 +215,61 @@ public class Syncer {
             }
 
             // connected! Retry...
-            else if (MessageCenterService.ACTION_CONNECTED.equals(action) && rosterParts < 0) {
+            else if (MessageCenterService.ACTION_CONNECTED.equals(action) && iq == null) {
                 Syncer w = notifyTo.get();
-                if (w != null) {
-                    // request a roster match
-                    rosterParts = getRosterParts(jidList);
-                    iq = new String[rosterParts];
+                if (w != null && jidList.isEmpty()) {
+                    // nothing to match, go on with the current roster
+                    iq = new HashSet<>();
+                    rosterMatched();
+                }
+                else if (w != null) {
+                    // request a roster match: send all parts at once
+                    int rosterParts = getRosterParts(jidList);
+                    iq = new HashSet<>(rosterParts);
                     for (int i = 0; i < rosterParts; i++) {
                         int end = (i+1)*MAX_ROSTER_MATCH_SIZE;
                         if (end >= jidList.size())
                             end = jidList.size();
                         List<String> slice = jidList.subList(i*MAX_ROSTER_MATCH_SIZE, end);
 
-                        iq[i] = StringUtils.randomString(6);
-                        w.requestRosterMatch(iq[i], slice);
+                        String id = StringUtils.randomString(6);
+                        iq.add(id);
+                        w.requestRosterMatch(id, slice);
                     }
                 }
             }
         }
 
-        private PresenceItem getPresenceItem(String jid) {
-            for (PresenceItem item : response) {
-                if (XmppStringUtils.parseBareJid(item.from).equalsIgnoreCase(jid))
-                    return item;
+        /** Called when all roster match parts have been received. */
+        private void rosterMatched() {
+            if (response == null) {
+                // prepare list to be filled in with presence data
+                response = new RosterResponse();
             }
 
-            // add item if not found
-            PresenceItem item = new PresenceItem();
-            item.from = jid;
-            response.add(item);
-            return item;
+            if (rosterCount == 0 && blocklistReceived) {
+                // no roster elements
+                finish();
+            }
+            else {
+                Syncer w = notifyTo.get();
+                if (w != null) {
+                    // request presence data for the whole roster
+                    presenceId = StringUtils.randomString(6);
+                    w.requestPresenceData(presenceId);
+                    // request public keys for the whole roster
+                    w.requestPublicKeys();
+                    // request block list
+                    w.requestBlocklist();
+                }
+            }
         }
 
         private int getRosterParts(List<String> jidList) {
             return (int) Math.ceil((double) jidList.size() / MAX_ROSTER_MATCH_SIZE);
         }
 
-        public List<PresenceItem> getResponse() {
+        public RosterResponse getResponse() {
             return (rosterCount >= 0) ? response : null;
         }
 
@@ -327,32 +307,72 @@ public class Syncer {
         }
     }
 
+    /** Logs time and throughput of each sync phase. */
+    private static final class PhaseTimer {
+        private long mStart = SystemClock.elapsedRealtime();
+
+        public void phase(String name, int rows) {
+            long now = SystemClock.elapsedRealtime();
+            long elapsed = now - mStart;
+            mStart = now;
+
+            Log.d(TAG, String.format(Locale.US, "%s: %d rows in %d ms (%.0f rows/s)",
+                name, rows, elapsed, elapsed > 0 ? rows * 1000f / elapsed : 0f));
+        }
+    }
+
+    /** A raw contact created by us. */
+    private static final class RawContactEntry {
+        public final long id;
+        public final String displayName;
+        public final String number;
+
+        public RawContactEntry(long id, String displayName, String number) {
+            this.id = id;
+            this.displayName = displayName;
+            this.number = number;
+        }
+
+        public boolean matches(String displayName, String number) {
+            return TextUtils.equals(this.displayName, displayName) &&
+                TextUtils.equals(this.number, number);
+        }
+    }
+
     /**
      * The actual sync procedure.
-     * This one uses the slowest method ever: it first checks for every phone
-     * number in all contacts and it sends them to the server. Once a response
-     * is received, it deletes all the raw contacts created by us and then
-     * recreates only the ones the server has found a match for.
+     * A full sync uses the slowest method ever: it first checks for every
+     * phone number in all contacts and it sends them to the server. Once a
+     * response is received, it deletes all the raw contacts created by us and
+     * then recreates only the ones the server has found a match for.
+     * An incremental sync sends to the server only new or changed phone
+     * numbers, and then updates only the raw contacts that changed.
      */
     public void performSync(Context context, Account account, String authority,
         ContentProviderClient provider, ContentProviderClient usersProvider,
-        SyncResult syncResult)
+        boolean incremental, SyncResult syncResult)
             throws OperationCanceledException {
 
         final Map<String, RawPhoneNumberEntry> lookupNumbers = new HashMap<>();
         final List<String> jidList = new ArrayList<>();
+        // users matched by previous syncs (incremental only)
+        final Set<String> registered = new HashSet<>();
+        final NumberNormalizer normalizer = new NumberNormalizer(mContext, account.name);
+        final PhaseTimer timer = new PhaseTimer();
 
         // resync users database
-        Log.v(TAG, "resyncing users database");
+        Log.v(TAG, "resyncing users database (incremental=" + incremental + ")");
         Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
 
         // update users database
         Uri uri = Users.CONTENT_URI.buildUpon()
             .appendQueryParameter(Users.RESYNC, "true")
+            .appendQueryParameter(Users.INCREMENTAL, String.valueOf(incremental))
             .build();
         try {
             int count = usersProvider.update(uri, new ContentValues(), null, null);
             Log.d(TAG, "users database resynced (" + count + ")");
+            timer.phase("resync", count);
         }
         catch (Exception e) {
             Log.e(TAG, "error resyncing users database - aborting sync", e);
@@ -364,7 +384,7 @@ public class Syncer {
         Cursor cursor;
         try {
             cursor = usersProvider.query(Users.CONTENT_URI_OFFLINE,
-                new String[] { Users.JID, Users.NUMBER, Users.LOOKUP_KEY },
+                new String[] { Users.JID, Users.NUMBER, Users.LOOKUP_KEY, Users.REGISTERED },
                 null, null, null);
         }
         catch (Exception e) {
@@ -383,13 +403,16 @@ public class Syncer {
             String number = cursor.getString(1);
             String lookupKey = cursor.getString(2);
 
+            if (incremental && cursor.getInt(3) != 0)
+                registered.add(jid);
+
             // a phone number with less than 4 digits???
             if (number.length() < 4)
                 continue;
 
             // fix number
             try {
-                number = NumberValidator.fixNumber(mContext, number, account.name, 0);
+                number = normalizer.normalize(number, 0);
             }
             catch (Exception e) {
                 Log.e(TAG, "unable to normalize number: " + number + " - skipping", e);
@@ -399,15 +422,41 @@ public class Syncer {
 
             // avoid to send duplicates to server
             if (lookupNumbers.put(XmppStringUtils.parseLocalpart(jid),
-                    new RawPhoneNumberEntry(lookupKey, number, jid)) == null)
+                    new RawPhoneNumberEntry(lookupKey, number, jid)) == null && !incremental)
                 jidList.add(jid);
         }
         cursor.close();
 
+        if (incremental) {
+            // send only users never matched before
+            try {
+                cursor = usersProvider.query(Users.CONTENT_URI_OFFLINE.buildUpon()
+                    .appendQueryParameter(Users.NEW, "true")
+                    .build(), new String[] { Users.JID },
+                    null, null, null);
+            }
+            catch (Exception e) {
+                Log.e(TAG, "error querying users database - aborting sync", e);
+                syncResult.databaseError = true;
+                return;
+            }
+
+            while (cursor.moveToNext()) {
+                String jid = cursor.getString(0);
+                if (lookupNumbers.containsKey(XmppStringUtils.parseLocalpart(jid)))
+                    jidList.add(jid);
+            }
+            cursor.close();
+
+            Log.d(TAG, "matching " + jidList.size() + " new users");
+        }
+
+        timer.phase("users query", lookupNumbers.size());
+
         if (mCanceled) throw new OperationCanceledException();
 
         // empty contacts :-|
-        if (jidList.size() == 0) {
+        if (lookupNumbers.isEmpty()) {
             // delete all Kontalk raw contacts
             try {
                 syncResult.stats.numDeletes += deleteAll(account, provider);
@@ -454,17 +503,32 @@ public class Syncer {
             // last chance to quit
             if (mCanceled) throw new OperationCanceledException();
 
-            List<PresenceItem> res = receiver.getResponse();
+            RosterResponse res = receiver.getResponse();
             if (res != null) {
+                timer.phase("roster match", res.size());
+
                 ArrayList<ContentProviderOperation> operations =
                     new ArrayList<ContentProviderOperation>();
-                // TODO operations.size() could be used instead (?)
-                int op = 0;
+                ArrayList<ContentProviderOperation> usersOperations =
+                    new ArrayList<ContentProviderOperation>(res.size());
+                int inserted = 0;
+                int updated = 0;
+                int deleted = 0;
                 String ownContactJid = null;
 
-                // this is the time - delete all Kontalk raw contacts
+                // raw contacts currently in the system, by JID
+                Map<String, RawContactEntry> rawContacts = null;
+
                 try {
-                    syncResult.stats.numDeletes += deleteAll(account, provider);
+                    if (incremental) {
+                        rawContacts = new HashMap<>();
+                        // duplicates will be deleted
+                        deleted += queryRawContacts(account, provider, rawContacts, operations);
+                    }
+                    else {
+                        // this is the time - delete all Kontalk raw contacts
+                        syncResult.stats.numDeletes += deleteAll(account, provider);
+                    }
                 }
                 catch (Exception e) {
                     Log.e(TAG, "contact delete error", e);
@@ -472,19 +536,20 @@ public class Syncer {
                     return;
                 }
 
+                Map<String, String> displayNames = queryDisplayNames(provider);
+                timer.phase("display names", displayNames.size());
+
+                // users that will have a raw contact, by JID
+                Map<String, RawPhoneNumberEntry> matched = new HashMap<>();
+
                 ContentValues registeredValues = new ContentValues();
                 registeredValues.put(Users.REGISTERED, 1);
-                for (int i = 0; i < res.size(); i++) {
-                    PresenceItem entry = res.get(i);
+                for (PresenceItem entry : res.getItems()) {
 
                     final RawPhoneNumberEntry data = lookupNumbers
                         .get(XmppStringUtils.parseLocalpart(entry.from));
                     if (data != null) {
-                        // add contact
-                        addContact(account,
-                                getDisplayName(provider, data.lookupKey, data.number),
-                                data.number, data.jid, operations, op);
-                        op++;
+                        matched.put(data.jid, data);
                     }
                     else {
                         syncResult.stats.numSkippedEntries++;
@@ -550,8 +615,13 @@ public class Syncer {
                                 XmppStringUtils.parseLocalpart(entry.from));
                         else
                             origJid = entry.from;
-                        usersProvider.update(Users.CONTENT_URI_OFFLINE, registeredValues,
-                            Users.JID + " = ?", new String[] { origJid });
+                        // values are copied by the builder
+                        usersOperations.add(ContentProviderOperation
+                            .newUpdate(Users.CONTENT_URI_OFFLINE)
+                            .withValues(registeredValues)
+                            .withSelection(Users.JID + " = ?", new String[] { origJid })
+                            .withYieldAllowed(usersOperations.size() % USERS_YIELD_INTERVAL == 0)
+                            .build());
 
                         // clear data
                         registeredValues.remove(Users.DISPLAY_NAME);
@@ -566,20 +636,79 @@ public class Syncer {
                     }
                 }
 
+                /*
+                 * Users matched by previous syncs are not sent to the server
+                 * again, and their presence data might not have arrived in
+                 * time: they are still registered, so keep their contacts.
+                 */
+                for (String jid : registered) {
+                    RawPhoneNumberEntry data = lookupNumbers
+                        .get(XmppStringUtils.parseLocalpart(jid));
+                    if (data != null)
+                        matched.put(data.jid, data);
+                }
+
+                for (RawPhoneNumberEntry data : matched.values()) {
+                    String displayName = data.lookupKey != null ?
+                        displayNames.get(data.lookupKey) : null;
+                    if (displayName == null)
+                        // lookup key might have changed, let the provider resolve it
+                        displayName = getDisplayName(provider, data.lookupKey, data.number);
+                    RawContactEntry rawContact = rawContacts != null ?
+                        rawContacts.remove(data.jid) : null;
+
+                    if (rawContact == null) {
+                        // add contact
+                        addContact(account, displayName,
+                            data.number, data.jid, operations);
+                        inserted++;
+                    }
+                    else if (!rawContact.matches(displayName, data.number)) {
+                        // update contact
+                        updateContact(account, rawContact.id,
+                            displayName, data.number, operations);
+                        updated++;
+                    }
+                }
+
+                // contacts removed from the users table
+                if (rawContacts != null) {
+                    for (RawContactEntry rawContact : rawContacts.values()) {
+                        deleteContact(account, rawContact.id, operations);
+                        deleted++;
+                    }
+                }
+
+                // update users database in a single transaction
+                try {
+                    if (usersOperations.size() > 0)
+                        usersProvider.applyBatch(usersOperations);
+                    timer.phase("users update", usersOperations.size());
+                }
+                catch (Exception e) {
+                    Log.e(TAG, "error updating users database - aborting sync", e);
+                    syncResult.databaseError = true;
+                    return;
+                }
+
                 try {
                     if (operations.size() > 0)
                         provider.applyBatch(operations);
-                    syncResult.stats.numInserts += op;
-                    syncResult.stats.numEntries += op;
+                    timer.phase("contacts write", operations.size());
+                    syncResult.stats.numInserts += inserted;
+                    syncResult.stats.numUpdates += updated;
+                    syncResult.stats.numDeletes += deleted;
+                    syncResult.stats.numEntries += inserted + updated;
                 }
                 catch (Exception e) {
                     Log.e(TAG, "contact write error", e);
-                    syncResult.stats.numSkippedEntries = op;
+                    syncResult.stats.numSkippedEntries = inserted + updated;
                     syncResult.databaseError = true;
                     return;
                 }
 
                 commit(usersProvider, syncResult);
+                timer.phase("commit", usersOperations.size());
 
                 if (ownContactJid != null)
                     // we found our own contact, trust our own key now
@@ -605,6 +734,7 @@ public class Syncer {
             usersProvider.update(uri, null, null, null);
             Log.d(TAG, "users database committed");
             Contact.invalidate();
+            Contact.prefetch(mContext);
         }
         catch (Exception e) {
             Log.e(TAG, "error committing users database - aborting sync", e);
@@ -641,6 +771,33 @@ public class Syncer {
         mContext.startService(i);
     }
 
+    /** Returns the display names of all system contacts, by lookup key. */
+    private Map<String, String> queryDisplayNames(ContentProviderClient client) {
+        Map<String, String> names = new HashMap<>();
+        Cursor c = null;
+        try {
+            c = client.query(ContactsContract.Contacts.CONTENT_URI,
+                new String[] {
+                    ContactsContract.Contacts.LOOKUP_KEY,
+                    ContactsContract.Contacts.DISPLAY_NAME
+                }, null, null, null);
+            while (c.moveToNext()) {
+                String name = c.getString(1);
+                if (name != null)
+                    names.put(c.getString(0), name);
+            }
+        }
+        catch (Exception e) {
+            // names will be queried one by one
+            Log.w(TAG, "unable to query display names", e);
+        }
+        finally {
+            if (c != null)
+                c.close();
+        }
+        return names;
+    }
+
     private String getDisplayName(ContentProviderClient client, String lookupKey, String defaultValue) {
         String displayName = null;
         Cursor nameQuery = null;
@@ -669,44 +826,103 @@ public class Syncer {
 
     private int deleteAll(Account account, ContentProviderClient provider)
             throws RemoteException {
-        return provider.delete(RawContacts.CONTENT_URI.buildUpon()
-            .appendQueryParameter(ContactsContract.CALLER_IS_SYNCADAPTER, "true")
-            .appendQueryParameter(RawContacts.ACCOUNT_NAME, account.name)
-            .appendQueryParameter(RawContacts.ACCOUNT_TYPE, account.type)
-            .build(), null, null);
+        return provider.delete(syncAdapterUri(RawContacts.CONTENT_URI, account), null, null);
     }
 
-    /*
-    private int deleteContact(Account account, long rawContactId) {
-        Uri uri = ContentUris.withAppendedId(RawContacts.CONTENT_URI, rawContactId)
-            .buildUpon()
+    private Uri syncAdapterUri(Uri uri, Account account) {
+        return uri.buildUpon()
             .appendQueryParameter(ContactsContract.CALLER_IS_SYNCADAPTER, "true")
             .appendQueryParameter(RawContacts.ACCOUNT_NAME, account.name)
             .appendQueryParameter(RawContacts.ACCOUNT_TYPE, account.type)
             .build();
-        ContentProviderClient client = mContext.getContentResolver().acquireContentProviderClient(ContactsContract.AUTHORITY_URI);
+    }
+
+    /**
+     * Loads our raw contacts by JID. Delete operations are added for
+     * duplicate raw contacts.
+     * @return number of duplicates to be deleted
+     */
+    private int queryRawContacts(Account account, ContentProviderClient provider,
+            Map<String, RawContactEntry> rawContacts, List<ContentProviderOperation> operations)
+            throws RemoteException {
+        int duplicates = 0;
+        Cursor c = provider.query(syncAdapterUri(RawContacts.CONTENT_URI, account),
+            new String[] {
+                RawContacts._ID,
+                RAW_COLUMN_USERID,
+                RAW_COLUMN_DISPLAY_NAME,
+                RAW_COLUMN_PHONE
+            }, RawContacts.DELETED + "=0", null, null);
+
+        if (c == null)
+            throw new RemoteException();
+
         try {
-            return client.delete(uri, null, null);
-        }
-        catch (RemoteException e) {
-            Log.e(TAG, "delete error", e);
+            while (c.moveToNext()) {
+                long id = c.getLong(0);
+                String jid = c.getString(1);
+                if (jid == null || rawContacts.containsKey(jid)) {
+                    deleteContact(account, id, operations);
+                    duplicates++;
+                }
+                else {
+                    rawContacts.put(jid, new RawContactEntry(id,
+                        c.getString(2), c.getString(3)));
+                }
+            }
         }
         finally {
-            client.release();
+            c.close();
         }
 
-        return -1;
+        return duplicates;
+    }
+
+    private void deleteContact(Account account, long rawContactId,
+            List<ContentProviderOperation> operations) {
+        operations.add(ContentProviderOperation.newDelete(syncAdapterUri(ContentUris
+            .withAppendedId(RawContacts.CONTENT_URI, rawContactId), account))
+            .withYieldAllowed(true)
+            .build());
+    }
+
+    private void updateContact(Account account, long rawContactId, String username, String phone,
+            List<ContentProviderOperation> operations) {
+        if (BuildConfig.DEBUG) {
+            Log.d(TAG, "updating contact \"" + username + "\" <" + phone + ">");
+        }
+
+        String[] args = { String.valueOf(rawContactId), null };
+
+        operations.add(ContentProviderOperation.newUpdate(syncAdapterUri(ContentUris
+            .withAppendedId(RawContacts.CONTENT_URI, rawContactId), account))
+            .withValue(RAW_COLUMN_DISPLAY_NAME, username)
+            .withValue(RAW_COLUMN_PHONE, phone)
+            .build());
+
+        args[1] = ContactsContract.CommonDataKinds.StructuredName.CONTENT_ITEM_TYPE;
+        operations.add(ContentProviderOperation.newUpdate(syncAdapterUri(Data.CONTENT_URI, account))
+            .withSelection(Data.RAW_CONTACT_ID + "=? AND " + Data.MIMETYPE + "=?", args.clone())
+            .withValue(ContactsContract.CommonDataKinds.StructuredName.DISPLAY_NAME, username)
+            .build());
+
+        args[1] = Users.CONTENT_ITEM_TYPE;
+        operations.add(ContentProviderOperation.newUpdate(syncAdapterUri(Data.CONTENT_URI, account))
+            .withSelection(Data.RAW_CONTACT_ID + "=? AND " + Data.MIMETYPE + "=?", args.clone())
+            .withValue(DATA_COLUMN_DISPLAY_NAME, username)
+            .withValue(DATA_COLUMN_PHONE, phone)
+            .withYieldAllowed(true)
+            .build());
     }
-    */
 
     private void addContact(Account account, String username, String phone, String jid,
-            List<ContentProviderOperation> operations, int index) {
+            List<ContentProviderOperation> operations) {
         if (BuildConfig.DEBUG) {
             Log.d(TAG, "adding contact \"" + username + "\" <" + phone + ">");
         }
 
         ContentProviderOperation.Builder builder;
-        final int opIndex = index * 3;
+        final int opIndex = operations.size();
 
         // create our RawContact
         builder = ContentProviderOperation.newInsert(RawContacts.CONTENT_URI)
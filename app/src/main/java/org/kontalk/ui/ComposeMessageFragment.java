@@ -20,6 +20,7 @@ package org.kontalk.ui;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Random;
@@ -88,6 +89,8 @@ import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.view.View;
 import android.view.ViewGroup;
+import android.view.ViewTreeObserver;
+import android.widget.AbsListView;
 import android.widget.ImageView;
 import android.widget.ListView;
 import android.widget.TextView;
@@ -150,6 +153,11 @@ public class ComposeMessageFragment extends ActionModeListFragment implements
 
     private static final int MESSAGE_LIST_QUERY_TOKEN = 8720;
     private static final int CONVERSATION_QUERY_TOKEN = 8721;
+    private static final int MESSAGE_PAGE_QUERY_TOKEN = 8722;
+    private static final int MESSAGE_NEXT_PAGE_QUERY_TOKEN = 8723;
+
+    /** Number of messages loaded at a time in the message list. */
+    private static final int MESSAGE_PAGE_SIZE = 100;
 
     private static final int SELECT_ATTACHMENT_OPENABLE = Activity.RESULT_FIRST_USER + 1;
     private static final int SELECT_ATTACHMENT_CONTACT = Activity.RESULT_FIRST_USER + 2;
@@ -191,6 +199,25 @@ public class ComposeMessageFragment extends ActionModeListFragment implements
 
     /** The thread id. */
     private long threadId = -1;
+
+    /** Thread the loaded messages window refers to. */
+    private long mWindowThreadId = -1;
+    /** Oldest message loaded, 0 if loaded from the first message. */
+    private long mWindowStartId;
+    /** Newest message loaded, 0 if loaded up to the latest message. */
+    private long mWindowEndId;
+    /** Message to scroll to when the window is first displayed. */
+    private long mTargetMessageId;
+    /** True to scroll to the latest message when the window is first displayed. */
+    private boolean mScrollToLatest;
+    /** Oldest message in the displayed list, 0 for all, -1 if nothing is displayed. */
+    private long mDisplayedStartId = -1;
+    /** True while loading older messages. */
+    private boolean mLoadingOlder;
+    /** True while loading newer messages. */
+    private boolean mLoadingNewer;
+    /** True if the next message list will add newer messages. */
+    private boolean mAppendingNewer;
     private Conversation mConversation;
     private Bundle mArguments;
 
@@ -267,6 +294,23 @@ public class ComposeMessageFragment extends ActionModeListFragment implements
 
         ListView list = getListView();
         list.setFastScrollEnabled(true);
+        list.setOnScrollListener(new AbsListView.OnScrollListener() {
+            @Override
+            public void onScrollStateChanged(AbsListView view, int scrollState) {
+                if (scrollState == SCROLL_STATE_IDLE)
+                    updateVisibleDownloads();
+            }
+
+            @Override
+            public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+                // reached the top, load older messages
+                if (firstVisibleItem == 0 && visibleItemCount > 0 && totalItemCount > 0)
+                    loadOlderMessages();
+                // reached the bottom, load newer messages
+                else if (firstVisibleItem + visibleItemCount >= totalItemCount && totalItemCount > 0)
+                    loadNewerMessages();
+            }
+        });
 
         setMultiChoiceModeListener(this);
 
@@ -609,6 +653,7 @@ public class ComposeMessageFragment extends ActionModeListFragment implements
             // TODO convert to thread (?)
 
             offlineModeWarning();
+            showLatestMessages();
 
             msgId = MessageCenterService.messageId();
 
@@ -778,6 +823,7 @@ public class ComposeMessageFragment extends ActionModeListFragment implements
     public void sendTextMessage(String message) {
         if (!TextUtils.isEmpty(message)) {
             offlineModeWarning();
+            showLatestMessages();
 
             // start thread
             new TextMessageThread(message).start();
@@ -905,11 +951,30 @@ public class ComposeMessageFragment extends ActionModeListFragment implements
         }
     }
 
+    /** Tells the download service which attachments are on screen. */
+    private void updateVisibleDownloads() {
+        ListView list = getListView();
+        Set<String> urls = new HashSet<>();
+        for (int i = 0, c = list.getChildCount(); i < c; i++) {
+            View child = list.getChildAt(i);
+            if (child instanceof MessageListItem) {
+                CompositeMessage msg = ((MessageListItem) child).getMessage();
+                AttachmentComponent attachment = msg != null ? (AttachmentComponent) msg
+                    .getComponent(AttachmentComponent.class) : null;
+                if (attachment != null && attachment.getFetchUrl() != null)
+                    urls.add(attachment.getFetchUrl());
+            }
+        }
+        DownloadService.setVisibleDownloads(urls);
+    }
+
     private void startDownload(CompositeMessage msg) {
         AttachmentComponent attachment = (AttachmentComponent) msg
                 .getComponent(AttachmentComponent.class);
 
         if (attachment != null && attachment.getFetchUrl() != null) {
+            updateVisibleDownloads();
+
             Intent i = new Intent(getActivity(), DownloadService.class);
             i.setAction(DownloadService.ACTION_DOWNLOAD_URL);
             i.putExtra(CompositeMessage.MSG_ID, msg.getDatabaseId());
@@ -1195,8 +1260,17 @@ public class ComposeMessageFragment extends ActionModeListFragment implements
             if (progress)
                 getActivity().setProgressBarIndeterminateVisibility(true);
 
-            CompositeMessage.startQuery(mQueryHandler, MESSAGE_LIST_QUERY_TOKEN,
-                    threadId);
+            if (mWindowThreadId != threadId) {
+                // new conversation - find out where the first page starts
+                Bundle args = myArguments();
+                long msgId = (args != null) ?
+                    args.getLong(ComposeMessage.EXTRA_MESSAGE, -1) : -1;
+                startWindowQuery(msgId);
+            }
+            else {
+                CompositeMessage.startQuery(mQueryHandler, MESSAGE_LIST_QUERY_TOKEN,
+                        threadId, mWindowStartId, mWindowEndId);
+            }
 
             if (reloadConversation)
                 Conversation.startQuery(mQueryHandler,
@@ -1208,6 +1282,81 @@ public class ComposeMessageFragment extends ActionModeListFragment implements
         }
     }
 
+    /**
+     * Loads a new window of messages: a page around the given message, or
+     * the latest page if msgId is not positive.
+     */
+    private void startWindowQuery(long msgId) {
+        mWindowThreadId = threadId;
+        mWindowStartId = 0;
+        mWindowEndId = 0;
+        mDisplayedStartId = -1;
+        mLoadingOlder = false;
+        mLoadingNewer = false;
+        mAppendingNewer = false;
+        mTargetMessageId = msgId;
+
+        if (msgId > 0) {
+            // page around the message to scroll to; queries complete in order,
+            // so the end of the window is known when the list is loaded
+            CompositeMessage.startNextPageQuery(mQueryHandler, MESSAGE_NEXT_PAGE_QUERY_TOKEN,
+                threadId, msgId, MESSAGE_PAGE_SIZE / 2);
+            CompositeMessage.startPageQuery(mQueryHandler, MESSAGE_PAGE_QUERY_TOKEN,
+                threadId, msgId + 1, MESSAGE_PAGE_SIZE / 2);
+        }
+        else {
+            CompositeMessage.startPageQuery(mQueryHandler, MESSAGE_PAGE_QUERY_TOKEN,
+                threadId, 0, MESSAGE_PAGE_SIZE);
+        }
+    }
+
+    /**
+     * Returns true if a message list loaded from the given message extends
+     * the displayed list with older messages. Also updates the displayed
+     * window.
+     */
+    private boolean isOlderPage(long startId) {
+        boolean older = mDisplayedStartId > 0 &&
+            (startId == 0 || startId < mDisplayedStartId);
+
+        mDisplayedStartId = startId;
+        if (startId == mWindowStartId)
+            mLoadingOlder = false;
+
+        return older;
+    }
+
+    /** Extends the loaded messages window by a page of older messages. */
+    private void loadOlderMessages() {
+        if (mLoadingOlder || mWindowStartId <= 0 || mWindowThreadId != threadId)
+            return;
+
+        mLoadingOlder = true;
+        CompositeMessage.startPageQuery(mQueryHandler, MESSAGE_PAGE_QUERY_TOKEN,
+            threadId, mWindowStartId, MESSAGE_PAGE_SIZE);
+    }
+
+    /** Extends the loaded messages window by a page of newer messages. */
+    private void loadNewerMessages() {
+        if (mLoadingNewer || mWindowEndId <= 0 || mWindowThreadId != threadId)
+            return;
+
+        mLoadingNewer = true;
+        CompositeMessage.startNextPageQuery(mQueryHandler, MESSAGE_NEXT_PAGE_QUERY_TOKEN,
+            threadId, mWindowEndId, MESSAGE_PAGE_SIZE);
+    }
+
+    /**
+     * Loads the latest page of messages if the window doesn't reach the
+     * latest message, so that a message being sent will be visible.
+     */
+    private void showLatestMessages() {
+        if (mWindowEndId > 0 && mWindowThreadId == threadId) {
+            startWindowQuery(0);
+            mScrollToLatest = true;
+        }
+    }
+
     private void showMessageDetails(CompositeMessage msg) {
         MessageUtils.showMessageDetails(getActivity(), msg,
             mUserPhone != null ? mUserPhone : mUserJID);
@@ -2332,6 +2481,9 @@ public class ComposeMessageFragment extends ActionModeListFragment implements
         // pause content watcher
         pauseContentListener();
 
+        // attachments are not visible anymore
+        DownloadService.setVisibleDownloads(Collections.<String>emptySet());
+
         // notify parent of pausing
         ComposeMessage parent = getParentActivity();
         if (parent != null)
@@ -2539,16 +2691,47 @@ public class ComposeMessageFragment extends ActionModeListFragment implements
                     cursor.close();
 
                 Log.e(TAG, "query aborted or error!");
+                mLoadingOlder = false;
+                mLoadingNewer = false;
+                mAppendingNewer = false;
                 unregisterPeerObserver();
                 mListAdapter.changeCursor(null);
                 return;
             }
 
             switch (token) {
+                case MESSAGE_PAGE_QUERY_TOKEN:
+                    // no rows: the page reaches the beginning of the conversation
+                    mWindowStartId = cursor.moveToFirst() ? cursor.getLong(0) : 0;
+                    cursor.close();
+
+                    CompositeMessage.startQuery(this, MESSAGE_LIST_QUERY_TOKEN,
+                        threadId, mWindowStartId, mWindowEndId);
+                    break;
+
+                case MESSAGE_NEXT_PAGE_QUERY_TOKEN:
+                    // no rows: the page reaches the latest message
+                    mWindowEndId = cursor.moveToFirst() ? cursor.getLong(0) : 0;
+                    cursor.close();
+
+                    // the list will be loaded by the page query otherwise
+                    if (mLoadingNewer) {
+                        mAppendingNewer = true;
+                        CompositeMessage.startQuery(this, MESSAGE_LIST_QUERY_TOKEN,
+                            threadId, mWindowStartId, mWindowEndId);
+                    }
+                    break;
+
                 case MESSAGE_LIST_QUERY_TOKEN:
 
+                    // window messages were deleted: other messages might exist
+                    if (cursor.getCount() == 0 && (mWindowStartId > 0 || mWindowEndId > 0)) {
+                        cursor.close();
+                        startWindowQuery(0);
+                    }
+
                     // no messages to show - exit
-                    if (cursor.getCount() == 0
+                    else if (cursor.getCount() == 0
                             && (mConversation == null ||
                                 // no draft
                                 (mConversation.getDraft() == null &&
@@ -2563,25 +2746,61 @@ public class ComposeMessageFragment extends ActionModeListFragment implements
                         closeConversation();
 
                     }
+                    else if (isOlderPage((Long) cookie)) {
+                        // keep the current scroll position
+                        ListView list = getListView();
+                        int added = cursor.getCount() - mListAdapter.getCount();
+                        int first = list.getFirstVisiblePosition();
+                        View firstView = list.getChildAt(0);
+                        int top = (firstView != null) ? firstView.getTop() : 0;
+
+                        mListAdapter.changeCursor(cursor);
+                        list.setSelectionFromTop(first + added, top);
+                        updateUI();
+                    }
+                    else if (mAppendingNewer) {
+                        mAppendingNewer = false;
+                        mLoadingNewer = false;
+                        // newer messages are added at the bottom, don't follow them
+                        final ListView list = getListView();
+                        int first = list.getFirstVisiblePosition();
+                        View firstView = list.getChildAt(0);
+                        int top = (firstView != null) ? firstView.getTop() : 0;
+
+                        // transcript mode would scroll to the bottom
+                        list.setTranscriptMode(AbsListView.TRANSCRIPT_MODE_DISABLED);
+                        list.getViewTreeObserver().addOnPreDrawListener(new ViewTreeObserver.OnPreDrawListener() {
+                            @Override
+                            public boolean onPreDraw() {
+                                list.getViewTreeObserver().removeOnPreDrawListener(this);
+                                list.setTranscriptMode(AbsListView.TRANSCRIPT_MODE_NORMAL);
+                                return true;
+                            }
+                        });
+
+                        mListAdapter.changeCursor(cursor);
+                        list.setSelectionFromTop(first, top);
+                        updateUI();
+                    }
                     else {
                         // see if we have to scroll to a specific message
                         int newSelectionPos = -1;
 
-                        Bundle args = myArguments();
-                        if (args != null) {
-                            long msgId = args.getLong(ComposeMessage.EXTRA_MESSAGE,
-                                    -1);
-                            if (msgId > 0) {
-
-                                cursor.moveToPosition(-1);
-                                while (cursor.moveToNext()) {
-                                    long curId = cursor.getLong(CompositeMessage.COLUMN_ID);
-                                    if (curId == msgId) {
-                                        newSelectionPos = cursor.getPosition();
-                                        break;
-                                    }
+                        if (mTargetMessageId > 0) {
+                            cursor.moveToPosition(-1);
+                            while (cursor.moveToNext()) {
+                                long curId = cursor.getLong(CompositeMessage.COLUMN_ID);
+                                if (curId == mTargetMessageId) {
+                                    newSelectionPos = cursor.getPosition();
+                                    break;
                                 }
                             }
+                            // scroll only the first time
+                            mTargetMessageId = 0;
+                        }
+                        else if (mScrollToLatest) {
+                            newSelectionPos = cursor.getCount() - 1;
+                            mScrollToLatest = false;
                         }
 
                         mListAdapter.changeCursor(cursor);
@@ -18,7 +18,10 @@
 
 package org.kontalk.ui;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 
 import org.jxmpp.util.XmppStringUtils;
@@ -54,6 +57,7 @@ import android.support.v4.app.NotificationCompat.InboxStyle;
 import android.support.v4.app.NotificationCompat.Style;
 import android.text.Spannable;
 import android.text.SpannableStringBuilder;
+import android.text.TextUtils;
 import android.text.style.ForegroundColorSpan;
 import android.text.style.StyleSpan;
 
@@ -77,11 +81,20 @@ public class MessagingNotification {
     /** Minimum delay for progress notification updates. */
     public static final int NOTIFICATION_UPDATE_DELAY = 500;
 
-    private static final String[] MESSAGES_UNREAD_PROJECTION =
+    /** Maximum number of lines kept for each conversation. */
+    private static final int MAX_LINES_PER_THREAD = 8;
+
+    private static final String[] THREADS_NEW_PROJECTION =
     {
-        Messages.THREAD_ID,
+        CommonColumns._ID,
         CommonColumns.PEER,
-        Messages.BODY_CONTENT,
+        CommonColumns.NEW,
+    };
+
+    private static final String[] MESSAGES_UNREAD_PROJECTION =
+    {
+        Messages._ID,
+        Messages.BODY_PREVIEW,
         Messages.ATTACHMENT_MIME,
         CommonColumns.ENCRYPTED,
     };
@@ -100,6 +113,35 @@ public class MessagingNotification {
         CommonColumns.NEW + " <> 0 AND " +
         CommonColumns.DIRECTION + " = " + Messages.DIRECTION_IN;
 
+    /** Summary of new messages in a conversation. */
+    private static final class ThreadSummary {
+        public final long threadId;
+        public final String peer;
+        /** Number of new messages. */
+        public int count;
+        /** Latest message included in lines. */
+        public long lastMessageId;
+        /** Text of the latest new messages, oldest first. */
+        public final LinkedList<CharSequence> lines = new LinkedList<>();
+
+        public ThreadSummary(long threadId, String peer) {
+            this.threadId = threadId;
+            this.peer = peer;
+        }
+
+        public void addLine(CharSequence line) {
+            lines.add(line);
+            if (lines.size() > MAX_LINES_PER_THREAD)
+                lines.removeFirst();
+        }
+    }
+
+    /**
+     * Conversations currently notified, by thread ID. They are updated with
+     * messages received since the last update, without reloading everything.
+     */
+    private static final Map<Long, ThreadSummary> sThreads = new HashMap<>();
+
     /** Pending delayed notification update flag. */
     private static volatile boolean sPending;
 
@@ -193,33 +235,28 @@ public class MessagingNotification {
         }
         */
 
+        if (supportsBigNotifications())
+            updateBigNotification(context, account, isNew);
+        else
+            updateNotification(context, isNew);
+    }
+
+    /** Updates the notification using big styles, from conversation summaries. */
+    private static void updateBigNotification(Context context, Account account, boolean isNew) {
         ContentResolver res = context.getContentResolver();
         NotificationManager nm = (NotificationManager) context
             .getSystemService(Context.NOTIFICATION_SERVICE);
 
-        String query = MESSAGES_UNREAD_SELECTION;
+        String query = CommonColumns.NEW + " <> 0";
         String[] args = null;
-        String[] proj;
-        String order;
-        Uri uri;
-        if (supportsBigNotifications()) {
-            uri = Messages.CONTENT_URI;
-            proj = MESSAGES_UNREAD_PROJECTION;
-            order = Messages.DEFAULT_SORT_ORDER;
-        }
-        else {
-            uri = Threads.CONTENT_URI;
-            proj = THREADS_UNREAD_PROJECTION;
-            order = Threads.INVERTED_SORT_ORDER;
-        }
-
         // is there a peer to not notify for?
         if (sPaused != null) {
             query += " AND " + CommonColumns.PEER + " <> ?";
             args = new String[] { sPaused };
         }
 
-        Cursor c = res.query(uri, proj, query, args, order);
+        Cursor c = res.query(Threads.CONTENT_URI, THREADS_NEW_PROJECTION,
+            query, args, Threads.DEFAULT_SORT_ORDER);
 
         // this shouldn't happen, but who knows...
         if (c == null) {
@@ -227,56 +264,43 @@ public class MessagingNotification {
             return;
         }
 
-        // no unread messages - delete notification
-        int unread = c.getCount();
-        if (unread == 0) {
-            c.close();
-            nm.cancel(NOTIFICATION_ID_MESSAGES);
-            return;
-        }
-
         NotificationCompat.Builder builder = new NotificationCompat.Builder(context.getApplicationContext());
 
-        if (supportsBigNotifications()) {
-            Map<String, CharSequence[]> convs = new HashMap<String, CharSequence[]>();
+        synchronized (sThreads) {
+            List<ThreadSummary> convs = new ArrayList<>(c.getCount());
+            int unread = 0;
 
-            String peer = null;
-            long id = 0;
+            Map<Long, ThreadSummary> current = new HashMap<>(c.getCount());
             while (c.moveToNext()) {
-                // thread_id for PendingIntent
-                id = c.getLong(0);
-                peer = c.getString(1);
-                byte[] content = c.getBlob(2);
-                String attMime = c.getString(3);
-
-                CharSequence[] b = convs.get(peer);
-                if (b == null) {
-                    b = new CharSequence[2];
-                    b[0] = new StringBuilder();
-                    b[1] = null;
-                    convs.put(peer, b);
+                long threadId = c.getLong(0);
+                int count = c.getInt(2);
+
+                ThreadSummary conv = sThreads.get(threadId);
+                if (conv == null || count < conv.count) {
+                    // new conversation or messages were read - reload
+                    conv = new ThreadSummary(threadId, c.getString(1));
+                    loadLines(context, conv, count);
                 }
-                else {
-                    ((StringBuilder) b[0]).append('\n');
+                else if (count > conv.count) {
+                    // load only new messages
+                    loadLines(context, conv, count - conv.count);
                 }
+                conv.count = count;
 
-                String textContent;
+                current.put(threadId, conv);
+                convs.add(conv);
+                unread += count;
+            }
+            c.close();
 
-                boolean encrypted = c.getInt(4) != 0;
-                if (encrypted) {
-                    textContent = context.getString(R.string.text_encrypted);
-                }
-                else if (content == null && attMime != null) {
-                    textContent = CompositeMessage.getSampleTextContent(attMime);
-                }
-                else {
-                    textContent = content != null ? new String(content) : "";
-                }
+            sThreads.clear();
+            sThreads.putAll(current);
 
-                ((StringBuilder) b[0]).append(textContent);
-                b[1] = textContent;
+            // no unread messages - delete notification
+            if (unread == 0) {
+                nm.cancel(NOTIFICATION_ID_MESSAGES);
+                return;
             }
-            c.close();
 
             // TODO we are not ready for this -- builder.addAction(android.R.drawable.ic_menu_revert, "Reply", accumulator.getPendingIntent());
 
@@ -298,10 +322,10 @@ public class MessagingNotification {
                 // text: comma separated names (TODO RTL?)
                 StringBuilder btext = new StringBuilder();
                 int count = 0;
-                for (String user : convs.keySet()) {
+                for (ThreadSummary conv : convs) {
                     count++;
 
-                    Contact contact = Contact.findByUserId(context, user);
+                    Contact contact = Contact.findByUserId(context, conv.peer);
                     String name = (contact != null) ? contact.getName() :
                         context.getString(R.string.peer_unknown);
 
@@ -319,7 +343,7 @@ public class MessagingNotification {
                                 .getColor(R.color.notification_name_color)),
                             0, buf.length(), Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
                         // take just the last message
-                        buf.append(convs.get(user)[1]);
+                        buf.append(conv.lines.isEmpty() ? "" : conv.lines.getLast());
 
                         ((InboxStyle) style).addLine(buf);
                     }
@@ -342,8 +366,9 @@ public class MessagingNotification {
             }
             // one conversation, use BigTextStyle
             else {
-                String content = convs.get(peer)[0].toString();
-                CharSequence last = convs.get(peer)[1];
+                ThreadSummary conv = convs.get(0);
+                String content = TextUtils.join("\n", conv.lines);
+                CharSequence last = conv.lines.isEmpty() ? "" : conv.lines.getLast();
 
                 // big text content
                 style = new BigTextStyle();
@@ -351,7 +376,7 @@ public class MessagingNotification {
                 ((BigTextStyle) style).setSummaryText(account.name);
 
                 // ticker
-                Contact contact = Contact.findByUserId(context, peer);
+                Contact contact = Contact.findByUserId(context, conv.peer);
                 String name = (contact != null) ? contact.getName() :
                     context.getString(R.string.peer_unknown);
                     // debug mode -- conversation.peer;
@@ -399,7 +424,7 @@ public class MessagingNotification {
             }
             // one unread conversation - open ComposeMessage on that peer
             else {
-                ni = ComposeMessage.fromConversation(context, id);
+                ni = ComposeMessage.fromConversation(context, convs.get(0).threadId);
             }
             PendingIntent pi = PendingIntent.getActivity(context, NOTIFICATION_ID_MESSAGES,
                     ni, 0);
@@ -407,44 +432,131 @@ public class MessagingNotification {
             builder.setContentIntent(pi);
         }
 
-        else {
+        notify(context, builder, isNew);
+    }
+
+    /**
+     * Loads the latest new messages of a conversation after the last one
+     * already in its summary.
+     * @param count number of messages to load
+     */
+    private static void loadLines(Context context, ThreadSummary conv, int count) {
+        Uri uri = Messages.CONTENT_URI.buildUpon()
+            .appendQueryParameter(Messages.LIMIT,
+                String.valueOf(Math.min(count, MAX_LINES_PER_THREAD)))
+            .build();
+
+        Cursor c = context.getContentResolver().query(uri, MESSAGES_UNREAD_PROJECTION,
+            Messages.THREAD_ID + " = ? AND " + Messages._ID + " > ? AND " +
+                MESSAGES_UNREAD_SELECTION,
+            new String[] { String.valueOf(conv.threadId), String.valueOf(conv.lastMessageId) },
+            Messages.INVERTED_SORT_ORDER);
+        if (c == null)
+            return;
+
+        try {
+            if (c.moveToFirst())
+                conv.lastMessageId = c.getLong(0);
 
-            // loop all threads and accumulate them
-            MessageAccumulator accumulator = new MessageAccumulator(context);
-            while (c.moveToNext()) {
-                String content = c.getString(3);
-                boolean encrypted = c.getInt(4) != 0;
-
-                if (encrypted)
-                    content = context.getString(R.string.text_encrypted);
-                else if (content == null)
-                    content = CompositeMessage.getSampleTextContent(c.getString(2));
-
-                accumulator.accumulate(
-                    c.getLong(0),
-                    c.getString(1),
-                    content,
-                    c.getInt(5)
-                );
+            // oldest first
+            if (c.moveToLast()) {
+                do {
+                    String content = c.getString(1);
+                    String attMime = c.getString(2);
+
+                    String textContent;
+
+                    boolean encrypted = c.getInt(3) != 0;
+                    if (encrypted) {
+                        textContent = context.getString(R.string.text_encrypted);
+                    }
+                    else if (content == null && attMime != null) {
+                        textContent = CompositeMessage.getSampleTextContent(attMime);
+                    }
+                    else {
+                        textContent = content != null ? content : "";
+                    }
+
+                    conv.addLine(textContent);
+                } while (c.moveToPrevious());
             }
+        }
+        finally {
             c.close();
+        }
+    }
 
-            builder.setTicker(accumulator.getTicker());
-            Contact contact = accumulator.getContact();
-            if (contact != null) {
-                Drawable avatar = contact.getAvatar(context);
-                if (avatar != null)
-                    builder.setLargeIcon(MessageUtils.drawableToBitmap(avatar));
-            }
-            builder.setNumber(accumulator.unreadCount);
-            builder.setSmallIcon(R.drawable.ic_stat_notify);
-            builder.setContentTitle(accumulator.getTitle());
-            builder.setContentText(accumulator.getText());
-            builder.setContentIntent(accumulator.getPendingIntent());
-            builder.setDeleteIntent(PendingIntent.getBroadcast(context, 0,
-                sNotificationOnDeleteIntent, 0));
+    /** Updates the notification from unread conversations. */
+    private static void updateNotification(Context context, boolean isNew) {
+        ContentResolver res = context.getContentResolver();
+        NotificationManager nm = (NotificationManager) context
+            .getSystemService(Context.NOTIFICATION_SERVICE);
+
+        String query = MESSAGES_UNREAD_SELECTION;
+        String[] args = null;
+        // is there a peer to not notify for?
+        if (sPaused != null) {
+            query += " AND " + CommonColumns.PEER + " <> ?";
+            args = new String[] { sPaused };
+        }
+
+        Cursor c = res.query(Threads.CONTENT_URI, THREADS_UNREAD_PROJECTION,
+            query, args, Threads.INVERTED_SORT_ORDER);
+
+        // this shouldn't happen, but who knows...
+        if (c == null) {
+            nm.cancel(NOTIFICATION_ID_MESSAGES);
+            return;
+        }
+
+        // no unread messages - delete notification
+        if (c.getCount() == 0) {
+            c.close();
+            nm.cancel(NOTIFICATION_ID_MESSAGES);
+            return;
+        }
+
+        NotificationCompat.Builder builder = new NotificationCompat.Builder(context.getApplicationContext());
+
+        // loop all threads and accumulate them
+        MessageAccumulator accumulator = new MessageAccumulator(context);
+        while (c.moveToNext()) {
+            String content = c.getString(3);
+            boolean encrypted = c.getInt(4) != 0;
+
+            if (encrypted)
+                content = context.getString(R.string.text_encrypted);
+            else if (content == null)
+                content = CompositeMessage.getSampleTextContent(c.getString(2));
+
+            accumulator.accumulate(
+                c.getLong(0),
+                c.getString(1),
+                content,
+                c.getInt(5)
+            );
         }
+        c.close();
 
+        builder.setTicker(accumulator.getTicker());
+        Contact contact = accumulator.getContact();
+        if (contact != null) {
+            Drawable avatar = contact.getAvatar(context);
+            if (avatar != null)
+                builder.setLargeIcon(MessageUtils.drawableToBitmap(avatar));
+        }
+        builder.setNumber(accumulator.unreadCount);
+        builder.setSmallIcon(R.drawable.ic_stat_notify);
+        builder.setContentTitle(accumulator.getTitle());
+        builder.setContentText(accumulator.getText());
+        builder.setContentIntent(accumulator.getPendingIntent());
+        builder.setDeleteIntent(PendingIntent.getBroadcast(context, 0,
+            sNotificationOnDeleteIntent, 0));
+
+        notify(context, builder, isNew);
+    }
+
+    private static void notify(Context context, NotificationCompat.Builder builder, boolean isNew) {
         if (isNew) {
             setDefaults(context, builder);
         }
@@ -452,6 +564,8 @@ public class MessagingNotification {
         // features (priority, category)
         setFeatures(context, builder);
 
+        NotificationManager nm = (NotificationManager) context
+            .getSystemService(Context.NOTIFICATION_SERVICE);
         nm.notify(NOTIFICATION_ID_MESSAGES, builder.build());
 
         /* TODO take this from configuration
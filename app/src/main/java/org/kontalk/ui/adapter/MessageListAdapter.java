@@ -18,6 +18,7 @@
 
 package org.kontalk.ui.adapter;
 
+import java.util.Arrays;
 import java.util.regex.Pattern;
 
 import org.kontalk.R;
@@ -31,6 +32,7 @@ import org.kontalk.util.MessageUtils;
 
 import android.content.Context;
 import android.database.Cursor;
+import android.support.v4.util.LruCache;
 import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -44,6 +46,9 @@ public class MessageListAdapter extends CursorAdapter {
 
     private static final String TAG = ComposeMessage.TAG;
 
+    /** Maximum number of parsed messages kept in memory. */
+    private static final int MAX_CACHED_MESSAGES = 100;
+
     private final LayoutInflater mFactory;
     private final Pattern mHighlight;
     private OnContentChangedListener mOnContentChangedListener;
@@ -51,11 +56,32 @@ public class MessageListAdapter extends CursorAdapter {
     private Contact mContact;
     private AudioPlayerControl mAudioPlayerControl;
 
+    /** A parsed message and the version of the row it was parsed from. */
+    private static final class CachedMessage {
+        final CompositeMessage message;
+        final long version;
+
+        CachedMessage(CompositeMessage message, long version) {
+            this.message = message;
+            this.version = version;
+        }
+    }
+
+    /**
+     * Parsed messages by database ID. Entries are checked against the
+     * cursor row, so they survive cursor changes.
+     */
+    private final LruCache<Long, CachedMessage> mCache =
+        new LruCache<>(MAX_CACHED_MESSAGES);
+    /** Message timestamps by cursor position, zero if not read yet. */
+    private long[] mTimestamps;
+
     public MessageListAdapter(Context context, Cursor cursor, Pattern highlight, ListView list, AudioPlayerControl audioPlayerControl) {
         super(context, cursor, false);
         mFactory = LayoutInflater.from(context);
         mHighlight = highlight;
         mAudioPlayerControl = audioPlayerControl;
+        invalidate(cursor);
 
         list.setRecyclerListener(new RecyclerListener() {
             public void onMovedToScrapHeap(View view) {
@@ -74,20 +100,93 @@ public class MessageListAdapter extends CursorAdapter {
         }
 
         MessageListItem headerView = (MessageListItem) view;
-        CompositeMessage msg = CompositeMessage.fromCursor(context, cursor);
+        CompositeMessage msg = getMessage(context, cursor);
         if (msg.getDirection() == Messages.DIRECTION_IN &&
                 (mContact == null || !mContact.getJID().equalsIgnoreCase(msg.getSender())))
             mContact = Contact.findByUserId(context, msg.getSender());
 
-        long previous = -1;
-        if (cursor.moveToPrevious()) {
-            previous = MessageUtils.getMessageTimestamp(cursor);
-            cursor.moveToNext();
-        }
+        int position = cursor.getPosition();
+        setTimestamp(position, MessageUtils.getMessageTimestamp(msg));
+        long previous = position > 0 ? getTimestamp(cursor, position - 1) : -1;
 
         headerView.bind(context, msg, mContact, mHighlight, previous, mAudioPlayerControl);
     }
 
+    /**
+     * Returns the parsed message for the current cursor row. Messages are
+     * parsed only once: the message body is not read again from the cursor
+     * until the message changes.
+     */
+    private CompositeMessage getMessage(Context context, Cursor cursor) {
+        long id = cursor.getLong(CompositeMessage.COLUMN_ID);
+        long version = getVersion(cursor);
+        CachedMessage cached = mCache.get(id);
+        if (cached == null || cached.version != version) {
+            cached = new CachedMessage(CompositeMessage.fromCursor(context, cursor), version);
+            mCache.put(id, cached);
+        }
+        return cached.message;
+    }
+
+    /**
+     * Returns a hash of the columns that can change after a message has
+     * been stored: status, decryption and attachment state.
+     */
+    private static long getVersion(Cursor cursor) {
+        long version = cursor.getLong(CompositeMessage.COLUMN_STATUS_CHANGED);
+        version = 31 * version + cursor.getInt(CompositeMessage.COLUMN_STATUS);
+        version = 31 * version + cursor.getInt(CompositeMessage.COLUMN_ENCRYPTED);
+        version = 31 * version + cursor.getLong(CompositeMessage.COLUMN_BODY_LENGTH);
+        version = 31 * version + hashCode(cursor.getString(CompositeMessage.COLUMN_ATTACHMENT_PREVIEW_PATH));
+        version = 31 * version + hashCode(cursor.getString(CompositeMessage.COLUMN_ATTACHMENT_LOCAL_URI));
+        version = 31 * version + hashCode(cursor.getString(CompositeMessage.COLUMN_ATTACHMENT_FETCH_URL));
+        return version;
+    }
+
+    private static int hashCode(String s) {
+        return s != null ? s.hashCode() : 0;
+    }
+
+    private void setTimestamp(int position, long timestamp) {
+        if (mTimestamps != null && position < mTimestamps.length)
+            mTimestamps[position] = timestamp;
+    }
+
+    /** Returns the timestamp of a row, moving the cursor only the first time. */
+    private long getTimestamp(Cursor cursor, int position) {
+        long timestamp = (mTimestamps != null && position < mTimestamps.length) ?
+            mTimestamps[position] : 0;
+
+        if (timestamp == 0) {
+            int current = cursor.getPosition();
+            if (!cursor.moveToPosition(position))
+                return -1;
+            timestamp = MessageUtils.getMessageTimestamp(cursor);
+            cursor.moveToPosition(current);
+            setTimestamp(position, timestamp);
+        }
+
+        return timestamp;
+    }
+
+    /**
+     * Discards timestamps, since rows might have moved. Parsed messages are
+     * kept, changed ones will be parsed again when bound.
+     */
+    private void invalidate(Cursor cursor) {
+        int count = cursor != null && !cursor.isClosed() ? cursor.getCount() : 0;
+        if (mTimestamps != null && mTimestamps.length == count)
+            Arrays.fill(mTimestamps, 0);
+        else
+            mTimestamps = new long[count];
+    }
+
+    @Override
+    public void changeCursor(Cursor cursor) {
+        invalidate(cursor);
+        super.changeCursor(cursor);
+    }
+
     @Override
     public int getItemViewType(int position) {
         Cursor c = (Cursor) getItem(position);
@@ -120,6 +219,7 @@ public class MessageListAdapter extends CursorAdapter {
     @Override
     protected void onContentChanged() {
         Cursor c = getCursor();
+        invalidate(c);
         if (c != null && !c.isClosed() && mOnContentChangedListener != null) {
             mOnContentChangedListener.onContentChanged(this);
         }
@@ -19,6 +19,7 @@
 package org.kontalk.ui.view;
 
 import org.kontalk.R;
+import org.kontalk.data.AvatarLoader;
 import org.kontalk.data.Contact;
 import org.kontalk.data.Contact.ContactCallback;
 
@@ -38,6 +39,7 @@ public abstract class AvatarListItem extends RelativeLayout implements ContactCa
     protected CircleContactBadge mAvatarView;
 
     private Handler mHandler;
+    private AvatarLoader.Request mAvatarRequest;
 
     static protected Drawable sDefaultContactImage;
 
@@ -71,13 +73,14 @@ public abstract class AvatarListItem extends RelativeLayout implements ContactCa
     }
 
     protected void loadAvatar(Contact contact) {
+        cancelAvatar();
         if (contact != null) {
             // we mark this with the contact's hash code for the async avatar
             mAvatarView.setTag(contact.hashCode());
             mAvatarView.assignContactUri(contact.getUri());
             mAvatarView.setImageDrawable(sDefaultContactImage);
             // laod avatar asynchronously
-            contact.getAvatarAsync(getContext(), this);
+            mAvatarRequest = contact.getAvatarAsync(getContext(), this);
         }
         else {
             mAvatarView.setTag(null);
@@ -85,6 +88,14 @@ public abstract class AvatarListItem extends RelativeLayout implements ContactCa
         }
     }
 
+    /** Cancels any pending avatar load, e.g. when the view is recycled. */
+    protected void cancelAvatar() {
+        if (mAvatarRequest != null) {
+            AvatarLoader.getInstance(getContext()).cancel(mAvatarRequest);
+            mAvatarRequest = null;
+        }
+    }
+
     @Override
     public void avatarLoaded(final Contact contact, final Drawable avatar) {
         if (avatar != null) {
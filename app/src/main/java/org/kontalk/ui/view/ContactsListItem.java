@@ -71,6 +71,7 @@ public class ContactsListItem extends AvatarListItem {
     }
 
     public final void unbind() {
+        cancelAvatar();
         mContact = null;
         /*
         mAvatarView.setImageDrawable(null);
@@ -210,7 +210,7 @@ public class ConversationListItem extends AvatarListItem implements Checkable {
     }
 
     public final void unbind() {
-        // TODO unbind (contact?)
+        cancelAvatar();
     }
 
     public Conversation getConversation() {
@@ -27,7 +27,9 @@ import android.widget.ImageView;
 
 import org.kontalk.R;
 import org.kontalk.message.ImageComponent;
+import org.kontalk.util.PreviewBitmapLoader;
 
+import java.io.File;
 import java.util.regex.Pattern;
 
 
@@ -36,9 +38,12 @@ import java.util.regex.Pattern;
  * @author Daniele Ricci
  */
 public class ImageContentView extends ImageView
-        implements MessageContentView<ImageComponent> {
+        implements MessageContentView<ImageComponent>, PreviewBitmapLoader.Callback {
 
     private ImageComponent mComponent;
+    /** Bitmap being displayed, acquired from the loader. */
+    private Bitmap mBitmap;
+    private PreviewBitmapLoader.Request mRequest;
 
     public ImageContentView(Context context) {
         super(context);
@@ -54,17 +59,43 @@ public class ImageContentView extends ImageView
 
     @Override
     public void bind(long messageId, ImageComponent component, Pattern highlight) {
+        cancelRequest();
         mComponent = component;
 
         // prepend some text for the ImageSpan
         //String placeholder = CompositeMessage.getSampleTextContent(component.getContent().getMime());
 
-        Bitmap bitmap = mComponent.getBitmap();
-        if (bitmap != null)
-            setImageBitmap(bitmap);
+        Bitmap bitmap = mComponent.getBitmap(getContext());
+        if (bitmap != null) {
+            showBitmap(bitmap);
+        }
+        else {
+            // show a placeholder while loading
+            setImageResource(R.drawable.ic_attach_picture);
+            releaseBitmap();
+            mRequest = mComponent.loadBitmap(getContext(), this);
+        }
+    }
 
-        // TODO else: maybe some placeholder like Image: image/jpeg
+    @Override
+    public void onPreviewLoaded(File previewFile, Bitmap bitmap) {
+        mRequest = null;
+        showBitmap(bitmap);
+    }
 
+    private void showBitmap(Bitmap bitmap) {
+        Bitmap old = mBitmap;
+        mBitmap = bitmap;
+        setImageBitmap(bitmap);
+        if (old != null)
+            PreviewBitmapLoader.getInstance(getContext()).release(old);
+    }
+
+    private void releaseBitmap() {
+        if (mBitmap != null) {
+            PreviewBitmapLoader.getInstance(getContext()).release(mBitmap);
+            mBitmap = null;
+        }
     }
 
     @Override
@@ -84,8 +115,17 @@ public class ImageContentView extends ImageView
     }
 
     private void clear() {
+        cancelRequest();
         mComponent = null;
         setImageBitmap(null);
+        releaseBitmap();
+    }
+
+    private void cancelRequest() {
+        if (mRequest != null) {
+            PreviewBitmapLoader.getInstance(getContext()).cancel(mRequest);
+            mRequest = null;
+        }
     }
 
     public static ImageContentView create(LayoutInflater inflater, ViewGroup parent) {
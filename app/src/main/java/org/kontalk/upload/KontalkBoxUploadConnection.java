@@ -21,9 +21,13 @@ package org.kontalk.upload;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
 import java.io.Reader;
 import java.net.HttpURLConnection;
 import java.net.URL;
@@ -36,11 +40,17 @@ import java.security.PrivateKey;
 import java.security.UnrecoverableKeyException;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
 
 import javax.net.ssl.HttpsURLConnection;
 
+import android.annotation.TargetApi;
 import android.content.Context;
 import android.net.Uri;
+import android.os.Build;
+import android.util.Log;
 
 import org.kontalk.Kontalk;
 import org.kontalk.client.ClientHTTPConnection;
@@ -59,6 +69,8 @@ import org.kontalk.util.ProgressInputStreamEntity;
  */
 public class KontalkBoxUploadConnection implements UploadConnection {
 
+    private static final String TAG = Kontalk.TAG;
+
     /** Message flags header. */
     private static final String HEADER_MESSAGE_FLAGS = "X-Message-Flags";
 
@@ -69,6 +81,15 @@ public class KontalkBoxUploadConnection implements UploadConnection {
     private final static int CONNECT_TIMEOUT = 15000;
     private final static int READ_TIMEOUT = 40000;
 
+    /** Size of the encryption pipe buffer. */
+    private final static int PIPE_SIZE = 64 * 1024;
+    /** Chunk size for streaming uploads. */
+    private final static int CHUNK_SIZE = 16 * 1024;
+
+    /** Servers that don't accept chunked uploads. */
+    private static final Set<String> sLengthRequired =
+        Collections.synchronizedSet(new HashSet<String>());
+
     private final PrivateKey mPrivateKey;
     private final X509Certificate mCertificate;
 
@@ -92,39 +113,122 @@ public class KontalkBoxUploadConnection implements UploadConnection {
     public String upload(Uri uri, String mime, boolean encrypt, String to, ProgressListener listener)
             throws IOException {
 
-        InputStream inMessage = null;
+        Coder coder = null;
         try {
-            inMessage = mContext.getContentResolver().openInputStream(uri);
-
-            boolean encrypted = false;
             // check if we have to encrypt the message
             if (encrypt) {
                 PersonalKey key = Kontalk.get(mContext).getPersonalKey();
                 EndpointServer server = Preferences.getEndpointServer(mContext);
-                Coder coder = UsersProvider.getEncryptCoder(mContext, server, key, new String[] { to });
-                if (coder != null) {
-                    // create a temporary file to store encrypted data
-                    File temp = File.createTempFile("media", null, mContext.getCacheDir());
-                    FileOutputStream out = new FileOutputStream(temp);
-
-                    coder.encryptFile(inMessage, out);
-                    // close original file and encrypted file
-                    inMessage.close();
-                    out.close();
-
-                    // open the encrypted file
-                    inMessage = new FileInputStream(temp);
-                    encrypted = true;
-
-                    // delete the encrypted file
-                    // it will stay until all streams are closed
-                    temp.delete();
-                }
+                coder = UsersProvider.getEncryptCoder(mContext, server, key, new String[] { to });
+            }
+        }
+        catch (Exception e) {
+            throw innerException("upload error", e);
+        }
+
+        if (coder != null && !sLengthRequired.contains(mBaseUrl)) {
+            try {
+                return uploadStreaming(uri, mime, coder, listener);
+            }
+            catch (LengthRequiredException e) {
+                // remember it for the next uploads
+                Log.w(TAG, "server requires content length, using temporary file");
+                sLengthRequired.add(mBaseUrl);
+            }
+        }
+
+        return uploadFile(uri, mime, coder, listener);
+    }
+
+    /**
+     * Encrypts the media on the fly while sending it with chunked transfer
+     * encoding. Encrypted data goes through a bounded in-memory pipe.
+     */
+    private String uploadStreaming(Uri uri, String mime, final Coder coder, ProgressListener listener)
+            throws IOException {
+
+        InputStream inMessage = null;
+        PipedInputStream pipeIn = null;
+        EncryptThread encryptThread = null;
+        try {
+            inMessage = mContext.getContentResolver().openInputStream(uri);
+
+            pipeIn = createPipe();
+            encryptThread = new EncryptThread(coder, inMessage, new PipedOutputStream(pipeIn));
+            encryptThread.start();
+
+            // http request!
+            boolean acceptAnyCertificate = Preferences.getAcceptAnyCertificate(mContext);
+            currentRequest = prepareMessage(mime, true, acceptAnyCertificate);
+            currentRequest.setChunkedStreamingMode(CHUNK_SIZE);
+
+            // execute!
+            ProgressInputStreamEntity entity = new ProgressInputStreamEntity(
+                encryptThread.checkedInput(pipeIn), this, listener);
+            entity.writeTo(currentRequest.getOutputStream());
+
+            int status = currentRequest.getResponseCode();
+            if (status == HttpURLConnection.HTTP_LENGTH_REQUIRED)
+                throw new LengthRequiredException();
+            if (status != 200)
+                throw new IOException(status + " " + currentRequest.getResponseMessage());
+
+            return responseToString(currentRequest, Charset.defaultCharset());
+        }
+        catch (LengthRequiredException e) {
+            throw e;
+        }
+        catch (Exception e) {
+            throw innerException("upload error", e);
+        }
+        finally {
+            currentRequest = null;
+            // this will also unblock the encryption thread if still writing
+            closeStream(pipeIn);
+            if (encryptThread != null)
+                encryptThread.interrupt();
+            closeStream(inMessage);
+        }
+    }
+
+    /**
+     * Sends the media from a file. If encryption is requested, the media
+     * is encrypted to a temporary file first.
+     */
+    private String uploadFile(Uri uri, String mime, Coder coder, ProgressListener listener)
+            throws IOException {
+
+        InputStream inMessage = null;
+        try {
+            inMessage = mContext.getContentResolver().openInputStream(uri);
+            long length = -1;
+
+            boolean encrypted = false;
+            if (coder != null) {
+                // create a temporary file to store encrypted data
+                File temp = File.createTempFile("media", null, mContext.getCacheDir());
+                FileOutputStream out = new FileOutputStream(temp);
+
+                coder.encryptFile(inMessage, out);
+                // close original file and encrypted file
+                inMessage.close();
+                out.close();
+
+                // open the encrypted file
+                inMessage = new FileInputStream(temp);
+                length = temp.length();
+                encrypted = true;
+
+                // delete the encrypted file
+                // it will stay until all streams are closed
+                temp.delete();
             }
 
             // http request!
             boolean acceptAnyCertificate = Preferences.getAcceptAnyCertificate(mContext);
             currentRequest = prepareMessage(mime, encrypted, acceptAnyCertificate);
+            if (length >= 0 && length <= Integer.MAX_VALUE)
+                currentRequest.setFixedLengthStreamingMode((int) length);
 
             // execute!
             ProgressInputStreamEntity entity = new ProgressInputStreamEntity(inMessage, this, listener);
@@ -140,15 +244,99 @@ public class KontalkBoxUploadConnection implements UploadConnection {
         }
         finally {
             currentRequest = null;
-            if (inMessage != null) {
+            closeStream(inMessage);
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.GINGERBREAD)
+    private static PipedInputStream createPipe() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.GINGERBREAD)
+            return new PipedInputStream(PIPE_SIZE);
+        else
+            return new PipedInputStream();
+    }
+
+    private static void closeStream(InputStream in) {
+        if (in != null) {
+            try {
+                in.close();
+            }
+            catch (Exception e) {
+                // ignore
+            }
+        }
+    }
+
+    /** Encrypts the media into the upload pipe. */
+    private static final class EncryptThread extends Thread {
+        private final Coder mCoder;
+        private final InputStream mInput;
+        private final PipedOutputStream mOutput;
+
+        private volatile Exception mError;
+
+        EncryptThread(Coder coder, InputStream input, PipedOutputStream output) {
+            super("UploadEncrypt");
+            mCoder = coder;
+            mInput = input;
+            mOutput = output;
+        }
+
+        @Override
+        public void run() {
+            try {
+                mCoder.encryptFile(mInput, mOutput);
+            }
+            catch (Exception e) {
+                mError = e;
+            }
+            finally {
                 try {
-                    inMessage.close();
+                    // signal end of data to the reader
+                    mOutput.close();
                 }
-                catch (Exception e) {
+                catch (IOException e) {
                     // ignore
                 }
             }
         }
+
+        /**
+         * Wraps the reading end of the pipe so that an encryption error is
+         * thrown instead of a clean end of data, aborting the request.
+         */
+        InputStream checkedInput(InputStream pipe) {
+            return new FilterInputStream(pipe) {
+                @Override
+                public int read(byte[] buffer, int offset, int count) throws IOException {
+                    int read = super.read(buffer, offset, count);
+                    if (read < 0)
+                        checkError();
+                    return read;
+                }
+            };
+        }
+
+        private void checkError() throws IOException {
+            try {
+                join();
+            }
+            catch (InterruptedException e) {
+                throw new InterruptedIOException("interrupted waiting for encryption");
+            }
+            if (mError != null) {
+                IOException ie = new IOException("encryption error");
+                ie.initCause(mError);
+                throw ie;
+            }
+        }
+    }
+
+    /** Thrown when the server does not accept chunked uploads. */
+    private static final class LengthRequiredException extends IOException {
+        LengthRequiredException() {
+            super("length required");
+        }
     }
 
     public static String responseToString(HttpURLConnection conn, final Charset charset) throws IOException {
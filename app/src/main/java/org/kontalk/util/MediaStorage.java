@@ -70,6 +70,9 @@ public abstract class MediaStorage {
         .getExternalStoragePublicDirectory(Environment.DIRECTORY_MUSIC),
         "Kontalk");
 
+    /** Partially downloaded media. */
+    private static final File PARTIAL_ROOT = new File(MEDIA_ROOT, ".partial");
+
     private static final DateFormat sDateFormat =
         new SimpleDateFormat("yyyyMMdd_HHmmssSSS", Locale.US);
 
@@ -267,6 +270,12 @@ public abstract class MediaStorage {
         return new File(AUDIO_ROOT, "audio_" + timeStamp + "." + extension);
     }
 
+    /** Creates a file object for a partially downloaded media. */
+    public static File getPartialDownloadFile(String url) {
+        createNoMedia(PARTIAL_ROOT);
+        return new File(PARTIAL_ROOT, MessageUtils.sha1(url));
+    }
+
     /** Ensures that the given path exists. */
     private static boolean createMedia(File path) {
         return path.isDirectory() || path.mkdirs();
@@ -238,6 +238,16 @@ public final class Preferences {
             .commit();
     }
 
+    public static long getLastFullSyncTimestamp(Context context) {
+        return getLong(context, "pref_last_full_sync", -1);
+    }
+
+    public static boolean setLastFullSyncTimestamp(Context context, long timestamp) {
+        return sPreferences.edit()
+            .putLong("pref_last_full_sync", timestamp)
+            .commit();
+    }
+
     public static boolean setLastPushNotification(Context context, long timestamp) {
         return sPreferences.edit()
             .putLong("pref_last_push_notification", timestamp)
@@ -473,31 +483,27 @@ public final class Preferences {
             .commit();
     }
 
-    public static long getPingAlarmInterval(Context context, long defaultValue) {
-        String networkType = SystemUtils.getCurrentNetworkName(context);
-        return (networkType != null) ?
-            getLong(context, "ping_alarm_interval_" + networkType, defaultValue) :
+    public static long getPingAlarmInterval(Context context, String networkId, long defaultValue) {
+        return (networkId != null) ?
+            getLong(context, "ping_alarm_interval_" + networkId, defaultValue) :
             defaultValue;
     }
 
-    public static boolean setPingAlarmInterval(Context context, long intervalMillis) {
-        String networkType = SystemUtils.getCurrentNetworkName(context);
-        return networkType != null && sPreferences.edit()
-            .putLong("ping_alarm_interval_" + networkType, intervalMillis)
+    public static boolean setPingAlarmInterval(Context context, String networkId, long intervalMillis) {
+        return networkId != null && sPreferences.edit()
+            .putLong("ping_alarm_interval_" + networkId, intervalMillis)
             .commit();
     }
 
-    public static long getPingAlarmBackoff(Context context, long defaultValue) {
-        String networkType = SystemUtils.getCurrentNetworkName(context);
-        return (networkType != null) ?
-            getLong(context, "ping_alarm_backoff_" + networkType, defaultValue) :
+    public static long getPingAlarmBackoff(Context context, String networkId, long defaultValue) {
+        return (networkId != null) ?
+            getLong(context, "ping_alarm_backoff_" + networkId, defaultValue) :
             defaultValue;
     }
 
-    public static boolean setPingAlarmBackoff(Context context, long intervalMillis) {
-        String networkType = SystemUtils.getCurrentNetworkName(context);
-        return networkType != null && sPreferences.edit()
-            .putLong("ping_alarm_backoff_" + networkType, intervalMillis)
+    public static boolean setPingAlarmBackoff(Context context, String networkId, long intervalMillis) {
+        return networkId != null && sPreferences.edit()
+            .putLong("ping_alarm_backoff_" + networkId, intervalMillis)
             .commit();
     }
 
@@ -0,0 +1,360 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.SoftReference;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.support.v4.util.LruCache;
+import android.util.Log;
+
+import org.kontalk.Kontalk;
+
+
+/**
+ * Loads attachment previews in the background. Decoded bitmaps are kept in
+ * a memory cache sized by bytes; bitmaps evicted from the cache and not
+ * displayed anymore are reused for decoding new previews where supported.
+ * @author Daniele Ricci
+ */
+public final class PreviewBitmapLoader {
+    private static final String TAG = Kontalk.TAG;
+
+    /** Number of decoding threads. */
+    private static final int THREADS = 2;
+    /** Fraction of the heap used for the cache. */
+    private static final int CACHE_HEAP_FRACTION = 8;
+    /** Maximum number of bitmaps kept for reuse. */
+    private static final int MAX_POOL_SIZE = 8;
+
+    public interface Callback {
+        /**
+         * Called on the main thread when the preview has been loaded. The
+         * bitmap has already been acquired for the callee, which must
+         * {@link #release} it when not displaying it anymore.
+         */
+        void onPreviewLoaded(File previewFile, Bitmap bitmap);
+    }
+
+    /** A pending load request. */
+    public static final class Request {
+        private final File mFile;
+        private volatile boolean mCanceled;
+        private Future<?> mFuture;
+
+        Request(File file) {
+            mFile = file;
+        }
+
+        public File getFile() {
+            return mFile;
+        }
+    }
+
+    private static PreviewBitmapLoader sInstance;
+
+    private final Context mContext;
+    private final Handler mHandler;
+    private final ExecutorService mExecutor;
+    private final LruCache<String, Bitmap> mCache;
+
+    /**
+     * How many views are displaying a bitmap. Also guards cache lookups
+     * and the reuse pool, so that a bitmap can't be pooled between being
+     * found in the cache and being acquired.
+     */
+    private final Map<Bitmap, Integer> mInUse = new IdentityHashMap<>();
+    /** Bitmaps evicted from the cache while still being displayed. */
+    private final Map<Bitmap, Boolean> mEvictedInUse = new IdentityHashMap<>();
+    /** Bitmaps available for reuse. */
+    private final List<SoftReference<Bitmap>> mPool = new LinkedList<>();
+
+    private PreviewBitmapLoader(Context context) {
+        mContext = context.getApplicationContext();
+        mHandler = new Handler(Looper.getMainLooper());
+        mExecutor = Executors.newFixedThreadPool(THREADS, new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                return new Thread(new Runnable() {
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, "PreviewLoader");
+            }
+        });
+
+        int cacheSize = (int) (Runtime.getRuntime().maxMemory() / CACHE_HEAP_FRACTION);
+        mCache = new LruCache<String, Bitmap>(cacheSize) {
+            @Override
+            protected int sizeOf(String key, Bitmap value) {
+                return value.getRowBytes() * value.getHeight();
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, String key, Bitmap oldValue, Bitmap newValue) {
+                recycle(oldValue);
+            }
+        };
+    }
+
+    public static synchronized PreviewBitmapLoader getInstance(Context context) {
+        if (sInstance == null)
+            sInstance = new PreviewBitmapLoader(context);
+        return sInstance;
+    }
+
+    /**
+     * Returns the preview from the memory cache, or null. The bitmap is
+     * acquired for the caller, which must {@link #release} it when not
+     * displaying it anymore.
+     */
+    public Bitmap acquireCached(File previewFile) {
+        return acquireCached(previewFile.getPath());
+    }
+
+    private Bitmap acquireCached(String key) {
+        synchronized (mInUse) {
+            Bitmap bitmap = mCache.get(key);
+            if (bitmap != null)
+                acquire(bitmap);
+            return bitmap;
+        }
+    }
+
+    /**
+     * Loads a preview in the background.
+     * @param localUri the original media, used to generate the preview if
+     *                 it can't be found (might be null)
+     */
+    public Request load(final File previewFile, final Uri localUri, final Callback callback) {
+        final Request request = new Request(previewFile);
+        request.mFuture = mExecutor.submit(new Runnable() {
+            public void run() {
+                if (request.mCanceled)
+                    return;
+
+                // acquired so it won't be reused until delivered
+                final Bitmap bitmap = loadPreview(previewFile, localUri);
+                if (bitmap == null)
+                    return;
+
+                mHandler.post(new Runnable() {
+                    public void run() {
+                        if (!request.mCanceled)
+                            callback.onPreviewLoaded(previewFile, bitmap);
+                        else
+                            release(bitmap);
+                    }
+                });
+            }
+        });
+        return request;
+    }
+
+    /** Cancels a request. The callback will not be called. */
+    public void cancel(Request request) {
+        request.mCanceled = true;
+        if (request.mFuture != null)
+            request.mFuture.cancel(false);
+    }
+
+    /** Marks a bitmap as being displayed, so it won't be reused. */
+    public void acquire(Bitmap bitmap) {
+        synchronized (mInUse) {
+            Integer count = mInUse.get(bitmap);
+            mInUse.put(bitmap, count != null ? count + 1 : 1);
+        }
+    }
+
+    /** Marks a bitmap as not displayed anymore by a view. */
+    public void release(Bitmap bitmap) {
+        synchronized (mInUse) {
+            Integer count = mInUse.get(bitmap);
+            if (count == null)
+                return;
+            if (count > 1) {
+                mInUse.put(bitmap, count - 1);
+                return;
+            }
+            mInUse.remove(bitmap);
+
+            // not cached anymore: it can be reused
+            if (mEvictedInUse.remove(bitmap) == null)
+                return;
+        }
+
+        recycle(bitmap);
+    }
+
+    /** Adds a bitmap to the reuse pool if not displayed anymore. */
+    private void recycle(Bitmap bitmap) {
+        if (!canReuseBitmaps() || !bitmap.isMutable())
+            return;
+
+        synchronized (mInUse) {
+            if (mInUse.containsKey(bitmap)) {
+                // will be recycled when released
+                mEvictedInUse.put(bitmap, Boolean.TRUE);
+                return;
+            }
+
+            if (mPool.size() >= MAX_POOL_SIZE)
+                mPool.remove(0);
+            mPool.add(new SoftReference<>(bitmap));
+        }
+    }
+
+    /** Loads a preview and acquires it. */
+    private Bitmap loadPreview(File previewFile, Uri localUri) {
+        String key = previewFile.getPath();
+        Bitmap bitmap = acquireCached(key);
+        if (bitmap != null)
+            return bitmap;
+
+        try {
+            bitmap = decode(previewFile);
+        }
+        catch (IOException e) {
+            Log.w(TAG, "unable to load thumbnail, generating one");
+
+            /*
+             * unable to load preview - generate thumbnail
+             * Of course a thumbnail can be generated only if the image has
+             * already been downloaded.
+             */
+            if (localUri != null) {
+                try {
+                    MediaStorage.cacheThumbnail(mContext, localUri, previewFile, false);
+                    bitmap = decode(previewFile);
+                }
+                catch (Exception e1) {
+                    Log.e(TAG, "unable to generate thumbnail", e1);
+                }
+            }
+        }
+
+        if (bitmap != null) {
+            // acquire first or it might be evicted and reused right away
+            acquire(bitmap);
+            mCache.put(key, bitmap);
+        }
+        return bitmap;
+    }
+
+    private Bitmap decode(File file) throws IOException {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inPreferredConfig = Bitmap.Config.RGB_565;
+
+        if (canReuseBitmaps()) {
+            // read size first to find a suitable bitmap
+            options.inJustDecodeBounds = true;
+            decodeFile(file, options);
+            options.inJustDecodeBounds = false;
+
+            if (options.outWidth > 0 && options.outHeight > 0)
+                addInBitmapOptions(options);
+        }
+
+        Bitmap bitmap;
+        try {
+            bitmap = decodeFile(file, options);
+        }
+        catch (IllegalArgumentException e) {
+            // reused bitmap was not suitable after all
+            options.inBitmap = null;
+            bitmap = decodeFile(file, options);
+        }
+
+        if (bitmap == null)
+            throw new IOException("unable to decode " + file);
+        return bitmap;
+    }
+
+    private Bitmap decodeFile(File file, BitmapFactory.Options options) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            return BitmapFactory.decodeStream(in, null, options);
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    private static boolean canReuseBitmaps() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB;
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private void addInBitmapOptions(BitmapFactory.Options options) {
+        // reused bitmaps must be mutable, and so will be the decoded one
+        options.inMutable = true;
+        options.inSampleSize = 1;
+
+        synchronized (mInUse) {
+            Iterator<SoftReference<Bitmap>> it = mPool.iterator();
+            while (it.hasNext()) {
+                Bitmap candidate = it.next().get();
+                if (candidate == null || candidate.isRecycled() || mInUse.containsKey(candidate)) {
+                    it.remove();
+                }
+                else if (canUseForInBitmap(candidate, options)) {
+                    it.remove();
+                    options.inBitmap = candidate;
+                    return;
+                }
+            }
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    private static boolean canUseForInBitmap(Bitmap candidate, BitmapFactory.Options options) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            // RGB_565 takes 2 bytes per pixel
+            int byteCount = options.outWidth * options.outHeight * 2;
+            return byteCount <= candidate.getAllocationByteCount();
+        }
+
+        // before KitKat only bitmaps with the same size can be reused
+        return candidate.getWidth() == options.outWidth &&
+            candidate.getHeight() == options.outHeight;
+    }
+
+}
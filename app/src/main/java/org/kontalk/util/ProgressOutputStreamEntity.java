@@ -34,13 +34,22 @@ public class ProgressOutputStreamEntity {
     private final HttpURLConnection mParent;
     private final String mUrl;
     private final File mFile;
+    private final long mOffset;
+    private final long mLength;
     private final DownloadListener mListener;
 
+    /**
+     * @param offset bytes already downloaded, in case of a resumed download
+     * @param length total length of the file, or -1 if unknown
+     */
     public ProgressOutputStreamEntity(HttpURLConnection parent,
-            String url, File file, final DownloadListener listener) {
+            String url, File file, long offset, long length,
+            final DownloadListener listener) {
         mParent = parent;
         mUrl = url;
         mFile = file;
+        mOffset = offset;
+        mLength = length;
         mListener = listener;
     }
 
@@ -64,11 +73,15 @@ public class ProgressOutputStreamEntity {
         }
     }
 
+    /**
+     * Writes the response body to the given stream. Progress will start
+     * from the given offset.
+     */
     public void writeTo(OutputStream outstream) throws IOException {
-        mListener.start(mUrl, mFile, mParent.getContentLength());
-        _writeTo(new CountingOutputStream(outstream, mUrl, mFile, mListener));
-        String mime = mParent.getContentType();
-        mListener.completed(mUrl, mime, mFile);
+        mListener.start(mUrl, mFile, mLength);
+        if (mOffset > 0)
+            mListener.progress(mUrl, mFile, mOffset);
+        _writeTo(new CountingOutputStream(outstream, mUrl, mFile, mOffset, mListener));
     }
 
     private static final class CountingOutputStream extends FilterOutputStream {
@@ -78,12 +91,13 @@ public class ProgressOutputStreamEntity {
         private long transferred;
 
         public CountingOutputStream(final OutputStream out,
-                final String url, final File file, final DownloadListener listener) {
+                final String url, final File file, final long offset,
+                final DownloadListener listener) {
             super(out);
             this.url = url;
             this.file = file;
             this.listener = listener;
-            this.transferred = 0;
+            this.transferred = offset;
         }
 
         @Override
@@ -50,6 +50,10 @@ public class StepTimer {
         if (delay < 1) delay = 1;
         mDelay += delay;
         mTimestamp = now;
-        return mDelay >= mMinDelay;
+        if (mDelay >= mMinDelay) {
+            mDelay = 0;
+            return true;
+        }
+        return false;
     }
 }
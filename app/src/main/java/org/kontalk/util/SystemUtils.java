@@ -39,6 +39,7 @@ import android.net.NetworkInfo;
 import android.net.Uri;
 import android.os.Build;
 import android.provider.ContactsContract;
+import android.telephony.TelephonyManager;
 import android.util.SparseBooleanArray;
 import android.view.Display;
 import android.view.Surface;
@@ -206,6 +207,32 @@ public final class SystemUtils {
         return info != null ? info.getTypeName() : null;
     }
 
+    /**
+     * Returns a hashed identity of the current network: type and SSID for
+     * Wi-Fi, type, operator and APN for mobile networks.
+     */
+    public static String getCurrentNetworkIdentity(Context context) {
+        ConnectivityManager connMgr = (ConnectivityManager) context
+            .getSystemService(Context.CONNECTIVITY_SERVICE);
+
+        NetworkInfo info = connMgr.getActiveNetworkInfo();
+        if (info == null)
+            return null;
+
+        StringBuilder id = new StringBuilder(info.getTypeName());
+        if (info.getType() == ConnectivityManager.TYPE_MOBILE) {
+            TelephonyManager tm = (TelephonyManager) context
+                .getSystemService(Context.TELEPHONY_SERVICE);
+            id.append(':').append(tm.getNetworkOperator());
+        }
+        // SSID for Wi-Fi, APN for mobile networks
+        String extra = info.getExtraInfo();
+        if (extra != null)
+            id.append(':').append(extra);
+
+        return MessageUtils.sha1(id.toString());
+    }
+
     public static int getCurrentNetworkType(Context context) {
         ConnectivityManager connMgr = (ConnectivityManager) context
             .getSystemService(Context.CONNECTIVITY_SERVICE);
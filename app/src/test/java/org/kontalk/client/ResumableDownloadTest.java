@@ -0,0 +1,199 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.client;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import static org.junit.Assert.*;
+
+
+public class ResumableDownloadTest {
+
+    private static final String ETAG = "\"test-etag\"";
+    private static final int LENGTH = 100 * 1024;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private HttpServer mServer;
+    private byte[] mContent;
+    private String mUrl;
+
+    /** Range headers received by the server. */
+    private final List<String> mRanges = new ArrayList<>();
+    /** If greater than zero, the next response will be cut after these many bytes. */
+    private int mDisconnectAfter;
+    private String mEtag = ETAG;
+
+    @Before
+    public void setUp() throws Exception {
+        mContent = new byte[LENGTH];
+        new Random(42).nextBytes(mContent);
+
+        mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        mServer.createContext("/media", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                serve(exchange);
+            }
+        });
+        mServer.start();
+        mUrl = "http://127.0.0.1:" + mServer.getAddress().getPort() + "/media";
+    }
+
+    @After
+    public void tearDown() {
+        mServer.stop(0);
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        String ifRange = exchange.getRequestHeaders().getFirst("If-Range");
+        mRanges.add(range);
+
+        int start = 0;
+        if (range != null && mEtag.equals(ifRange))
+            start = Integer.parseInt(range.substring("bytes=".length(), range.length() - 1));
+
+        exchange.getResponseHeaders().set("ETag", mEtag);
+        exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+        if (start > 0) {
+            exchange.getResponseHeaders().set("Content-Range",
+                "bytes " + start + "-" + (LENGTH - 1) + "/" + LENGTH);
+            exchange.sendResponseHeaders(ResumableDownload.HTTP_PARTIAL, LENGTH - start);
+        }
+        else {
+            exchange.sendResponseHeaders(HttpURLConnection.HTTP_OK, LENGTH);
+        }
+
+        OutputStream out = exchange.getResponseBody();
+        int end = LENGTH;
+        if (mDisconnectAfter > 0) {
+            end = start + mDisconnectAfter;
+            mDisconnectAfter = 0;
+        }
+        out.write(mContent, start, end - start);
+        out.flush();
+        // will drop the connection if the body is incomplete
+        exchange.close();
+    }
+
+    private void download(ResumableDownload download, File destination) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) new URL(mUrl).openConnection();
+        try {
+            download.prepare(conn);
+            OutputStream out = download.open(conn);
+            try {
+                InputStream in = conn.getInputStream();
+                byte[] buf = new byte[4096];
+                int len;
+                while ((len = in.read(buf)) >= 0)
+                    out.write(buf, 0, len);
+            }
+            finally {
+                out.close();
+            }
+            download.complete(destination);
+        }
+        finally {
+            conn.disconnect();
+        }
+    }
+
+    @Test
+    public void testResumeAfterDisconnect() throws Exception {
+        File partial = new File(mFolder.getRoot(), "partial");
+        File destination = new File(mFolder.getRoot(), "media");
+
+        mDisconnectAfter = LENGTH / 3;
+        try {
+            download(new ResumableDownload(mUrl, partial), destination);
+            fail("download should have been interrupted");
+        }
+        catch (IOException expected) {
+        }
+
+        long offset = partial.length();
+        assertTrue(offset > 0 && offset < LENGTH);
+        assertFalse(destination.exists());
+
+        ResumableDownload download = new ResumableDownload(mUrl, partial);
+        download(download, destination);
+
+        assertEquals(offset, download.getOffset());
+        assertEquals("bytes=" + offset + "-", mRanges.get(1));
+        assertArrayEquals(mContent, readFile(destination));
+        assertFalse(partial.exists());
+    }
+
+    @Test
+    public void testRestartOnChangedEntity() throws Exception {
+        File partial = new File(mFolder.getRoot(), "partial");
+        File destination = new File(mFolder.getRoot(), "media");
+
+        mDisconnectAfter = LENGTH / 2;
+        try {
+            download(new ResumableDownload(mUrl, partial), destination);
+            fail("download should have been interrupted");
+        }
+        catch (IOException expected) {
+        }
+
+        // file has changed on the server, it must be downloaded again
+        mEtag = "\"another-etag\"";
+        ResumableDownload download = new ResumableDownload(mUrl, partial);
+        download(download, destination);
+
+        assertEquals(0, download.getOffset());
+        assertArrayEquals(mContent, readFile(destination));
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        RandomAccessFile f = new RandomAccessFile(file, "r");
+        try {
+            byte[] data = new byte[(int) f.length()];
+            f.readFully(data);
+            return data;
+        }
+        finally {
+            f.close();
+        }
+    }
+
+}
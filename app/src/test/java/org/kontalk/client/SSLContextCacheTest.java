@@ -0,0 +1,59 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.client;
+
+import java.security.KeyStore;
+
+import javax.net.ssl.SSLContext;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class SSLContextCacheTest {
+
+    @After
+    public void tearDown() {
+        SSLContextCache.invalidate();
+    }
+
+    @Test
+    public void testSharedContext() throws Exception {
+        SSLContext ctx = SSLContextCache.getContext(null, null, false, null);
+        assertSame(ctx, SSLContextCache.getContext(null, null, false, null));
+        // socket factory is shared too (for connection pooling)
+        assertSame(ctx.getSocketFactory(), ctx.getSocketFactory());
+
+        // trust settings are part of the key
+        assertNotSame(ctx, SSLContextCache.getContext(null, null, true, null));
+        KeyStore trustStore = KeyStore.getInstance(KeyStore.getDefaultType());
+        trustStore.load(null, null);
+        assertNotSame(ctx, SSLContextCache.getContext(null, null, false, trustStore));
+    }
+
+    @Test
+    public void testInvalidate() throws Exception {
+        SSLContext ctx = SSLContextCache.getContext(null, null, false, null);
+        SSLContextCache.invalidate();
+        assertNotSame(ctx, SSLContextCache.getContext(null, null, false, null));
+    }
+
+}
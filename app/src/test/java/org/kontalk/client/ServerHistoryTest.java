@@ -0,0 +1,77 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.client;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class ServerHistoryTest {
+
+    private static final EndpointServer FAST = new EndpointServer("kontalk.net|fast.kontalk.net");
+    private static final EndpointServer SLOW = new EndpointServer("kontalk.net|slow.kontalk.net");
+    private static final EndpointServer NEW = new EndpointServer("kontalk.net|new.kontalk.net");
+
+    @After
+    public void tearDown() {
+        ServerHistory.clear();
+    }
+
+    private static List<EndpointServer> sorted(EndpointServer... servers) {
+        List<EndpointServer> list = new ArrayList<>(Arrays.asList(servers));
+        ServerHistory.sort(list);
+        return list;
+    }
+
+    @Test
+    public void testOrder() {
+        // no history: order is kept
+        assertEquals(Arrays.asList(SLOW, NEW, FAST), sorted(SLOW, NEW, FAST));
+
+        ServerHistory.success(FAST, 300);
+        ServerHistory.success(SLOW, 4000);
+        assertEquals(Arrays.asList(FAST, NEW, SLOW), sorted(SLOW, NEW, FAST));
+    }
+
+    @Test
+    public void testFailures() {
+        ServerHistory.success(FAST, 300);
+        ServerHistory.failure(FAST);
+        assertEquals(Arrays.asList(NEW, FAST), sorted(FAST, NEW));
+
+        // a success resets failures
+        ServerHistory.success(FAST, 300);
+        assertEquals(Arrays.asList(FAST, NEW), sorted(FAST, NEW));
+    }
+
+    @Test
+    public void testSmoothing() {
+        ServerHistory.success(FAST, 800);
+        // a single slow connection doesn't change much
+        ServerHistory.success(FAST, 8000);
+        assertEquals(800 + (8000 - 800) / 8, ServerHistory.score(FAST));
+    }
+
+}
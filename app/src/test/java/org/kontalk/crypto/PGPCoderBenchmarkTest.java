@@ -0,0 +1,284 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.crypto;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Locale;
+import java.util.logging.Logger;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.spongycastle.bcpg.HashAlgorithmTags;
+import org.spongycastle.openpgp.PGPCompressedData;
+import org.spongycastle.openpgp.PGPCompressedDataGenerator;
+import org.spongycastle.openpgp.PGPEncryptedData;
+import org.spongycastle.openpgp.PGPEncryptedDataGenerator;
+import org.spongycastle.openpgp.PGPEncryptedDataList;
+import org.spongycastle.openpgp.PGPKeyPair;
+import org.spongycastle.openpgp.PGPLiteralData;
+import org.spongycastle.openpgp.PGPLiteralDataGenerator;
+import org.spongycastle.openpgp.PGPObjectFactory;
+import org.spongycastle.openpgp.PGPPublicKey;
+import org.spongycastle.openpgp.PGPPublicKeyEncryptedData;
+import org.spongycastle.openpgp.PGPSignature;
+import org.spongycastle.openpgp.PGPSignatureGenerator;
+import org.spongycastle.openpgp.PGPSignatureSubpacketGenerator;
+import org.spongycastle.openpgp.operator.bc.BcPGPContentSignerBuilder;
+import org.spongycastle.openpgp.operator.bc.BcPGPDataEncryptorBuilder;
+import org.spongycastle.openpgp.operator.bc.BcPublicKeyDataDecryptorFactory;
+import org.spongycastle.openpgp.operator.bc.BcPublicKeyKeyEncryptionMethodGenerator;
+
+import static org.junit.Assert.*;
+
+
+/**
+ * Runs the message encryption path and the previous implementation in a
+ * timing loop, checking that both produce valid messages and that the new
+ * path doesn't allocate more than the old one.
+ */
+public class PGPCoderBenchmarkTest {
+
+    private static final int WARMUP = 50;
+    private static final int ITERATIONS = 200;
+
+    private static final String USER_ID = "Test <test@kontalk.net>";
+
+    /** Receives the results of each benchmark. */
+    interface Reporter {
+        void report(String name, Result legacy, Result current);
+    }
+
+    /** Default reporter, results go to the test log. */
+    static Reporter sReporter = new Reporter() {
+        private final Logger mLogger = Logger.getLogger(PGPCoderBenchmarkTest.class.getName());
+
+        @Override
+        public void report(String name, Result legacy, Result current) {
+            mLogger.info(name + ": legacy " + legacy + ", current " + current);
+        }
+    };
+
+    private static PGPKeyPair sSignKey;
+    private static PGPKeyPair sEncryptKey;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        PGP.registerProvider();
+        PGP.PGPDecryptedKeyPairRing ring = PGP.create();
+        sSignKey = ring.signKey;
+        sEncryptKey = ring.encryptKey;
+    }
+
+    @Test
+    public void testShortMessage() throws Exception {
+        assertRoundTrip(payload(100));
+        benchmark("short message", payload(100));
+    }
+
+    @Test
+    public void testLongMessage() throws Exception {
+        assertRoundTrip(payload(4000));
+        benchmark("long message", payload(4000));
+    }
+
+    private void assertRoundTrip(byte[] data) throws Exception {
+        byte[] encrypted = PGPCoder.encryptMessage(data,
+            new PGPPublicKey[] { sEncryptKey.getPublicKey() }, sSignKey, USER_ID);
+        assertArrayEquals(data, decrypt(encrypted));
+    }
+
+    private void benchmark(String name, final byte[] data) throws Exception {
+        final PGPPublicKey[] recipients = { sEncryptKey.getPublicKey() };
+
+        Result legacy = run(new Task() {
+            public byte[] run() throws Exception {
+                return legacyEncrypt(data, recipients, sSignKey, USER_ID);
+            }
+        });
+        Result current = run(new Task() {
+            public byte[] run() throws Exception {
+                return PGPCoder.encryptMessage(data, recipients, sSignKey, USER_ID);
+            }
+        });
+
+        // messages produced by the timed loops are still valid
+        assertArrayEquals(data, decrypt(legacy.lastOutput));
+        assertArrayEquals(data, decrypt(current.lastOutput));
+        assertTrue(current.opsPerSecond > 0);
+        assertTrue(current.sizePerOp > 0);
+
+        sReporter.report(name, legacy, current);
+
+        if (legacy.bytesPerOp >= 0 && current.bytesPerOp >= 0) {
+            assertTrue("current path allocates " + current.bytesPerOp +
+                " bytes per message, legacy " + legacy.bytesPerOp,
+                current.bytesPerOp <= legacy.bytesPerOp);
+        }
+    }
+
+    private interface Task {
+        byte[] run() throws Exception;
+    }
+
+    static final class Result {
+        double opsPerSecond;
+        /** Bytes allocated per operation, -1 if not supported by the JVM. */
+        long bytesPerOp;
+        long sizePerOp;
+        byte[] lastOutput;
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%.0f ops/s, %d bytes allocated/op, %d bytes output/op",
+                opsPerSecond, bytesPerOp, sizePerOp);
+        }
+    }
+
+    private Result run(Task task) throws Exception {
+        for (int i = 0; i < WARMUP; i++)
+            task.run();
+
+        long allocStart = allocatedBytes();
+        long start = System.nanoTime();
+        long size = 0;
+        byte[] output = null;
+        for (int i = 0; i < ITERATIONS; i++) {
+            output = task.run();
+            size += output.length;
+        }
+        long elapsed = System.nanoTime() - start;
+        long allocEnd = allocatedBytes();
+
+        Result r = new Result();
+        r.opsPerSecond = ITERATIONS * 1e9 / elapsed;
+        r.bytesPerOp = (allocStart >= 0 && allocEnd >= 0) ?
+            (allocEnd - allocStart) / ITERATIONS : -1;
+        r.sizePerOp = size / ITERATIONS;
+        r.lastOutput = output;
+        return r;
+    }
+
+    /** Bytes allocated by the current thread, if supported by the JVM. */
+    private static long allocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean)
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    private static byte[] payload(int length) {
+        byte[] data = new byte[length];
+        Arrays.fill(data, (byte) 'a');
+        return data;
+    }
+
+    private static byte[] decrypt(byte[] encrypted) throws Exception {
+        PGPObjectFactory pgpF = new PGPObjectFactory(encrypted, PGP.sFingerprintCalculator);
+        PGPEncryptedDataList enc = (PGPEncryptedDataList) pgpF.nextObject();
+        PGPPublicKeyEncryptedData pbe = (PGPPublicKeyEncryptedData) enc.get(0);
+        InputStream clear = pbe.getDataStream(
+            new BcPublicKeyDataDecryptorFactory(sEncryptKey.getPrivateKey()));
+
+        PGPObjectFactory plainFact = new PGPObjectFactory(clear, PGP.sFingerprintCalculator);
+        PGPCompressedData cData = (PGPCompressedData) plainFact.nextObject();
+        PGPObjectFactory pgpFact = new PGPObjectFactory(cData.getDataStream(), PGP.sFingerprintCalculator);
+
+        // skip one-pass signature
+        pgpFact.nextObject();
+        PGPLiteralData ld = (PGPLiteralData) pgpFact.nextObject();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        InputStream in = ld.getInputStream();
+        byte[] buf = new byte[4096];
+        int len;
+        while ((len = in.read(buf)) >= 0)
+            out.write(buf, 0, len);
+
+        assertTrue(pbe.verify());
+        return out.toByteArray();
+    }
+
+    /** The previous implementation of the message encryption path. */
+    private static byte[] legacyEncrypt(byte[] plainText, PGPPublicKey[] recipients,
+            PGPKeyPair signKey, String userId) throws Exception {
+        final int bufferSize = 1 << 8;
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteArrayInputStream in = new ByteArrayInputStream(plainText);
+
+        BcPGPDataEncryptorBuilder encryptor = new BcPGPDataEncryptorBuilder(PGPEncryptedData.AES_192);
+        encryptor.setWithIntegrityPacket(true);
+        encryptor.setSecureRandom(new SecureRandom());
+
+        PGPEncryptedDataGenerator encGen = new PGPEncryptedDataGenerator(encryptor);
+        for (PGPPublicKey rcpt : recipients)
+            encGen.addMethod(new BcPublicKeyKeyEncryptionMethodGenerator(rcpt));
+
+        OutputStream encryptedOut = encGen.open(out, new byte[bufferSize]);
+
+        PGPCompressedDataGenerator compGen = new PGPCompressedDataGenerator(PGPCompressedData.ZIP);
+        OutputStream compressedOut = compGen.open(encryptedOut, new byte[bufferSize]);
+
+        PGPSignatureGenerator sigGen = new PGPSignatureGenerator
+            (new BcPGPContentSignerBuilder(signKey
+                .getPublicKey().getAlgorithm(), HashAlgorithmTags.SHA256));
+        sigGen.init(PGPSignature.BINARY_DOCUMENT, signKey.getPrivateKey());
+
+        PGPSignatureSubpacketGenerator spGen = new PGPSignatureSubpacketGenerator();
+        spGen.setSignerUserID(false, userId);
+        sigGen.setUnhashedSubpackets(spGen.generate());
+
+        sigGen.generateOnePassVersion(false)
+            .encode(compressedOut);
+
+        PGPLiteralDataGenerator literalGen = new PGPLiteralDataGenerator();
+        OutputStream literalOut = literalGen.open(
+            compressedOut,
+            PGPLiteralData.BINARY,
+            "",
+            new Date(),
+            new byte[bufferSize]);
+
+        byte[] buf = new byte[bufferSize];
+        int len;
+        while ((len = in.read(buf)) > 0) {
+            literalOut.write(buf, 0, len);
+            sigGen.update(buf, 0, len);
+        }
+
+        in.close();
+        literalGen.close();
+        sigGen.generate().encode(compressedOut);
+        compGen.close();
+        encGen.close();
+
+        return out.toByteArray();
+    }
+
+}
@@ -0,0 +1,41 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.data;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class AvatarLoaderTest {
+
+    @Test
+    public void testSampleSize() {
+        // smaller than avatar size
+        assertEquals(1, AvatarLoader.computeSampleSize(64, 64, 120));
+        assertEquals(1, AvatarLoader.computeSampleSize(120, 120, 120));
+        assertEquals(1, AvatarLoader.computeSampleSize(239, 239, 120));
+        assertEquals(2, AvatarLoader.computeSampleSize(240, 240, 120));
+        // full resolution contact photo
+        assertEquals(4, AvatarLoader.computeSampleSize(720, 720, 120));
+        // the smaller side is never sampled below avatar size
+        assertEquals(4, AvatarLoader.computeSampleSize(1920, 480, 120));
+    }
+
+}
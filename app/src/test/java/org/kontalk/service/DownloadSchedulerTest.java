@@ -0,0 +1,142 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.service;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class DownloadSchedulerTest {
+
+    /** Runnables started by the scheduler, run manually by tests. */
+    private final List<Runnable> mStarted = new ArrayList<>();
+    private final Set<String> mPriority = new HashSet<>();
+    private int mIdle;
+
+    private DownloadScheduler mScheduler;
+
+    private class TestTask implements DownloadScheduler.Task {
+        final String url;
+        final String host;
+        boolean aborted;
+
+        TestTask(String url, String host) {
+            this.url = url;
+            this.host = host;
+        }
+
+        @Override
+        public String getHost() {
+            return host;
+        }
+
+        @Override
+        public void abort() {
+            aborted = true;
+        }
+
+        @Override
+        public void run() {
+        }
+    }
+
+    @Before
+    public void setUp() {
+        mScheduler = new DownloadScheduler(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                mStarted.add(command);
+            }
+        }, 3, 2, new DownloadScheduler.Callback() {
+            @Override
+            public boolean isPriority(String url) {
+                return mPriority.contains(url);
+            }
+
+            @Override
+            public void idle() {
+                mIdle++;
+            }
+        });
+    }
+
+    private TestTask submit(String url, String host) {
+        TestTask task = new TestTask(url, host);
+        assertTrue(mScheduler.submit(url, task));
+        return task;
+    }
+
+    /** Completes the oldest running task. */
+    private void finishOne() {
+        mStarted.remove(0).run();
+    }
+
+    @Test
+    public void testLimits() {
+        submit("a1", "a");
+        submit("a2", "a");
+        submit("a3", "a");
+        submit("b1", "b");
+        submit("b2", "b");
+
+        // 2 per host, 3 overall
+        assertEquals(3, mScheduler.getRunningCount());
+        assertEquals(3, mStarted.size());
+
+        finishOne();
+        assertEquals(3, mScheduler.getRunningCount());
+
+        while (!mStarted.isEmpty())
+            finishOne();
+        assertTrue(mScheduler.isIdle());
+        assertEquals(1, mIdle);
+    }
+
+    @Test
+    public void testPriority() {
+        mScheduler.setMaxConcurrent(1);
+        submit("1", "a");
+        submit("2", "a");
+        submit("3", "a");
+
+        mPriority.add("3");
+        finishOne();
+        assertFalse(mScheduler.submit("3", new TestTask("3", "a")));
+        // "3" was started before "2"
+        assertTrue(mScheduler.cancel("2"));
+        finishOne();
+        assertTrue(mScheduler.isIdle());
+    }
+
+    @Test
+    public void testCancelRunning() {
+        TestTask task = submit("1", "a");
+        assertFalse(mScheduler.cancel("1"));
+        assertTrue(task.aborted);
+    }
+
+}
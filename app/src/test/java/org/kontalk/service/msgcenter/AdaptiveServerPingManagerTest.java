@@ -0,0 +1,161 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.service.msgcenter;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.jivesoftware.smack.XMPPConnection;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class AdaptiveServerPingManagerTest {
+
+    private static final long MINUTE = 60 * 1000;
+    private static final long HOUR = 60 * MINUTE;
+
+    private static final long MIN_INTERVAL = 90 * 1000;
+    private static final long MAX_INTERVAL = 30 * MINUTE;
+
+    /** A ping manager with a simulated clock and in-memory preferences. */
+    private static final class TestPingManager extends AbstractAdaptiveServerPingManager {
+        private final Map<String, Long> mIntervals = new HashMap<>();
+        private final Map<String, Long> mIncreases = new HashMap<>();
+        long mNow;
+
+        TestPingManager() {
+            super((XMPPConnection) Proxy.newProxyInstance(XMPPConnection.class.getClassLoader(),
+                new Class<?>[] { XMPPConnection.class }, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        return null;
+                    }
+                }));
+        }
+
+        @Override
+        public void onConnectionCompleted() {
+            setNetwork(mNetworkId);
+        }
+
+        @Override
+        public void onConnectivityChanged() {
+        }
+
+        @Override
+        protected void setupPing(long intervalMillis) {
+            mInterval = Math.max(MIN_INTERVAL, Math.min(MAX_INTERVAL, intervalMillis));
+            mIntervals.put(mNetworkId, mInterval);
+        }
+
+        @Override
+        protected long getElapsedRealtime() {
+            return mNow;
+        }
+
+        @Override
+        protected long loadInterval(String networkId, long defaultValue) {
+            Long value = mIntervals.get(networkId);
+            return value != null ? value : defaultValue;
+        }
+
+        @Override
+        protected long loadNextIncrease(String networkId, long defaultValue) {
+            Long value = mIncreases.get(networkId);
+            return value != null ? value : defaultValue;
+        }
+
+        @Override
+        protected void setNextIncreaseInterval(long interval) {
+            super.setNextIncreaseInterval(interval);
+            mIncreases.put(mNetworkId, mNextIncrease);
+        }
+    }
+
+    /**
+     * Runs pings through a NAT dropping connections idle for longer than
+     * the given timeout. A dropped connection is detected by the next ping
+     * and re-established.
+     * @return number of dropped connections
+     */
+    private static int simulate(TestPingManager manager, long natTimeout, long duration) {
+        long end = manager.mNow + duration;
+        int drops = 0;
+        while (manager.mNow < end) {
+            manager.mNow += manager.mInterval;
+            if (manager.mInterval > natTimeout) {
+                drops++;
+                manager.pingFailed();
+                // reconnect
+                manager.onConnectionCompleted();
+            }
+            else {
+                manager.pingSuccess();
+            }
+        }
+        return drops;
+    }
+
+    @Test
+    public void testConvergence() {
+        for (long natTimeout : new long[] { 2 * MINUTE, 5 * MINUTE, 10 * MINUTE, 20 * MINUTE, 45 * MINUTE }) {
+            TestPingManager manager = new TestPingManager();
+            manager.setNetwork("mobile");
+
+            int learningDrops = simulate(manager, natTimeout, 24 * HOUR);
+            int drops = simulate(manager, natTimeout, 24 * HOUR);
+            float wakeups = manager.getWakeupsPerHour();
+
+            // learning takes a few drops at most
+            assertTrue(learningDrops <= 8);
+            // no more drops once learned
+            assertEquals(0, drops);
+            // interval fits the NAT timeout without wasting wakeups
+            assertTrue(manager.mInterval <= natTimeout);
+            assertTrue(manager.mInterval >= Math.min(natTimeout, MAX_INTERVAL) / 2);
+            assertEquals((float) HOUR / manager.mInterval, wakeups, 1f);
+        }
+    }
+
+    @Test
+    public void testNetworkProfiles() {
+        TestPingManager manager = new TestPingManager();
+
+        // carrier with aggressive NAT
+        manager.setNetwork("mobile");
+        simulate(manager, 5 * MINUTE, 24 * HOUR);
+        long mobileInterval = manager.mInterval;
+
+        // home Wi-Fi
+        manager.setNetwork("wifi");
+        simulate(manager, 45 * MINUTE, 24 * HOUR);
+        assertEquals(MAX_INTERVAL, manager.mInterval);
+
+        // back to mobile: learned interval is restored
+        manager.setNetwork("mobile");
+        assertEquals(mobileInterval, manager.mInterval);
+        assertEquals(0, simulate(manager, 5 * MINUTE, 24 * HOUR));
+    }
+
+}
@@ -0,0 +1,144 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.service.msgcenter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class PendingReceiptIndexTest {
+
+    @Test
+    public void testIndex() {
+        PendingReceiptIndex index = new PendingReceiptIndex();
+        index.put("packet1", 1);
+        index.put("packet2", 2);
+
+        assertEquals(Long.valueOf(1), index.get("packet1"));
+        assertTrue(index.containsMessage(2));
+        assertFalse(index.containsMessage(3));
+
+        assertEquals(Long.valueOf(1), index.remove("packet1"));
+        assertNull(index.remove("packet1"));
+        assertFalse(index.containsMessage(1));
+        assertEquals(1, index.size());
+
+        // null packet ids are ignored
+        index.put(null, 4);
+        assertNull(index.get(null));
+        assertNull(index.remove(null));
+        assertFalse(index.containsMessage(4));
+    }
+
+    @Test
+    public void testReplace() {
+        PendingReceiptIndex index = new PendingReceiptIndex();
+        index.put("packet1", 1);
+        // message sent again with another packet id
+        index.put("packet2", 1);
+        assertNull(index.get("packet1"));
+        assertEquals(1, index.size());
+
+        // packet id reused for another message
+        index.put("packet2", 2);
+        assertFalse(index.containsMessage(1));
+        assertTrue(index.containsMessage(2));
+    }
+
+    @Test
+    public void testExpiry() {
+        PendingReceiptIndex index = new PendingReceiptIndex();
+        long now = System.currentTimeMillis();
+        index.put("packet1", 1, now);
+
+        assertTrue(index.containsMessage(1, now + PendingReceiptIndex.EXPIRY - 1));
+        // stale message can be sent again
+        assertFalse(index.containsMessage(1, now + PendingReceiptIndex.EXPIRY));
+        assertNull(index.get("packet1"));
+
+        // stale entries are removed while adding
+        index.put("packet2", 2, now);
+        index.put("packet3", 3, now + PendingReceiptIndex.EXPIRY);
+        assertEquals(1, index.size());
+        assertNull(index.get("packet2"));
+    }
+
+    @Test
+    public void testDropped() {
+        final List<Long> dropped = new ArrayList<>();
+        PendingReceiptIndex index = new PendingReceiptIndex(new PendingReceiptIndex.DropListener() {
+            @Override
+            public void onDropped(long msgId) {
+                dropped.add(msgId);
+            }
+        });
+        long now = System.currentTimeMillis();
+
+        // acked messages are not dropped
+        index.put("packet1", 1, now);
+        index.remove("packet1");
+        assertTrue(dropped.isEmpty());
+
+        // message sent again with another packet id
+        index.put("packet2", 2, now);
+        index.put("packet3", 2, now);
+        assertEquals(Arrays.asList(2L), dropped);
+
+        // stale message found while sending
+        index.put("packet4", 4, now);
+        assertFalse(index.containsMessage(4, now + PendingReceiptIndex.EXPIRY));
+        assertEquals(Arrays.asList(2L, 4L), dropped);
+
+        // stale entries removed while adding
+        index.put("packet5", 5, now + PendingReceiptIndex.EXPIRY);
+        assertEquals(Arrays.asList(2L, 4L, 2L), dropped);
+
+        index.clear();
+        assertEquals(Arrays.asList(2L, 4L, 2L, 5L), dropped);
+    }
+
+    @Test
+    public void testResendQueue() {
+        int count = 5000;
+
+        // the old map scan, for comparison
+        Map<String, Long> legacy = new HashMap<>();
+        PendingReceiptIndex index = new PendingReceiptIndex();
+        for (long i = 1; i <= count; i++) {
+            assertEquals(legacy.containsValue(i), index.containsMessage(i));
+            legacy.put("packet" + i, i);
+            index.put("packet" + i, i);
+        }
+
+        assertEquals(legacy.size(), index.size());
+        for (Map.Entry<String, Long> e : legacy.entrySet()) {
+            assertEquals(e.getValue(), index.get(e.getKey()));
+            // already queued messages are not sent again
+            assertTrue(index.containsMessage(e.getValue()));
+        }
+    }
+
+}
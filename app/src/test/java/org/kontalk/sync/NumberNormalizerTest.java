@@ -0,0 +1,75 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.sync;
+
+import org.junit.Test;
+
+import com.google.i18n.phonenumbers.NumberParseException;
+
+import static org.junit.Assert.*;
+
+
+public class NumberNormalizerTest {
+
+    @Test
+    public void testNormalize() throws Exception {
+        NumberNormalizer normalizer = new NumberNormalizer("IT", "kontalk.net");
+        String number = normalizer.normalize("333 123 4567", 0);
+        assertEquals("+393331234567", number);
+        // already normalized numbers are not changed
+        assertEquals(number, normalizer.normalize(number, 0));
+        // remembered results
+        assertSame(number, normalizer.normalize("333 123 4567", 0));
+    }
+
+    @Test
+    public void testInvalidNumber() {
+        NumberNormalizer normalizer = new NumberNormalizer(null, "kontalk.net");
+        NumberParseException first = null;
+        try {
+            normalizer.normalize("3331234567", 0);
+            fail("number without country code should not be parsed");
+        }
+        catch (NumberParseException e) {
+            first = e;
+        }
+
+        try {
+            normalizer.normalize("3331234567", 0);
+            fail("number without country code should not be parsed");
+        }
+        catch (NumberParseException e) {
+            assertSame(first, e);
+        }
+    }
+
+    @Test
+    public void testJID() {
+        NumberNormalizer normalizer = new NumberNormalizer("IT", "kontalk.net");
+        String hash = NumberNormalizer.hash("+393331234567");
+        assertEquals(40, hash.length());
+        assertEquals(hash + "@kontalk.net", normalizer.getJID(hash));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNoServer() {
+        new NumberNormalizer("IT", null).getJID("test");
+    }
+
+}
@@ -0,0 +1,148 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.sync;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+import org.jxmpp.util.XmppStringUtils;
+
+import org.kontalk.sync.RosterResponse.PresenceItem;
+
+import static org.junit.Assert.*;
+
+
+public class RosterResponseTest {
+
+    private static final int MAX_ROSTER_MATCH_SIZE = 500;
+
+    /** Synthetic roster: JIDs as returned by roster match. */
+    private static String[] roster(int size) {
+        String[] jids = new String[size];
+        for (int i = 0; i < size; i++)
+            jids[i] = String.format("%040x@beta.kontalk.net", i);
+        return jids;
+    }
+
+    /** Feeds roster match, presence, public key and block list data. */
+    private static RosterResponse aggregate(String[] jids) {
+        RosterResponse response = new RosterResponse();
+
+        for (int i = 0; i < jids.length; i += MAX_ROSTER_MATCH_SIZE) {
+            int end = Math.min(i + MAX_ROSTER_MATCH_SIZE, jids.length);
+            String[] part = new String[end - i];
+            System.arraycopy(jids, i, part, 0, part.length);
+            response.addAll(part);
+        }
+
+        for (String jid : jids) {
+            PresenceItem item = response.getOrAdd(jid.toUpperCase() + "/Kontalk");
+            item.presence = true;
+        }
+        for (String jid : jids) {
+            response.get(jid + "/Kontalk").publicKey = new byte[0];
+        }
+        for (int i = 0; i < jids.length; i += 10) {
+            response.get(jids[i]).blocked = true;
+        }
+
+        return response;
+    }
+
+    /** The old linear scan, for comparison. */
+    private static List<PresenceItem> aggregateLegacy(String[] jids) {
+        List<PresenceItem> response = new ArrayList<>();
+        for (String jid : jids) {
+            PresenceItem p = new PresenceItem();
+            p.from = jid;
+            response.add(p);
+        }
+
+        for (String jid : jids) {
+            String compare = XmppStringUtils.parseBareJid(jid + "/Kontalk");
+            for (PresenceItem item : response) {
+                if (XmppStringUtils.parseBareJid(item.from).equalsIgnoreCase(compare)) {
+                    item.presence = true;
+                    break;
+                }
+            }
+        }
+        for (String jid : jids) {
+            String compare = XmppStringUtils.parseBareJid(jid);
+            for (PresenceItem item : response) {
+                if (XmppStringUtils.parseBareJid(item.from).equalsIgnoreCase(compare)) {
+                    item.publicKey = new byte[0];
+                    break;
+                }
+            }
+        }
+        return response;
+    }
+
+    @Test
+    public void testAggregation() {
+        RosterResponse response = new RosterResponse();
+        response.addAll(new String[] { "ABC@kontalk.net", "def@kontalk.net" });
+        // duplicates are ignored
+        response.addAll(new String[] { "abc@kontalk.net" });
+        assertEquals(2, response.size());
+
+        assertSame(response.get("ABC@kontalk.net"), response.get("abc@Kontalk.net/res"));
+        assertNull(response.get("ghi@kontalk.net"));
+
+        PresenceItem item = response.getOrAdd("ghi@kontalk.net/res");
+        assertEquals("ghi@kontalk.net", item.from);
+        assertEquals(3, response.size());
+    }
+
+    @Test
+    public void testSyncSizes() {
+        for (int size : new int[] { 1000, 5000, 10000 }) {
+            String[] jids = roster(size);
+            RosterResponse response = aggregate(jids);
+
+            assertEquals(size, response.size());
+            int blocked = 0;
+            for (PresenceItem item : response.getItems()) {
+                assertTrue(item.presence);
+                assertNotNull(item.publicKey);
+                if (item.blocked)
+                    blocked++;
+            }
+            assertEquals((size + 9) / 10, blocked);
+        }
+    }
+
+    @Test
+    public void testLegacyEquivalence() {
+        String[] jids = roster(1000);
+        List<PresenceItem> legacy = aggregateLegacy(jids);
+        RosterResponse response = aggregate(jids);
+
+        assertEquals(legacy.size(), response.size());
+        for (PresenceItem expected : legacy) {
+            PresenceItem item = response.get(expected.from);
+            assertNotNull(item);
+            assertEquals(expected.presence, item.presence);
+            assertEquals(expected.publicKey != null, item.publicKey != null);
+        }
+    }
+
+}